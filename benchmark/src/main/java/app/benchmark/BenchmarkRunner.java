@@ -0,0 +1,42 @@
+package app.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler (allocation rate per operation) and writes the
+ * results as JSON to jmh-result.json, so runs can be compared.
+ *
+ * The usual JMH command line options are accepted and override these defaults, e.g.
+ *   java -jar target/benchmarks.jar FFT2Benchmark -p size=1024 -rff fft2.json
+ */
+public final class BenchmarkRunner
+{
+  private BenchmarkRunner()
+  {
+  }
+
+  public static void main(String[] args) throws RunnerException, CommandLineOptionException
+  {
+    CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+
+    ChainedOptionsBuilder builder = new OptionsBuilder()
+        .parent(commandLineOptions)
+        .addProfiler(GCProfiler.class)
+        .resultFormat(commandLineOptions.getResultFormat().orElse(ResultFormatType.JSON))
+        .result(commandLineOptions.getResult().orElse("jmh-result.json"));
+
+    if (commandLineOptions.getIncludes().isEmpty())
+    {
+      builder.include("app\\.benchmark\\..*");
+    }
+
+    new Runner(builder.build()).run();
+  }
+}
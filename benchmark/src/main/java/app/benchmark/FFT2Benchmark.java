@@ -0,0 +1,116 @@
+package app.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import app.util.fft.ComplexMatrix;
+import app.util.fft.FFT;
+import app.util.fft.RealMatrix;
+
+/**
+ * Two-dimensional FFT and inverse FFT of square images for different pool sizes.
+ *
+ * The transformations are submitted to a ForkJoinPool with poolSize threads; the parallel
+ * streams inside the FFT class run in the pool of the calling thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class FFT2Benchmark
+{
+  @Param({ "256", "512", "1024", "2048" })
+  public int size;
+
+  @Param({ "1", "2", "4", "8" })
+  public int poolSize;
+
+  private ForkJoinPool pool;
+  private double[][] matrix;
+  private double[][] spectrum;
+  private ComplexMatrix complexMatrix;
+  private ComplexMatrix complexSpectrum;
+  private RealMatrix realMatrix;
+  private ComplexMatrix halfSpectrum;
+
+  @Setup
+  public void setup()
+  {
+    this.pool = new ForkJoinPool(poolSize);
+
+    Random random = new Random(42);
+    this.matrix = new double[size][2*size];
+    this.realMatrix = new RealMatrix(size, size);
+    for (int i = 0; i < size; i++)
+    {
+      for (int j = 0; j < size; j++)
+      {
+        double value = random.nextInt(256);
+        this.matrix[i][2*j] = value;
+        this.realMatrix.set(i, j, value);
+      }
+    }
+    this.spectrum = FFT.fft2(this.matrix);
+    this.complexMatrix = ComplexMatrix.of(this.matrix);
+    this.complexSpectrum = ComplexMatrix.of(this.spectrum);
+    this.halfSpectrum = FFT.rfft2(this.realMatrix);
+  }
+
+  @TearDown
+  public void tearDown()
+  {
+    this.pool.shutdown();
+  }
+
+  @Benchmark
+  public double[][] fft2()
+  {
+    return this.pool.submit(() -> FFT.fft2(this.matrix)).join();
+  }
+
+  @Benchmark
+  public double[][] ifft2()
+  {
+    return this.pool.submit(() -> FFT.ifft2(this.spectrum)).join();
+  }
+
+  @Benchmark
+  public ComplexMatrix fft2ComplexMatrix()
+  {
+    return this.pool.submit(() -> FFT.fft2(this.complexMatrix)).join();
+  }
+
+  @Benchmark
+  public ComplexMatrix ifft2ComplexMatrix()
+  {
+    return this.pool.submit(() -> FFT.ifft2(this.complexSpectrum)).join();
+  }
+
+  @Benchmark
+  public ComplexMatrix rfft2()
+  {
+    return this.pool.submit(() -> FFT.rfft2(this.realMatrix)).join();
+  }
+
+  @Benchmark
+  public RealMatrix irfft2()
+  {
+    return this.pool.submit(() -> FFT.irfft2(this.halfSpectrum, size)).join();
+  }
+}
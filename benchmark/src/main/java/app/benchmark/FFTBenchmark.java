@@ -0,0 +1,88 @@
+package app.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import app.util.fft.FFT;
+import app.util.fft.SplitComplexFFT;
+
+/**
+ * One-dimensional FFT and inverse FFT for power of 2 lengths and for lengths handled by the
+ * mixed-radix (1000, 4095) and the Bluestein kernel (1009, 4099). splitFft is the kernel of the
+ * power of 2 lengths on data in the split-complex layout (no conversion of the layout).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FFTBenchmark
+{
+  @Param({ "256", "1000", "1009", "1024", "4095", "4096", "4099", "65536" })
+  public int length;
+
+  private double[] vector;
+  private double[] spectrum;
+  private SplitComplexFFT splitFFT;
+  private double[] re;
+  private double[] im;
+
+  @Setup
+  public void setup()
+  {
+    Random random = new Random(42);
+    this.vector = new double[2*length];
+    for (int i = 0; i < length; i++)
+    {
+      this.vector[2*i] = random.nextDouble();
+    }
+    this.spectrum = FFT.fft(this.vector);
+
+    if ((length & (length - 1)) == 0)
+    {
+      this.splitFFT = new SplitComplexFFT(length);
+      this.re = new double[length];
+      this.im = new double[length];
+    }
+  }
+
+  @Benchmark
+  public double[] fft()
+  {
+    return FFT.fft(this.vector);
+  }
+
+  @Benchmark
+  public double[] ifft()
+  {
+    return FFT.ifft(this.spectrum);
+  }
+
+  @Benchmark
+  public double[] splitFft()
+  {
+    if (this.splitFFT == null)
+      return null;
+
+    for (int i = 0; i < length; i++)
+    {
+      this.re[i] = this.vector[2*i];
+      this.im[i] = 0.0;
+    }
+    this.splitFFT.fft(this.re, this.im);
+    return this.re;
+  }
+}
@@ -0,0 +1,126 @@
+package app.benchmark;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import app.util.fft.ComplexMatrix;
+import app.util.fft.FFT;
+import app.util.fft.FFTUtils;
+import app.util.fft.RealMatrix;
+import app.util.fft.ThresholdSelector;
+
+/**
+ * The FFTUtils methods used between the transformations, for the double[][] matrices and for
+ * the ComplexMatrix/RealMatrix versions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true", "-Xms4g", "-Xmx4g" })
+public class FFTUtilsBenchmark
+{
+  @Param({ "512", "1024" })
+  public int size;
+
+  private double[][] spectrum;
+  private double[][] absValues;
+  private double threshold;
+  private double maxValue;
+
+  private ComplexMatrix complexSpectrum;
+  private RealMatrix realAbsValues;
+
+  @Setup
+  public void setup()
+  {
+    Random random = new Random(42);
+    double[][] matrix = new double[size][2*size];
+    for (int i = 0; i < size; i++)
+    {
+      for (int j = 0; j < size; j++)
+      {
+        matrix[i][2*j] = random.nextInt(256);
+      }
+    }
+
+    this.spectrum = FFT.fft2(matrix);
+    this.absValues = FFTUtils.getAbsValuesOfMatrix(this.spectrum);
+    ThresholdSelector selector = new ThresholdSelector(this.absValues);
+    this.threshold = selector.getThreshold(0.9);
+    this.maxValue = selector.getMaxElement();
+
+    this.complexSpectrum = ComplexMatrix.of(this.spectrum);
+    this.realAbsValues = RealMatrix.of(this.absValues);
+  }
+
+  @Benchmark
+  public List<Double> getSortedElements()
+  {
+    return FFTUtils.getSortedElements(this.absValues);
+  }
+
+  @Benchmark
+  public double thresholdSelector()
+  {
+    return new ThresholdSelector(this.realAbsValues).getThreshold(0.9);
+  }
+
+  @Benchmark
+  public double[][] createTruncatedMatrix()
+  {
+    return FFTUtils.createTruncatedMatrix(this.spectrum, this.threshold);
+  }
+
+  @Benchmark
+  public ComplexMatrix createTruncatedComplexMatrix()
+  {
+    return FFTUtils.createTruncatedMatrix(this.complexSpectrum, this.threshold);
+  }
+
+  @Benchmark
+  public double[][] getAbsValuesOfMatrix()
+  {
+    return FFTUtils.getAbsValuesOfMatrix(this.spectrum);
+  }
+
+  @Benchmark
+  public RealMatrix getAbsValuesOfComplexMatrix()
+  {
+    return FFTUtils.getAbsValuesOfMatrix(this.complexSpectrum);
+  }
+
+  // in place, every call shifts the matrix again
+  @Benchmark
+  public double[][] shiftAbsFourierKoef()
+  {
+    return FFTUtils.shiftAbsFourierKoef(this.absValues);
+  }
+
+  @Benchmark
+  public BufferedImage getLogScaledBufferedImageForMatix()
+  {
+    return FFTUtils.getLogScaledBufferedImageForMatix(this.absValues, this.maxValue);
+  }
+
+  @Benchmark
+  public BufferedImage getLogScaledBufferedImageForRealMatrix()
+  {
+    return FFTUtils.getLogScaledBufferedImageForMatix(this.realAbsValues, this.maxValue);
+  }
+}
@@ -0,0 +1,347 @@
+package app;
+
+import static app.util.fft.FFT.irfft2InPlace;
+import static app.util.fft.FFT.rfft2;
+import static app.util.fft.FFTUtils.createNewGrayScaleBuffer;
+import static app.util.fft.FFTUtils.createRealMatrixForPixelBuffer;
+import static app.util.fft.FFTUtils.getAbsValuesOfMatrix;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.function.Function;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import app.compression.GrayImageCompression;
+import app.compression.MemoryPlan;
+import app.compression.MemoryPlanner;
+import app.util.fft.CancellationToken;
+import app.util.fft.ComplexMatrix;
+import app.util.fft.FFTPlanCache;
+import app.util.fft.FloatCompression;
+import app.util.fft.OutOfCoreCompression;
+import app.util.fft.RealMatrix;
+import app.util.fft.SpectrumKernels;
+import app.util.fft.ThresholdSelector;
+import app.util.fft.TiledCompression;
+import app.util.pipeline.Pipeline;
+import app.util.pipeline.StageStatistics;
+
+/**
+ * Headless batch compression of all jpg and png files of a directory.
+ *
+ * The images are passed through a pipeline (see Pipeline) with the stages
+ *   decode -> grayscale -> pad -> fft2 -> threshold -> truncate -> ifft2 -> encode
+ * connected by bounded queues. The memory-heavy stages (from pad to ifft2) run with a small
+ * concurrency limit, because every image in these stages holds a matrix of the padded image
+ * size and the transformations are parallelised internally. The reconstructed gray images
+ * are written as png files to the output directory.
+ *
+ * Before an image is decoded its size is read from the file header and its memory is planned
+ * and reserved (see MemoryPlanner), so the decoded images waiting in the queues count against
+ * the budget as well: an image waits until the images ahead of it leave room for it, and images
+ * whose spectrum does not fit into the heap are compressed tile by tile (see TiledCompression)
+ * or out-of-core in the pad stage.
+ *
+ * The class does not use JavaFX, so it can run without a JavaFX toolkit:
+ *   java -cp target/classes app.BatchCompression <input directory> <compression rate> <output directory> [--pad] [--out-of-core] [--float [--accuracy]]
+ *
+ * With --out-of-core the images too large for the heap are not tiled but transformed as a
+ * whole with the spectrum in memory-mapped temporary files (see OutOfCoreCompression).
+ *
+ * With --float the spectrum is kept in single precision (see FloatCompression). The images are
+ * compressed in the pad stage like the tiled ones, so images about twice as large fit into the
+ * heap. --accuracy additionally runs the double path for every image and prints the deviation
+ * of the float path; the memory is then planned for the double path.
+ */
+public final class BatchCompression
+{
+  private BatchCompression()
+  {
+  }
+
+  public static void main(String[] args) throws InterruptedException
+  {
+    List<String> arguments = new ArrayList<>(Arrays.asList(args));
+    boolean padToPowerOf2 = arguments.remove("--pad");
+    MemoryPlan.Mode fallbackMode = arguments.remove("--out-of-core") ? MemoryPlan.Mode.OUT_OF_CORE : MemoryPlan.Mode.TILED;
+    boolean singlePrecision = arguments.remove("--float");
+    boolean accuracyReport = arguments.remove("--accuracy") && singlePrecision;
+    if (arguments.size() != 3)
+    {
+      System.err.println("Usage: BatchCompression <input directory> <compression rate> <output directory> [--pad] [--out-of-core] [--float [--accuracy]]");
+      System.exit(1);
+    }
+
+    File inputFolder = new File(arguments.get(0));
+    double compressRate = Double.parseDouble(arguments.get(1));
+    File outputFolder = new File(arguments.get(2));
+    if (!inputFolder.isDirectory() || compressRate < 0.0 || compressRate >= 1.0)
+    {
+      System.err.println("The input directory must exist and the compression rate must be in [0, 1)");
+      System.exit(1);
+    }
+    outputFolder.mkdirs();
+
+    File[] listOfFiles = inputFolder.listFiles((File dir, String name) -> name.endsWith(".png") || name.endsWith(".jpg"));
+    // the memory of the accuracy report is the memory of the double path
+    MemoryPlan.Mode requestedMode = (singlePrecision && !accuracyReport) ? MemoryPlan.Mode.FLOAT : MemoryPlan.Mode.FULL;
+    List<Job> jobs = new ArrayList<>();
+    for (File file : listOfFiles)
+    {
+      jobs.add(new Job(file, singlePrecision, requestedMode));
+    }
+
+    int numOfProcessors = Runtime.getRuntime().availableProcessors();
+    int heavyConcurrency = Math.max(1, numOfProcessors / 4);
+    MemoryPlanner memoryPlanner = new MemoryPlanner();
+    System.out.println("Memory budget " + (memoryPlanner.getBudgetBytes() >> 20) + " MB");
+
+    Pipeline<Job> pipeline = new Pipeline<Job>()
+        .addStage("decode", numOfProcessors, 2*numOfProcessors, releasingOnFailure(job -> decode(job, padToPowerOf2, memoryPlanner, fallbackMode)))
+        .addStage("grayscale", 2, numOfProcessors, releasingOnFailure(job -> grayscale(job)))
+        .addStage("pad", heavyConcurrency, 2, releasingOnFailure(job -> pad(job, padToPowerOf2, compressRate)))
+        .addStage("fft2", heavyConcurrency, 1, releasingOnFailure(job -> fft2(job)))
+        .addStage("threshold", heavyConcurrency, 1, releasingOnFailure(job -> threshold(job, compressRate)))
+        .addStage("truncate", heavyConcurrency, 1, releasingOnFailure(job -> truncate(job)))
+        .addStage("ifft2", heavyConcurrency, 1, releasingOnFailure(job -> ifft2(job)))
+        .addStage("encode", numOfProcessors, 2, releasingOnFailure(job -> encode(job, outputFolder)));
+
+    long time = System.nanoTime();
+    List<Job> done = pipeline.process(jobs);
+    double seconds = (System.nanoTime() - time) / 1e9;
+
+    for (StageStatistics statistics : pipeline.getStatistics())
+    {
+      System.out.println(statistics);
+    }
+    System.out.println(FFTPlanCache.getStatistics());
+    System.out.printf("%d of %d images compressed in %.2f s : %.2f images/s%n", done.size(), jobs.size(), seconds, done.size() / seconds);
+  }
+
+  // --- pipeline stages, every stage releases the data no longer needed ---
+
+  // Reads the size from the header and reserves the memory of the image (blocks while the images
+  // ahead of it need the memory), then decodes the image
+  private static Job decode(Job job, boolean padToPowerOf2, MemoryPlanner memoryPlanner, MemoryPlan.Mode fallbackMode)
+  {
+    try (ImageInputStream input = ImageIO.createImageInputStream(job.file))
+    {
+      Iterator<ImageReader> readers = (input != null) ? ImageIO.getImageReaders(input) : null;
+      if (readers == null || !readers.hasNext())
+      {
+        System.err.println("Unsupported image format: " + job.file);
+        return null;
+      }
+
+      ImageReader reader = readers.next();
+      try
+      {
+        reader.setInput(input, true, true);
+        job.width = reader.getWidth(0);
+        job.height = reader.getHeight(0);
+
+        job.plan = memoryPlanner.plan(job.width, job.height, padToPowerOf2, job.requestedMode, fallbackMode);
+        if (job.plan.getDecision() != MemoryPlan.Decision.ADMIT || job.plan.isSwitched())
+        {
+          System.out.println(job.file.getName() + ": " + job.plan);
+        }
+        job.reservation = memoryPlanner.reserve(job.plan);
+
+        job.image = reader.read(0);
+        return job;
+      }
+      finally
+      {
+        reader.dispose();
+      }
+    }
+    catch (IOException exce)
+    {
+      throw new UncheckedIOException(exce);
+    }
+    catch (InterruptedException exce)
+    {
+      Thread.currentThread().interrupt();
+      throw new CancellationException("memory reservation interrupted");
+    }
+  }
+
+  private static Job grayscale(Job job)
+  {
+    int[] pixelBuffer = job.image.getRGB(0, 0, job.width, job.height, null, 0, job.width);
+    job.image = null;
+    job.pixelBuffer = createNewGrayScaleBuffer(pixelBuffer);
+    return job;
+  }
+
+  // Images too large for the spectrum of the whole image are compressed here in the fallback mode
+  // of the plan, single precision jobs are compressed here as well.
+  private static Job pad(Job job, boolean padToPowerOf2, double compressRate)
+  {
+    MemoryPlan plan = job.plan;
+
+    if (job.singlePrecision && (plan.getMode() == MemoryPlan.Mode.FLOAT || plan.getMode() == MemoryPlan.Mode.FULL))
+    {
+      FloatCompression floatCompression = new FloatCompression(padToPowerOf2);
+      if (plan.getMode() == MemoryPlan.Mode.FULL)
+      {
+        // accuracy report, the float pixels are written
+        FloatCompression.AccuracyReport report = floatCompression.compareWithDouble(job.pixelBuffer, job.width, job.height, compressRate, CancellationToken.NONE);
+        System.out.println(job.file.getName() + ": " + report);
+      }
+      job.pixelBuffer = floatCompression.compress(job.pixelBuffer, job.width, job.height, compressRate);
+      job.compressed = true;
+      return job;
+    }
+
+    if (plan.getMode() == MemoryPlan.Mode.TILED)
+    {
+      job.pixelBuffer = new TiledCompression().compress(job.pixelBuffer, job.width, job.height, compressRate);
+      job.compressed = true;
+      return job;
+    }
+
+    if (plan.getMode() == MemoryPlan.Mode.OUT_OF_CORE)
+    {
+      try
+      {
+        Path directory = Paths.get(System.getProperty("java.io.tmpdir"));
+        job.pixelBuffer = new OutOfCoreCompression(directory).compress(job.pixelBuffer, job.width, job.height, compressRate);
+        job.compressed = true;
+        return job;
+      }
+      catch (IOException exce)
+      {
+        throw new UncheckedIOException(exce);
+      }
+    }
+
+    job.matrix = createRealMatrixForPixelBuffer(job.pixelBuffer, job.width, job.height, padToPowerOf2);
+    job.pixelBuffer = null;
+    return job;
+  }
+
+  private static Job fft2(Job job)
+  {
+    if (job.compressed)
+      return job;
+
+    job.cols = job.matrix.getCols();
+    job.spectrum = rfft2(job.matrix);
+    job.matrix = null;
+    return job;
+  }
+
+  private static Job threshold(Job job, double compressRate)
+  {
+    if (job.compressed)
+      return job;
+
+    job.threshold = new ThresholdSelector(getAbsValuesOfMatrix(job.spectrum)).getThreshold(compressRate);
+    return job;
+  }
+
+  // the spectrum is not needed any more, so it is truncated in place (see createTruncatedMatrix)
+  private static Job truncate(Job job)
+  {
+    if (job.compressed)
+      return job;
+
+    job.spectrum.truncate(job.threshold);
+    return job;
+  }
+
+  private static Job ifft2(Job job)
+  {
+    if (job.compressed)
+      return job;
+
+    job.matrix = irfft2InPlace(job.spectrum, job.cols);
+    job.spectrum = null;
+    return job;
+  }
+
+  private static Job encode(Job job, File outputFolder)
+  {
+    int[] pixelBuffer = job.compressed ? job.pixelBuffer : SpectrumKernels.toGrayPixelBuffer(job.matrix, job.width, job.height, CancellationToken.NONE);
+    job.matrix = null;
+    job.pixelBuffer = null;
+    job.releaseMemory();
+
+    String name = job.file.getName();
+    File outputFile = new File(outputFolder, name.substring(0, name.lastIndexOf('.')) + ".png");
+    try
+    {
+      ImageIO.write(GrayImageCompression.createImage(pixelBuffer, job.width, job.height), "png", outputFile);
+      return job;
+    }
+    catch (IOException exce)
+    {
+      throw new UncheckedIOException(exce);
+    }
+  }
+
+  // Releases the memory reservation of a job that fails in a stage
+  private static Function<Job, Job> releasingOnFailure(Function<Job, Job> stage)
+  {
+    return job -> {
+      try
+      {
+        return stage.apply(job);
+      }
+      catch (Throwable exce)
+      {
+        job.releaseMemory();
+        throw exce;
+      }
+    };
+  }
+
+  // An image passing the pipeline
+  private static final class Job
+  {
+    private final File file;
+    private int width;
+    private int height;
+    private int cols;
+    private BufferedImage image;
+    private int[] pixelBuffer;
+    private RealMatrix matrix;
+    private ComplexMatrix spectrum;
+    private double threshold;
+    // compressed in the pad stage (float, tiled or out-of-core), the heavy stages are skipped
+    private boolean compressed;
+    private final boolean singlePrecision;
+    private final MemoryPlan.Mode requestedMode;
+    private MemoryPlan plan;
+    private MemoryPlanner.Reservation reservation;
+
+    private Job(File file, boolean singlePrecision, MemoryPlan.Mode requestedMode)
+    {
+      this.file = file;
+      this.singlePrecision = singlePrecision;
+      this.requestedMode = requestedMode;
+    }
+
+    private void releaseMemory()
+    {
+      if (this.reservation != null)
+      {
+        this.reservation.close();
+        this.reservation = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,233 @@
+package app.compression;
+
+import static app.util.fft.FFT.rfft2;
+import static app.util.fft.FFTUtils.createNewGrayScaleBuffer;
+import static app.util.fft.FFTUtils.createRealMatrixForPixelBuffer;
+import static app.util.fft.FFTUtils.getAbsValuesOfMatrix;
+import static app.util.fft.FFTUtils.getNextPowerOf2;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+
+import app.util.codec.SpectrumHeader;
+import app.util.codec.SpectrumWriter;
+import app.util.fft.CancellationToken;
+import app.util.fft.CoefficientOrder;
+import app.util.fft.ComplexMatrix;
+import app.util.fft.IncrementalReconstruction;
+import app.util.fft.Parallelism;
+import app.util.fft.RealMatrix;
+import app.util.fft.SpectrumKernels;
+import app.util.fft.ThresholdSelector;
+import app.util.image.Rasters;
+
+/**
+ * Compression of a gray image, independent of the user interface (no JavaFX classes).
+ *
+ * The constructor calculates the half spectrum of the image matrix. The threshold selector
+ * (absolute values, largest coefficient) and the incremental reconstruction are created in
+ * the background. update() sets the compression rate; the images of the truncated spectrum
+ * and of the reconstruction are created for the last compression rate.
+ *
+ * The work can be isolated on three ForkJoinPools: the transformation and the spectrum images
+ * run in the view pool, the threshold selector and the coefficient order (the sorts) in the
+ * sort pool, the reconstruction updates and the reconstructed image in the reconstruction
+ * pool. A null pool means the pool of the calling thread (the common pool for the background
+ * tasks).
+ *
+ * The CancellationToken of the constructor stops the transformation and the background tasks
+ * (e.g. when another image is opened); update() can be cancelled by its own token.
+ *
+ * Pixel buffers have the layout of FFTUtils: matrix element (i, j) is pixel i*height + j.
+ */
+public final class GrayImageCompression
+{
+  private final int width;
+  private final int height;
+  private final int cols;
+  private final ComplexMatrix halfSpectrum;
+  private final ForkJoinPool viewPool;
+  private final ForkJoinPool reconstructionPool;
+  private final CompletableFuture<ThresholdSelector> thresholdSelectorCF;
+  private final CompletableFuture<IncrementalReconstruction> reconstructionCF;
+
+  public GrayImageCompression(int[] grayPixelBuffer, int width, int height, boolean padToPowerOf2)
+  {
+    this(grayPixelBuffer, width, height, padToPowerOf2, null, null, null);
+  }
+
+  public GrayImageCompression(int[] grayPixelBuffer, int width, int height, boolean padToPowerOf2,
+      ForkJoinPool viewPool, ForkJoinPool sortPool, ForkJoinPool reconstructionPool)
+  {
+    this(grayPixelBuffer, width, height, padToPowerOf2, viewPool, sortPool, reconstructionPool, CancellationToken.NONE);
+  }
+
+  public GrayImageCompression(int[] grayPixelBuffer, int width, int height, boolean padToPowerOf2,
+      ForkJoinPool viewPool, ForkJoinPool sortPool, ForkJoinPool reconstructionPool, CancellationToken token)
+  {
+    this(transform(grayPixelBuffer, width, height, padToPowerOf2, viewPool, token), width, height,
+        padToPowerOf2 ? getNextPowerOf2(height) : height, viewPool, sortPool, reconstructionPool, token);
+  }
+
+  // Uses a half spectrum calculated before (e.g. loaded by SpectrumStore) instead of transforming
+  // the image. cols is the number of columns of the (padded) image matrix.
+  public GrayImageCompression(ComplexMatrix halfSpectrum, int width, int height, int cols,
+      ForkJoinPool viewPool, ForkJoinPool sortPool, ForkJoinPool reconstructionPool, CancellationToken token)
+  {
+    this.width = width;
+    this.height = height;
+    this.cols = cols;
+    this.halfSpectrum = halfSpectrum;
+    this.viewPool = viewPool;
+    this.reconstructionPool = reconstructionPool;
+
+    this.thresholdSelectorCF = CompletableFuture.supplyAsync(() -> new ThresholdSelector(getAbsValuesOfMatrix(halfSpectrum, token), null, token), executorFor(sortPool));
+    this.reconstructionCF = CompletableFuture.supplyAsync(() -> new CoefficientOrder(halfSpectrum, null, token), executorFor(sortPool))
+        .thenApplyAsync( order -> new IncrementalReconstruction(halfSpectrum, cols, order), executorFor(reconstructionPool));
+  }
+
+  private static ComplexMatrix transform(int[] grayPixelBuffer, int width, int height, boolean padToPowerOf2,
+      ForkJoinPool viewPool, CancellationToken token)
+  {
+    RealMatrix imageMatrix = createRealMatrixForPixelBuffer(grayPixelBuffer, width, height, padToPowerOf2, viewPool);
+    return Parallelism.invoke(viewPool, () -> rfft2(imageMatrix, token));
+  }
+
+  private static ForkJoinPool executorFor(ForkJoinPool pool)
+  {
+    return (pool != null) ? pool : ForkJoinPool.commonPool();
+  }
+
+  // Gray pixel buffer (see FFTUtils.createNewGrayScaleBuffer) of an image
+  public static int[] getGrayPixelBuffer(BufferedImage image)
+  {
+    int width = image.getWidth();
+    int height = image.getHeight();
+    int[] pixelBuffer = image.getRGB(0, 0, width, height, null, 0, width);
+    return createNewGrayScaleBuffer(pixelBuffer);
+  }
+
+  // Creates an RGB image from a pixel buffer in row major order (y*width + x). The image is
+  // backed by the pixel buffer (see Rasters.wrap()).
+  public static BufferedImage createImage(int[] pixelBuffer, int width, int height)
+  {
+    return Rasters.wrap(pixelBuffer, width, height);
+  }
+
+  public int getWidth()
+  {
+    return this.width;
+  }
+
+  public int getHeight()
+  {
+    return this.height;
+  }
+
+  // Rows of the (padded) image matrix
+  public int getRows()
+  {
+    return this.halfSpectrum.getRows();
+  }
+
+  // Columns of the (padded) image matrix
+  public int getCols()
+  {
+    return this.cols;
+  }
+
+  // Half spectrum of the image matrix, must not be modified
+  public ComplexMatrix getHalfSpectrum()
+  {
+    return this.halfSpectrum;
+  }
+
+  // Completes when the threshold selector and the incremental reconstruction are created, i.e.
+  // the compression can be kept (see SpectrumCache). Completes exceptionally if they failed or
+  // were cancelled.
+  public CompletableFuture<Void> whenReady()
+  {
+    return CompletableFuture.allOf(this.thresholdSelectorCF, this.reconstructionCF);
+  }
+
+  // Largest absolute value of the coefficients
+  public double getMaxAbsValue()
+  {
+    return this.thresholdSelectorCF.join().getMaxElement();
+  }
+
+  // Coefficients with an absolute value not larger than the threshold are truncated
+  public double getThreshold(double compressRate)
+  {
+    return this.thresholdSelectorCF.join().getThreshold(compressRate);
+  }
+
+  // Log scaled image of the shifted absolute values of the spectrum
+  public BufferedImage createSpectrumImage()
+  {
+    return createLogScaledImage(this.halfSpectrum, getMaxAbsValue());
+  }
+
+  // Renders the half spectrum in one pass into the pixels of a new image (see
+  // SpectrumKernels.renderShiftedLogSpectrum()), no matrix of absolute values is created
+  private BufferedImage createLogScaledImage(ComplexMatrix spectrum, double maxAbsValue)
+  {
+    BufferedImage image = Rasters.createImage(getRows(), this.cols);
+    int[] pixels = Rasters.getPixels(image);
+    Parallelism.run(this.viewPool, () -> SpectrumKernels.renderShiftedLogSpectrum(spectrum, this.cols, maxAbsValue, pixels, CancellationToken.NONE));
+    return image;
+  }
+
+  // Truncates the spectrum for the compression rate and updates the reconstruction
+  // (incrementally from the last compression rate)
+  public void update(double compressRate)
+  {
+    update(compressRate, CancellationToken.NONE);
+  }
+
+  // see update(compressRate), stops with a CancellationException if the token is cancelled
+  public void update(double compressRate, CancellationToken token)
+  {
+    this.reconstructionCF.join().update(compressRate, this.reconstructionPool, token);
+  }
+
+  // Log scaled image of the truncated spectrum of the last update
+  public BufferedImage createTruncatedSpectrumImage()
+  {
+    double maxAbsValue = getMaxAbsValue();
+    IncrementalReconstruction reconstruction = this.reconstructionCF.join();
+    synchronized (reconstruction)
+    {
+      return createLogScaledImage(reconstruction.getTruncatedSpectrum(), maxAbsValue);
+    }
+  }
+
+  // Gray pixel buffer of the reconstructed image of the last update
+  public int[] createReconstructedPixelBuffer()
+  {
+    IncrementalReconstruction reconstruction = this.reconstructionCF.join();
+    synchronized (reconstruction)
+    {
+      // crop, absolute value, clamping and packing in one pass
+      RealMatrix matrix = reconstruction.getReconstruction();
+      return Parallelism.invoke(this.reconstructionPool, () -> SpectrumKernels.toGrayPixelBuffer(matrix, this.width, this.height, CancellationToken.NONE));
+    }
+  }
+
+  // Writes the truncated spectrum for the compression rate to a file, returns the file size
+  public long save(Path path, double compressRate) throws IOException
+  {
+    SpectrumHeader header = new SpectrumHeader(this.width, this.height, getRows(), this.cols,
+        SpectrumWriter.DEFAULT_CHUNK_ROWS, SpectrumWriter.DEFAULT_QUANTIZATION_STEP);
+
+    IncrementalReconstruction reconstruction = this.reconstructionCF.join();
+    synchronized (reconstruction)
+    {
+      reconstruction.update(compressRate, this.reconstructionPool);
+      return SpectrumWriter.write(path, header, reconstruction.getTruncatedSpectrum());
+    }
+  }
+}
@@ -0,0 +1,111 @@
+package app.compression;
+
+/**
+ * Result of MemoryPlanner.plan(): the compression mode for an image, the estimated peak memory
+ * of the mode and whether the job can start at once, has to wait for memory or is too large.
+ */
+public final class MemoryPlan
+{
+  // FULL: spectrum of the whole image (GrayImageCompression), FLOAT: spectrum of the whole image
+  // in single precision (see FloatCompression), TILED: see TiledCompression, OUT_OF_CORE: spectrum
+  // of the whole image in memory-mapped files (see OutOfCoreCompression)
+  public enum Mode
+  {
+    FULL, FLOAT, TILED, OUT_OF_CORE
+  }
+
+  // ADMIT: start at once, QUEUE: wait until other jobs release memory, REJECT: does not fit
+  public enum Decision
+  {
+    ADMIT, QUEUE, REJECT
+  }
+
+  private final int width;
+  private final int height;
+  private final Mode requestedMode;
+  private final Mode mode;
+  private final Decision decision;
+  private final long estimatedBytes;
+  private final long budgetBytes;
+  private final long reservedBytes;
+
+  MemoryPlan(int width, int height, Mode requestedMode, Mode mode, Decision decision, long estimatedBytes, long budgetBytes, long reservedBytes)
+  {
+    this.width = width;
+    this.height = height;
+    this.requestedMode = requestedMode;
+    this.mode = mode;
+    this.decision = decision;
+    this.estimatedBytes = estimatedBytes;
+    this.budgetBytes = budgetBytes;
+    this.reservedBytes = reservedBytes;
+  }
+
+  public int getWidth()
+  {
+    return this.width;
+  }
+
+  public int getHeight()
+  {
+    return this.height;
+  }
+
+  public Mode getRequestedMode()
+  {
+    return this.requestedMode;
+  }
+
+  public Mode getMode()
+  {
+    return this.mode;
+  }
+
+  // true if the requested mode needs too much memory and a lower memory mode was chosen
+  public boolean isSwitched()
+  {
+    return this.mode != this.requestedMode;
+  }
+
+  public Decision getDecision()
+  {
+    return this.decision;
+  }
+
+  // Estimated peak heap usage of the job in the chosen mode
+  public long getEstimatedBytes()
+  {
+    return this.estimatedBytes;
+  }
+
+  public long getBudgetBytes()
+  {
+    return this.budgetBytes;
+  }
+
+  // Memory reserved by other jobs when the plan was made
+  public long getReservedBytes()
+  {
+    return this.reservedBytes;
+  }
+
+  // Short form for the user interface, e.g. "FULL 412 MB / 3072 MB"
+  public String getSummary()
+  {
+    return this.mode + (isSwitched() ? " (switched)" : "") + " " + toMegaBytes(this.estimatedBytes)
+        + " MB / " + toMegaBytes(this.budgetBytes) + " MB" + (this.decision != Decision.ADMIT ? " " + this.decision : "");
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("Memory plan %d x %d: %s mode%s needs %d MB, budget %d MB, reserved %d MB -> %s",
+        this.width, this.height, this.mode, isSwitched() ? " (instead of " + this.requestedMode + ")" : "",
+        toMegaBytes(this.estimatedBytes), toMegaBytes(this.budgetBytes), toMegaBytes(this.reservedBytes), this.decision);
+  }
+
+  private static long toMegaBytes(long bytes)
+  {
+    return (bytes + (1 << 20) - 1) >> 20;
+  }
+}
@@ -0,0 +1,306 @@
+package app.compression;
+
+import java.util.concurrent.ForkJoinPool;
+
+import app.util.fft.CancellationToken;
+import app.util.fft.FFT;
+import app.util.fft.FFTUtils;
+import app.util.fft.FloatCompression;
+import app.util.fft.OutOfCoreCompression;
+import app.util.fft.TiledCompression;
+
+/**
+ * Admission control for compression jobs by their estimated peak memory.
+ *
+ * The budget is a fraction of Runtime.maxMemory(). plan() estimates the peak memory of the full
+ * compression (GrayImageCompression or FloatCompression) of an image; if it exceeds the budget, a
+ * lower memory mode is chosen: the tiled mode, or the out-of-core mode if the tiles of all
+ * workers do not fit either. reserve() blocks until the memory reserved
+ * by the running jobs leaves room for the job, so large jobs are queued instead of failing with
+ * an OutOfMemoryError. The wait is a ForkJoinPool.ManagedBlocker (the pool may start a spare
+ * thread meanwhile) and ends with a CancellationException when the token of the job is cancelled.
+ *
+ * The estimates count the large arrays only and are meant for sizing, not for accounting.
+ */
+public final class MemoryPlanner
+{
+  public static final double DEFAULT_HEAP_FRACTION = 0.75;
+
+  // a waiting reservation checks its token in this period
+  private static final long CANCEL_CHECK_MS = 100;
+
+  private final long budgetBytes;
+  private final int parallelism;
+  private final TiledCompression tiledCompression;
+
+  // guarded by this
+  private long reservedBytes = 0;
+
+  public MemoryPlanner()
+  {
+    this(Runtime.getRuntime().maxMemory(), DEFAULT_HEAP_FRACTION, Runtime.getRuntime().availableProcessors());
+  }
+
+  // parallelism is the number of tiles processed at the same time in the tiled mode
+  public MemoryPlanner(long maxMemory, double heapFraction, int parallelism)
+  {
+    if (maxMemory <= 0 || heapFraction <= 0.0 || heapFraction > 1.0 || parallelism < 1)
+    {
+      throw new IllegalArgumentException("invalid memory budget");
+    }
+
+    this.budgetBytes = (long) (maxMemory * heapFraction);
+    this.parallelism = parallelism;
+    this.tiledCompression = new TiledCompression();
+  }
+
+  public long getBudgetBytes()
+  {
+    return this.budgetBytes;
+  }
+
+  public synchronized long getReservedBytes()
+  {
+    return this.reservedBytes;
+  }
+
+  // Peak memory of GrayImageCompression for an image: the pixel buffers, the image matrix, the
+  // half spectrum with the absolute values of the threshold selector and the sorted keys of the
+  // coefficient order, the truncated spectrum and the reconstruction, and the spectrum images.
+  public static long estimateFull(int width, int height, boolean padToPowerOf2)
+  {
+    int rows = padToPowerOf2 ? FFTUtils.getNextPowerOf2(width) : width;
+    int cols = padToPowerOf2 ? FFTUtils.getNextPowerOf2(height) : height;
+
+    long pixels = (long) width * height;
+    long real = (long) rows * cols;
+    long half = (long) rows * FFT.getHalfSpectrumLength(cols);
+
+    long pixelBuffers = 12*pixels;
+    long imageMatrix = 8*real;
+    long spectrum = 16*half;
+    long thresholdSelector = 8*half;
+    long coefficientOrder = 2*8*half;                // keys and the buffer of the parallel sort
+    long reconstruction = 16*half + 8*real + 16*half; // including the copy for the inverse FFT
+    long spectrumImages = 8*real + 8*real;
+
+    return pixelBuffers + imageMatrix + spectrum + thresholdSelector + coefficientOrder + reconstruction + spectrumImages;
+  }
+
+  // Memory kept by a GrayImageCompression after its calculations (see SpectrumCache): the half
+  // spectrum, the absolute values of the threshold selector, the keys of the coefficient order,
+  // the truncated spectrum and the reconstruction, the gray pixels and the spectrum image.
+  public static long estimateRetained(int width, int height, boolean padToPowerOf2)
+  {
+    int rows = padToPowerOf2 ? FFTUtils.getNextPowerOf2(width) : width;
+    int cols = padToPowerOf2 ? FFTUtils.getNextPowerOf2(height) : height;
+
+    long pixels = (long) width * height;
+    long real = (long) rows * cols;
+    long half = (long) rows * FFT.getHalfSpectrumLength(cols);
+
+    return 4*pixels + 16*half + 8*half + 8*half + 16*half + 8*real + 4*real;
+  }
+
+  // Peak memory of FloatCompression: the pixel buffers (including the result), the float half
+  // spectrum and the view of the truncated spectrum, the row and column buffers are small
+  public static long estimateFloat(int width, int height, boolean padToPowerOf2)
+  {
+    int rows = padToPowerOf2 ? FFTUtils.getNextPowerOf2(width) : width;
+    int cols = padToPowerOf2 ? FFTUtils.getNextPowerOf2(height) : height;
+
+    long pixels = (long) width * height;
+    long real = (long) rows * cols;
+    return 16*pixels + FloatCompression.getSpectrumBytes(width, height, padToPowerOf2) + 8*real;
+  }
+
+  // Peak memory of the tiled mode: the pixel buffers of the image and one tile per worker
+  public long estimateTiled(int width, int height)
+  {
+    long pixels = (long) width * height;
+    return 16*pixels + this.parallelism * this.tiledCompression.getMemoryPerTile();
+  }
+
+  // Peak memory of the out-of-core mode: the pixel buffers and the rows of one band, the
+  // spectrum itself is kept in memory-mapped files
+  public long estimateOutOfCore(int width, int height)
+  {
+    long pixels = (long) width * height;
+    return 16*pixels + OutOfCoreCompression.getMemoryPerBand(width, height, OutOfCoreCompression.DEFAULT_BAND_ROWS);
+  }
+
+  public long estimate(int width, int height, boolean padToPowerOf2, MemoryPlan.Mode mode)
+  {
+    switch (mode)
+    {
+      case FULL:
+        return estimateFull(width, height, padToPowerOf2);
+      case FLOAT:
+        return estimateFloat(width, height, padToPowerOf2);
+      case TILED:
+        return estimateTiled(width, height);
+      default:
+        return estimateOutOfCore(width, height);
+    }
+  }
+
+  // Chooses the mode for an image and decides whether it can start now. If the requested full
+  // (or float) mode does not fit into the budget, the tiled mode is used, if that does not fit
+  // either, the out-of-core mode.
+  public MemoryPlan plan(int width, int height, boolean padToPowerOf2, MemoryPlan.Mode requestedMode)
+  {
+    return plan(width, height, padToPowerOf2, requestedMode, MemoryPlan.Mode.TILED);
+  }
+
+  // Same as plan(width, height, padToPowerOf2, requestedMode) with the given lower memory mode
+  public synchronized MemoryPlan plan(int width, int height, boolean padToPowerOf2, MemoryPlan.Mode requestedMode, MemoryPlan.Mode fallbackMode)
+  {
+    MemoryPlan.Mode mode = requestedMode;
+    long estimatedBytes = estimate(width, height, padToPowerOf2, mode);
+    if (estimatedBytes > this.budgetBytes && (mode == MemoryPlan.Mode.FULL || mode == MemoryPlan.Mode.FLOAT))
+    {
+      mode = fallbackMode;
+      estimatedBytes = estimate(width, height, padToPowerOf2, mode);
+    }
+    if (estimatedBytes > this.budgetBytes && mode == MemoryPlan.Mode.TILED)
+    {
+      mode = MemoryPlan.Mode.OUT_OF_CORE;
+      estimatedBytes = estimate(width, height, padToPowerOf2, mode);
+    }
+
+    MemoryPlan.Decision decision;
+    if (estimatedBytes > this.budgetBytes)
+      decision = MemoryPlan.Decision.REJECT;
+    else if (this.reservedBytes + estimatedBytes > this.budgetBytes)
+      decision = MemoryPlan.Decision.QUEUE;
+    else
+      decision = MemoryPlan.Decision.ADMIT;
+
+    return new MemoryPlan(width, height, requestedMode, mode, decision, estimatedBytes, this.budgetBytes, this.reservedBytes);
+  }
+
+  // Reserves the memory of the plan, waits while the other reservations leave no room for it.
+  // The reservation must be closed when the job has released its matrices.
+  public Reservation reserve(MemoryPlan plan) throws InterruptedException
+  {
+    return reserve(plan, CancellationToken.NONE);
+  }
+
+  // see reserve(plan), the wait ends with a CancellationException if the token is cancelled
+  public Reservation reserve(MemoryPlan plan, CancellationToken token) throws InterruptedException
+  {
+    long bytes = plan.getEstimatedBytes();
+    if (bytes > this.budgetBytes)
+    {
+      throw new IllegalArgumentException(plan.toString());
+    }
+
+    Admission admission = new Admission(bytes, token);
+    ForkJoinPool.managedBlock(admission);
+    return admission.reservation;
+  }
+
+  // Reserves the bytes if they fit into the budget, otherwise returns null
+  private synchronized Reservation tryReserve(long bytes)
+  {
+    if (this.reservedBytes + bytes > this.budgetBytes)
+      return null;
+
+    this.reservedBytes += bytes;
+    return new Reservation(bytes);
+  }
+
+  // Wait for the memory of a reservation, the token is checked in every period
+  private final class Admission implements ForkJoinPool.ManagedBlocker
+  {
+    private final long bytes;
+    private final CancellationToken token;
+    private Reservation reservation;
+
+    private Admission(long bytes, CancellationToken token)
+    {
+      this.bytes = bytes;
+      this.token = token;
+    }
+
+    @Override
+    public boolean isReleasable()
+    {
+      // a granted reservation is returned also if the token is cancelled meanwhile
+      if (this.reservation == null)
+      {
+        this.token.throwIfCancelled();
+        this.reservation = tryReserve(this.bytes);
+      }
+      return this.reservation != null;
+    }
+
+    @Override
+    public boolean block() throws InterruptedException
+    {
+      synchronized (MemoryPlanner.this)
+      {
+        while (!isReleasable())
+        {
+          MemoryPlanner.this.wait(CANCEL_CHECK_MS);
+        }
+      }
+      return true;
+    }
+  }
+
+  private synchronized void release(long bytes)
+  {
+    this.reservedBytes -= bytes;
+    notifyAll();
+  }
+
+  // Memory reserved for a job, closing it more than once has no effect. The fields are guarded
+  // by the planner.
+  public final class Reservation implements AutoCloseable
+  {
+    private long bytes;
+    private boolean closed = false;
+
+    private Reservation(long bytes)
+    {
+      this.bytes = bytes;
+    }
+
+    public long getBytes()
+    {
+      synchronized (MemoryPlanner.this)
+      {
+        return this.bytes;
+      }
+    }
+
+    // Moves bytes of this reservation into a new reservation, e.g. for the memory a job keeps
+    // after it has finished (see SpectrumCache). Both reservations are closed separately.
+    public Reservation split(long bytes)
+    {
+      synchronized (MemoryPlanner.this)
+      {
+        if (this.closed || bytes < 0 || bytes > this.bytes)
+        {
+          throw new IllegalStateException("cannot split " + bytes + " bytes of " + this.bytes + (this.closed ? " (closed)" : ""));
+        }
+        this.bytes -= bytes;
+        return new Reservation(bytes);
+      }
+    }
+
+    @Override
+    public void close()
+    {
+      synchronized (MemoryPlanner.this)
+      {
+        if (!this.closed)
+        {
+          this.closed = true;
+          release(this.bytes);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,270 @@
+package app.compression;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Cache of the compressions of the last opened images, so re-selecting an image needs neither
+ * decoding nor a transformation.
+ *
+ * The entries are keyed by the file (absolute path, size and modification time) and the
+ * padding; a changed file gets a new key. An entry holds the finished GrayImageCompression (the
+ * spectrum, the threshold selector, the coefficient order and the reconstruction), the gray
+ * pixels and the rendered spectrum image.
+ *
+ * The cache is bounded by the weight of the entries (see MemoryPlanner.estimateRetained()). If
+ * the bound is exceeded the least recently used entries are evicted. The bound can be set with
+ * the system property "spectrum.cache.bytes", the default is a quarter of the heap. Every entry
+ * can hold a MemoryPlanner reservation of its weight, so the planner sees the cached memory;
+ * evictFor() evicts entries until a new job fits into the budget of the planner.
+ *
+ * The disk tier (see SpectrumStore) is independent of this cache.
+ */
+public final class SpectrumCache
+{
+  public static final double DEFAULT_HEAP_FRACTION = 0.25;
+
+  private final long maximumBytes;
+
+  // access order, guarded by this
+  private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long weightBytes = 0;
+  private long hitCount = 0;
+  private long missCount = 0;
+  private long evictionCount = 0;
+
+  public SpectrumCache()
+  {
+    this(Long.getLong("spectrum.cache.bytes", (long) (Runtime.getRuntime().maxMemory() * DEFAULT_HEAP_FRACTION)));
+  }
+
+  public SpectrumCache(long maximumBytes)
+  {
+    if (maximumBytes < 0)
+    {
+      throw new IllegalArgumentException("negative cache size");
+    }
+    this.maximumBytes = maximumBytes;
+  }
+
+  // The cached entry of the key, null if it is not cached
+  public synchronized Entry get(Key key)
+  {
+    Entry entry = this.entries.get(key);
+    if (entry != null)
+      this.hitCount++;
+    else
+      this.missCount++;
+    return entry;
+  }
+
+  // Adds the entry, the least recently used entries are evicted until the bound holds. An entry
+  // larger than the bound is not cached. The reservations of the dropped entries are closed.
+  public void put(Key key, Entry entry)
+  {
+    List<Entry> dropped = new ArrayList<>();
+    synchronized (this)
+    {
+      if (entry.getWeightBytes() > this.maximumBytes)
+      {
+        dropped.add(entry);
+      }
+      else
+      {
+        Entry previous = this.entries.put(key, entry);
+        this.weightBytes += entry.getWeightBytes();
+        if (previous != null)
+        {
+          this.weightBytes -= previous.getWeightBytes();
+          dropped.add(previous);
+        }
+        evictWhile(dropped, () -> this.weightBytes > this.maximumBytes);
+      }
+    }
+    release(dropped);
+  }
+
+  // Evicts least recently used entries until the planner has bytes of its budget left (or the
+  // cache is empty). Returns true if the bytes fit into the free budget.
+  public boolean evictFor(long bytes, MemoryPlanner planner)
+  {
+    while (true)
+    {
+      if (planner.getBudgetBytes() - planner.getReservedBytes() >= bytes)
+        return true;
+
+      List<Entry> dropped = new ArrayList<>();
+      synchronized (this)
+      {
+        evictWhile(dropped, () -> dropped.isEmpty());
+      }
+      if (dropped.isEmpty())
+        return false;
+      release(dropped);
+    }
+  }
+
+  // Removes all entries
+  public void clear()
+  {
+    List<Entry> dropped;
+    synchronized (this)
+    {
+      dropped = new ArrayList<>(this.entries.values());
+      this.entries.clear();
+      this.weightBytes = 0;
+    }
+    release(dropped);
+  }
+
+  public synchronized int size()
+  {
+    return this.entries.size();
+  }
+
+  public synchronized long getWeightBytes()
+  {
+    return this.weightBytes;
+  }
+
+  public synchronized String getStatistics()
+  {
+    return "Spectrum cache: " + this.entries.size() + " images, " + (this.weightBytes >> 20) + " of " + (this.maximumBytes >> 20) + " [MB], "
+        + this.hitCount + " hits, " + this.missCount + " misses, " + this.evictionCount + " evictions";
+  }
+
+  // Removes least recently used entries while the condition holds, the caller holds the lock
+  private void evictWhile(List<Entry> dropped, BooleanSupplier condition)
+  {
+    Iterator<Map.Entry<Key, Entry>> iterator = this.entries.entrySet().iterator();
+    while (iterator.hasNext() && condition.getAsBoolean())
+    {
+      Entry entry = iterator.next().getValue();
+      iterator.remove();
+      this.weightBytes -= entry.getWeightBytes();
+      this.evictionCount++;
+      dropped.add(entry);
+    }
+  }
+
+  // Closes the reservations outside the lock of the cache (they lock the planner)
+  private static void release(List<Entry> dropped)
+  {
+    for (Entry entry : dropped)
+    {
+      if (entry.reservation != null)
+        entry.reservation.close();
+    }
+  }
+
+  /**
+   * Identity of an image file: the absolute path, the size and the modification time, and the
+   * padding of the image matrix.
+   */
+  public static final class Key
+  {
+    private final String path;
+    private final long size;
+    private final long lastModified;
+    private final boolean padToPowerOf2;
+
+    public Key(String path, long size, long lastModified, boolean padToPowerOf2)
+    {
+      this.path = path;
+      this.size = size;
+      this.lastModified = lastModified;
+      this.padToPowerOf2 = padToPowerOf2;
+    }
+
+    public static Key of(File file, boolean padToPowerOf2)
+    {
+      return new Key(file.getAbsolutePath(), file.length(), file.lastModified(), padToPowerOf2);
+    }
+
+    public String getPath()
+    {
+      return this.path;
+    }
+
+    public boolean isPadToPowerOf2()
+    {
+      return this.padToPowerOf2;
+    }
+
+    @Override
+    public boolean equals(Object object)
+    {
+      if (!(object instanceof Key))
+        return false;
+
+      Key key = (Key) object;
+      return this.path.equals(key.path) && this.size == key.size && this.lastModified == key.lastModified
+          && this.padToPowerOf2 == key.padToPowerOf2;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return Objects.hash(this.path, this.size, this.lastModified, this.padToPowerOf2);
+    }
+
+    // Unique text of the key, e.g. for file names (see SpectrumStore)
+    @Override
+    public String toString()
+    {
+      return this.path + "|" + this.size + "|" + this.lastModified + "|" + (this.padToPowerOf2 ? "pad" : "nopad");
+    }
+  }
+
+  /**
+   * A finished compression with its gray pixels and its spectrum image. The reservation (may be
+   * null) is closed when the entry is evicted.
+   */
+  public static final class Entry
+  {
+    private final GrayImageCompression compression;
+    private final int[] grayPixelBuffer;
+    private final BufferedImage spectrumImage;
+    private final long weightBytes;
+    private final MemoryPlanner.Reservation reservation;
+
+    public Entry(GrayImageCompression compression, int[] grayPixelBuffer, BufferedImage spectrumImage, long weightBytes,
+        MemoryPlanner.Reservation reservation)
+    {
+      this.compression = compression;
+      this.grayPixelBuffer = grayPixelBuffer;
+      this.spectrumImage = spectrumImage;
+      this.weightBytes = weightBytes;
+      this.reservation = reservation;
+    }
+
+    public GrayImageCompression getCompression()
+    {
+      return this.compression;
+    }
+
+    // Gray pixels of the image (see GrayImageCompression.getGrayPixelBuffer()), must not be modified
+    public int[] getGrayPixelBuffer()
+    {
+      return this.grayPixelBuffer;
+    }
+
+    // Log scaled spectrum image (see GrayImageCompression.createSpectrumImage()), must not be modified
+    public BufferedImage getSpectrumImage()
+    {
+      return this.spectrumImage;
+    }
+
+    public long getWeightBytes()
+    {
+      return this.weightBytes;
+    }
+  }
+}
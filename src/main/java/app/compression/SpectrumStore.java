@@ -0,0 +1,347 @@
+package app.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import app.util.fft.CancellationToken;
+import app.util.fft.ComplexMatrix;
+import app.util.fft.FFT;
+
+/**
+ * Disk tier of the SpectrumCache: the half spectrum and the gray pixels of an image are kept in
+ * a file per key, so they survive a restart. A stored image is opened without decoding and
+ * without a transformation; only the threshold selector and the coefficient order are
+ * calculated again.
+ *
+ * The files are read and written through memory mappings in segments of whole rows (a single
+ * mapping is limited to 2 GB). A file is written to a temporary file and then moved, so a
+ * partly written file is never read. If the files exceed the capacity, the least recently used
+ * files (by modification time, a read touches the file) are deleted.
+ *
+ * File layout (little endian): magic, version, width, height, rows, cols, the length and the
+ * UTF-8 bytes of the key, the gray values (one byte per pixel), zero bytes up to a multiple of 8
+ * and the half spectrum in the layout of a compact ComplexMatrix.
+ *
+ * The directory is set with the system property "spectrum.store.dir" (default: the directory
+ * fft-spectrum-cache in java.io.tmpdir, an empty value disables the store), the capacity with
+ * "spectrum.store.bytes" (default 4 GB).
+ */
+public final class SpectrumStore
+{
+  private static final int MAGIC = 0x46465453; // "FFTS"
+  private static final int VERSION = 1;
+  private static final String SUFFIX = ".spectrum";
+  private static final long SEGMENT_BYTES = 1L << 30;
+  private static final long DEFAULT_MAXIMUM_BYTES = 4L << 30;
+  private static final int MAXIMUM_KEY_BYTES = 1 << 16;
+
+  private final Path directory;
+  private final long maximumBytes;
+
+  public SpectrumStore(Path directory, long maximumBytes) throws IOException
+  {
+    this.directory = Files.createDirectories(directory);
+    this.maximumBytes = maximumBytes;
+  }
+
+  // The store configured by the system properties, null if it is disabled or the directory can
+  // not be created
+  public static SpectrumStore createDefault()
+  {
+    String directory = System.getProperty("spectrum.store.dir",
+        Paths.get(System.getProperty("java.io.tmpdir"), "fft-spectrum-cache").toString());
+    if (directory.isEmpty())
+      return null;
+
+    try
+    {
+      return new SpectrumStore(Paths.get(directory), Long.getLong("spectrum.store.bytes", DEFAULT_MAXIMUM_BYTES));
+    }
+    catch (IOException exce)
+    {
+      System.err.println("Spectrum store disabled: " + exce);
+      return null;
+    }
+  }
+
+  public Path getDirectory()
+  {
+    return this.directory;
+  }
+
+  // The stored image of the key, null if it is not stored or the file is not a valid store file.
+  // Only the header is read.
+  public Stored find(SpectrumCache.Key key) throws IOException
+  {
+    Path file = fileOf(key);
+    if (!Files.isRegularFile(file))
+      return null;
+
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+    {
+      if (channel.size() < 28)
+        return null;
+
+      ByteBuffer header = ByteBuffer.allocate(28).order(ByteOrder.LITTLE_ENDIAN);
+      readFully(channel, header, 0);
+      header.flip();
+      if (header.getInt() != MAGIC || header.getInt() != VERSION)
+        return null;
+
+      int width = header.getInt();
+      int height = header.getInt();
+      int rows = header.getInt();
+      int cols = header.getInt();
+      int keyLength = header.getInt();
+
+      // the header of a corrupt or foreign file
+      if (width <= 0 || height <= 0 || rows <= 0 || cols <= 0 || (long) width * height > Integer.MAX_VALUE
+          || (long) rows * 2 * FFT.getHalfSpectrumLength(cols) > Integer.MAX_VALUE
+          || keyLength < 0 || keyLength > Math.min(MAXIMUM_KEY_BYTES, channel.size() - 28))
+        return null;
+
+      byte[] keyBytes = new byte[keyLength];
+      readFully(channel, ByteBuffer.wrap(keyBytes), 28);
+
+      // a different key with the same hash, or a truncated file
+      Stored stored = new Stored(file, width, height, rows, cols, 28 + keyBytes.length);
+      if (!new String(keyBytes, StandardCharsets.UTF_8).equals(key.toString()) || channel.size() != stored.getFileBytes())
+        return null;
+
+      Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+      return stored;
+    }
+  }
+
+  // Writes the gray pixels (see GrayImageCompression.getGrayPixelBuffer()) and the half spectrum of
+  // an image, then deletes the least recently used files beyond the capacity. cols is the number of
+  // columns of the (padded) image matrix.
+  public void write(SpectrumCache.Key key, int[] grayPixelBuffer, int width, int height, ComplexMatrix halfSpectrum, int cols) throws IOException
+  {
+    if (!halfSpectrum.isCompact() || halfSpectrum.getCols() != FFT.getHalfSpectrumLength(cols))
+    {
+      throw new IllegalArgumentException("compact half spectrum expected");
+    }
+
+    byte[] keyBytes = key.toString().getBytes(StandardCharsets.UTF_8);
+    Stored stored = new Stored(fileOf(key), width, height, halfSpectrum.getRows(), cols, 28 + keyBytes.length);
+    if (stored.getFileBytes() > this.maximumBytes)
+      return;
+
+    Path tmpFile = Files.createTempFile(this.directory, "spectrum", ".tmp");
+    try
+    {
+      try (FileChannel channel = FileChannel.open(tmpFile, StandardOpenOption.READ, StandardOpenOption.WRITE))
+      {
+        ByteBuffer header = ByteBuffer.allocate(28 + keyBytes.length).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(stored.rows).putInt(cols).putInt(keyBytes.length).put(keyBytes);
+        header.flip();
+        channel.write(header, 0);
+
+        byte[] gray = new byte[width * height];
+        for (int p = 0; p < gray.length; p++)
+        {
+          gray[p] = (byte) grayPixelBuffer[p];
+        }
+        channel.map(FileChannel.MapMode.READ_WRITE, stored.grayOffset, gray.length).put(gray);
+
+        double[] data = halfSpectrum.getData();
+        forEachSegment(channel, FileChannel.MapMode.READ_WRITE, stored, (buffer, from, count) -> buffer.put(data, from, count));
+      }
+      Files.move(tmpFile, stored.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    finally
+    {
+      Files.deleteIfExists(tmpFile);
+    }
+
+    trim();
+  }
+
+  // Deletes the least recently used files until the files fit into the capacity
+  private void trim() throws IOException
+  {
+    Map<Path, FileTime> times = new HashMap<>();
+    long bytes = 0;
+    try (Stream<Path> list = Files.list(this.directory))
+    {
+      for (Path file : (Iterable<Path>) list::iterator)
+      {
+        if (!file.getFileName().toString().endsWith(SUFFIX))
+          continue;
+        try
+        {
+          times.put(file, Files.getLastModifiedTime(file));
+          bytes += Files.size(file);
+        }
+        catch (NoSuchFileException exce)
+        {
+          // deleted concurrently
+        }
+      }
+    }
+
+    List<Path> files = new ArrayList<>(times.keySet());
+    files.sort(Comparator.comparing(times::get));
+    for (int i = 0; i < files.size() && bytes > this.maximumBytes; i++)
+    {
+      try
+      {
+        long size = Files.size(files.get(i));
+        Files.delete(files.get(i));
+        bytes -= size;
+      }
+      catch (NoSuchFileException exce)
+      {
+        // deleted concurrently
+      }
+    }
+  }
+
+  private Path fileOf(SpectrumCache.Key key)
+  {
+    try
+    {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.toString().getBytes(StandardCharsets.UTF_8));
+      StringBuilder name = new StringBuilder();
+      for (int i = 0; i < 16; i++)
+      {
+        name.append(String.format("%02x", digest[i]));
+      }
+      return this.directory.resolve(name.append(SUFFIX).toString());
+    }
+    catch (NoSuchAlgorithmException exce)
+    {
+      throw new IllegalStateException(exce);
+    }
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+  {
+    while (buffer.hasRemaining())
+    {
+      int read = channel.read(buffer, position);
+      if (read < 0)
+        throw new IOException("unexpected end of file");
+      position += read;
+    }
+  }
+
+  // Copies the doubles of one mapped segment
+  private interface SegmentCopy
+  {
+    void copy(DoubleBuffer buffer, int from, int count);
+  }
+
+  // Maps the spectrum in segments of whole rows
+  private static void forEachSegment(FileChannel channel, FileChannel.MapMode mode, Stored stored, SegmentCopy copy) throws IOException
+  {
+    int rowDoubles = 2 * FFT.getHalfSpectrumLength(stored.cols);
+    int segmentRows = (int) Math.max(1, SEGMENT_BYTES / (8L * rowDoubles));
+    for (int row = 0; row < stored.rows; row += segmentRows)
+    {
+      int count = Math.min(segmentRows, stored.rows - row) * rowDoubles;
+      long position = stored.spectrumOffset + 8L * row * rowDoubles;
+      MappedByteBuffer buffer = channel.map(mode, position, 8L * count);
+      copy.copy(buffer.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer(), row * rowDoubles, count);
+    }
+  }
+
+  /**
+   * An image in the store: the sizes from the header and the reading of the data.
+   */
+  public static final class Stored
+  {
+    private final Path file;
+    private final int width;
+    private final int height;
+    private final int rows;
+    private final int cols;
+    private final long grayOffset;
+    private final long spectrumOffset;
+
+    private Stored(Path file, int width, int height, int rows, int cols, long headerBytes)
+    {
+      this.file = file;
+      this.width = width;
+      this.height = height;
+      this.rows = rows;
+      this.cols = cols;
+      this.grayOffset = headerBytes;
+      this.spectrumOffset = (headerBytes + (long) width * height + 7) & ~7L;
+    }
+
+    public int getWidth()
+    {
+      return this.width;
+    }
+
+    public int getHeight()
+    {
+      return this.height;
+    }
+
+    // Columns of the (padded) image matrix
+    public int getCols()
+    {
+      return this.cols;
+    }
+
+    private long getFileBytes()
+    {
+      return this.spectrumOffset + 16L * this.rows * FFT.getHalfSpectrumLength(this.cols);
+    }
+
+    // Gray pixel buffer of the image (see GrayImageCompression.getGrayPixelBuffer())
+    public int[] readGrayPixelBuffer() throws IOException
+    {
+      try (FileChannel channel = FileChannel.open(this.file, StandardOpenOption.READ))
+      {
+        byte[] gray = new byte[this.width * this.height];
+        channel.map(FileChannel.MapMode.READ_ONLY, this.grayOffset, gray.length).get(gray);
+        int[] pixelBuffer = new int[gray.length];
+        for (int p = 0; p < pixelBuffer.length; p++)
+        {
+          int value = gray[p] & 0xff;
+          pixelBuffer[p] = (value << 16) + (value << 8) + value;
+        }
+        return pixelBuffer;
+      }
+    }
+
+    // Half spectrum of the image matrix, the token is checked for every segment
+    public ComplexMatrix readHalfSpectrum(CancellationToken token) throws IOException
+    {
+      ComplexMatrix halfSpectrum = new ComplexMatrix(this.rows, FFT.getHalfSpectrumLength(this.cols));
+      double[] data = halfSpectrum.getData();
+      try (FileChannel channel = FileChannel.open(this.file, StandardOpenOption.READ))
+      {
+        forEachSegment(channel, FileChannel.MapMode.READ_ONLY, this, (buffer, from, count) -> {
+          token.throwIfCancelled();
+          buffer.get(data, from, count);
+        });
+      }
+      return halfSpectrum;
+    }
+  }
+}
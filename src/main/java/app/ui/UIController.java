@@ -1,45 +1,53 @@
 package app.ui;
 
-import static app.util.fft.FFT.fft2;
-import static app.util.fft.FFT.ifft2;
-import static app.util.fft.FFTUtils.createSubMatrix;
-import static app.util.fft.FFTUtils.getAbsValuesOfMatrix;
-import static app.util.fft.FFTUtils.getLogScaledBufferedImageForMatix;
-import static app.util.fft.FFTUtils.getPaddedPowerOf2MatrixForPixelBuffer;
-import static app.util.fft.FFTUtils.getSortedElements;
-import static app.util.fft.FFTUtils.getPixelBufferFor;
-import static app.util.fft.FFTUtils.shiftAbsFourierKoef;
 import static app.util.fft.FFTUtils.createNewGrayScaleBuffer;
 
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.URL;
 import java.nio.IntBuffer;
-import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.ResourceBundle;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 
-import app.util.fft.FFTUtils;
+import app.compression.GrayImageCompression;
+import app.compression.MemoryPlan;
+import app.compression.MemoryPlanner;
+import app.compression.SpectrumCache;
+import app.compression.SpectrumStore;
+import app.util.fft.CancellationToken;
+import app.util.fft.ColorCompression;
+import app.util.fft.FFTPlanCache;
+import app.util.fft.FloatCompression;
+import app.util.fft.OutOfCoreCompression;
+import app.util.fft.Parallelism;
+import app.util.fft.TiledCompression;
+import app.util.image.Rasters;
 import app.util.ui.FileIOHelper;
+import app.util.ui.ImageHelper;
+import app.util.ui.ImageLoader;
 import app.util.ui.PreviewImage;
+import app.util.ui.ThumbnailCache;
+import app.util.ui.ThumbnailCell;
+import app.util.ui.ThumbnailPublisher;
 import javafx.application.Platform;
-import javafx.embed.swing.SwingFXUtils;
-import javafx.event.EventHandler;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
 import javafx.fxml.Initializable;
 import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
 import javafx.scene.control.Label;
+import javafx.scene.control.ListView;
 import javafx.scene.control.Slider;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
@@ -48,7 +56,6 @@ import javafx.scene.image.WritablePixelFormat;
 import javafx.scene.input.MouseButton;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.BorderPane;
-import javafx.scene.layout.HBox;
 import javafx.scene.layout.VBox;
 import javafx.scene.paint.Color;
 import javafx.scene.paint.CycleMethod;
@@ -56,6 +63,7 @@ import javafx.scene.paint.LinearGradient;
 import javafx.scene.paint.Stop;
 import javafx.scene.shape.Rectangle;
 import javafx.stage.DirectoryChooser;
+import javafx.stage.FileChooser;
 import tool.hal.CpuInfoPublisher;
 
 /**
@@ -85,20 +93,37 @@ public class UIController implements Initializable
   private ImageView fftTruncKoefImageView;
 
   @FXML
-  private HBox imageBox;
+  private ListView<File> gallery;
 
   @FXML
   private Button startBtn;
 
+  @FXML
+  private CheckBox padCheckBox;
+  @FXML
+  private CheckBox tiledCheckBox;
+  @FXML
+  private CheckBox floatCheckBox;
+  @FXML
+  private CheckBox colorCheckBox;
+  @FXML
+  private CheckBox subsamplingCheckBox;
+
   @FXML
   private Slider qualitySlider;
   @FXML
   private Label qualityValue;
+  @FXML
+  private Slider chromaSlider;
+  @FXML
+  private Label chromaValue;
 
   @FXML
   private Rectangle cpuLoadBar;
   @FXML
   private Label cpuLabel;
+  @FXML
+  private Label memoryLabel;
 
   // Progress indicator
   private BorderPane progress;
@@ -106,13 +131,44 @@ public class UIController implements Initializable
 
   // Loading flags, controlling async tasks
   private final AtomicBoolean isCalculatingImage = new AtomicBoolean(false);
-  private final AtomicBoolean timeOutExceptionOccured = new AtomicBoolean(false);
+
+  // Cancellation of the calculations of the current image and of the last applyFFT(). A timeout
+  // cancels the token, the FFT loops stop within a few rows and the next image can be opened.
+  private volatile CancellationToken imageToken = new CancellationToken();
+  private volatile CancellationToken applyToken = new CancellationToken();
   
-  // FFT-Variables
-  private double[][] fftMatrix;
-  private double[][] fftMatrixAbsValue;
-  private CompletableFuture<List<Double>> sortedKoefCF;
-  private double maxValueCF;
+  // FFT-Variables (spectrum and reconstruction of the gray image)
+  private volatile GrayImageCompression compression;
+
+  // Memory admission: the memory of the current image is reserved until the next image is opened
+  private final MemoryPlanner memoryPlanner = new MemoryPlanner();
+  private volatile MemoryPlanner.Reservation reservation;
+  private final Object reservationLock = new Object();
+
+  // Spectrum cache: the compressions of the last opened gray images in memory, their spectra on
+  // disk (null if the store is disabled). Re-selecting an image needs no transformation.
+  private final SpectrumCache spectrumCache = new SpectrumCache();
+  private final SpectrumStore spectrumStore = SpectrumStore.createDefault();
+
+  // Gallery: the thumbnails are loaded lazily for the visible cells, in memory and on disk
+  private final ThumbnailCache thumbnailCache = new ThumbnailCache();
+
+  // Streams the thumbnails of the opened folder to the gallery cells (only used in the JavaFX thread)
+  private final List<ThumbnailCell> galleryCells = new ArrayList<>();
+  private ThumbnailPublisher thumbnailPublisher;
+
+  // Tiled mode: large images are compressed tile by tile without a spectrum of the whole image,
+  // or out-of-core with the spectrum in memory-mapped files if the tiles do not fit either
+  private boolean tiledMode;
+  private boolean outOfCoreMode;
+  private int[] grayPixelBuffer;
+
+  // Float mode: the spectrum is calculated in single precision by applyFFT() (no spectrum view)
+  private boolean floatMode;
+
+  // Color mode: the YCbCr channels are compressed separately
+  private boolean colorMode;
+  private int[] colorPixelBuffer;
   
 //FFT-Worker Pools
  private volatile ForkJoinPool workerPool = null;
@@ -129,39 +185,69 @@ public class UIController implements Initializable
 
     if (file != null && file.isDirectory())
     {
-      // Delete old image content
-      imageBox.getChildren().clear();
-
       long time = System.nanoTime();
-      List<ImageView> imageViews = FileIOHelper.loadPreViewImages(file);
-      System.out.println("Time to load preview images : " + (System.nanoTime() - time)/1_000_000 + " [ms]");
+      List<File> imageFiles = FileIOHelper.listImageFiles(file);
+      this.gallery.getItems().setAll(imageFiles);
+      this.gallery.scrollTo(0);
+      System.out.println("Time to list " + imageFiles.size() + " images : " + (System.nanoTime() - time)/1_000_000 + " [ms]");
+
+      // prefetch the thumbnails around the visible files, the loading of the last folder is stopped
+      if (this.thumbnailPublisher != null)
+        this.thumbnailPublisher.close();
+      this.thumbnailPublisher = new ThumbnailPublisher(imageFiles, this.thumbnailCache, ImageLoader.getInstance().getExecutor());
+      this.thumbnailPublisher.subscribe(this::showThumbnails, Platform::runLater);
+      updateVisibleRange();
+      this.thumbnailPublisher.start();
+    }
+  }
+
+  // Passes the indices of the visible files of the gallery to the prefetching
+  private void updateVisibleRange()
+  {
+    if (this.thumbnailPublisher == null)
+      return;
 
-      for (ImageView imageView : imageViews)
+    int first = Integer.MAX_VALUE;
+    int last = -1;
+    for (ThumbnailCell cell : this.galleryCells)
+    {
+      if (cell.isVisible() && cell.getIndex() >= 0 && cell.getIndex() < this.gallery.getItems().size())
       {
-        imageView.setOnMouseClicked(new EventHandler<MouseEvent>()
-        {
-          @Override
-          public void handle(MouseEvent mouseEvent)
-          {
-            if( isCalculatingImage.get() ) return;
-            
-            if (mouseEvent.getButton().equals(MouseButton.PRIMARY))
-            {
-              if (mouseEvent.getClickCount() == 1)
-              {
-                isCalculatingImage.set(true);
-                fftImageView.setImage(null);
-                fftKoefImageView.setImage(null);
-                fftTruncKoefImageView.setImage(null);
-                File file = ((PreviewImage) imageView.getImage()).getFile();
-                loadImageConvertToGrayScaleAndCalculateFourierCoeffiecents(file);
-              }
-            }
-          }
-        });
+        first = Math.min(first, cell.getIndex());
+        last = Math.max(last, cell.getIndex());
+      }
+    }
+    if (last >= 0)
+      this.thumbnailPublisher.setVisibleRange(first, last);
+  }
+
+  // Shows a batch of streamed thumbnails in the cells that are still waiting for them
+  private void showThumbnails(List<PreviewImage> thumbnails)
+  {
+    for (ThumbnailCell cell : this.galleryCells)
+    {
+      for (PreviewImage thumbnail : thumbnails)
+      {
+        cell.showThumbnail(thumbnail);
       }
+    }
+  }
+
+  // Opens the image of a gallery cell
+  private void selectImage(File file, MouseEvent mouseEvent)
+  {
+    if( isCalculatingImage.get() ) return;
 
-      this.imageBox.getChildren().addAll(imageViews);
+    if (mouseEvent.getButton().equals(MouseButton.PRIMARY))
+    {
+      if (mouseEvent.getClickCount() == 1)
+      {
+        isCalculatingImage.set(true);
+        fftImageView.setImage(null);
+        fftKoefImageView.setImage(null);
+        fftTruncKoefImageView.setImage(null);
+        loadImageConvertToGrayScaleAndCalculateFourierCoeffiecents(file);
+      }
     }
   }
 
@@ -172,34 +258,52 @@ public class UIController implements Initializable
     if (this.mainImageView.getImage() == null)
       return;
 
-    if( this.timeOutExceptionOccured.get() )
+    if (this.compression == null && !this.tiledMode && !this.floatMode && !this.colorMode)
       return;
     
     this.showProgressIndicatorCalculateReducedImage();
  
     double compressRate = this.qualitySlider.getValue();
+
+    // Token for interrupting the asyncronous calculations, a running update is cancelled
+    this.applyToken.cancel();
+    CancellationToken token = new CancellationToken();
+    this.applyToken = token;
     
-    // Control variable for interrupting the asyncronous calculations
-    AtomicBoolean isCancelled = new AtomicBoolean(false);
+    if (this.tiledMode)
+    {
+      applyTiledCompression(compressRate, token);
+      return;
+    }
+
+    if (this.floatMode)
+    {
+      applyFloatCompression(compressRate, token);
+      return;
+    }
+
+    if (this.colorMode)
+    {
+      applyColorCompression(compressRate, this.chromaSlider.getValue(), this.subsamplingCheckBox.isSelected(), token);
+      return;
+    }
 
-    CompletableFuture<double[][]> fftTruncatedMatrix = CompletableFuture.supplyAsync(() -> {
-      List<Double> sortedElement = this.sortedKoefCF.join();
-      int thresholdPos = (int) (compressRate * sortedElement.size());
-      double threshold = sortedElement.get(thresholdPos);
-      return FFTUtils.createTruncatedMatrix(this.fftMatrix, threshold);});
+    // the truncated spectrum and its iFFT are updated incrementally from the last compression rate.
+    // The reconstruction runs on fftWorkerPool2, the spectrum view on the workerPool.
+    GrayImageCompression compression = this.compression;
+    CompletableFuture<GrayImageCompression> fftTruncatedMatrix = CompletableFuture.supplyAsync(() -> {
+      compression.update(compressRate, token);
+      return compression;}, this.fftWorkerPool2);
 
  
     // split task 1 from fftTruncatedMatrix
-    CompletableFuture<?> task1 = fftTruncatedMatrix.thenApplyAsync(fftTruncMatrix -> {
-      double[][] fftTruncatedMatrixAbsValue = getAbsValuesOfMatrix(fftTruncMatrix);
-      if( isCancelled.get() )  return null; 
-      double[][] fftTruncatedMatrixAbsValueShifted = shiftAbsFourierKoef(fftTruncatedMatrixAbsValue);
-      if( isCancelled.get() )  return null; 
-      BufferedImage fftTruncatedImage = getLogScaledBufferedImageForMatix(fftTruncatedMatrixAbsValueShifted, this.maxValueCF);
-      return fftTruncatedImage;
-    }).thenAcceptAsync(fftTruncatedImage -> this.fftTruncKoefImageView.setImage(SwingFXUtils.toFXImage(fftTruncatedImage, null)), Platform::runLater)
+    CompletableFuture<?> task1 = fftTruncatedMatrix.thenApplyAsync(truncatedCompression -> {
+      if( token.isCancelled() )  return null; 
+      BufferedImage fftTruncatedImage = truncatedCompression.createTruncatedSpectrumImage();
+      return ImageHelper.toFXImage(Rasters.getPixels(fftTruncatedImage), fftTruncatedImage.getWidth(), fftTruncatedImage.getHeight());
+    }, this.workerPool).thenAcceptAsync(fftTruncatedImage -> this.fftTruncKoefImageView.setImage(fftTruncatedImage), Platform::runLater)
         .orTimeout(20, TimeUnit.SECONDS).exceptionally(exce -> {
-          isCancelled.set(true);
+          token.cancel();
           exce.printStackTrace();
           return (Void) null;
         });
@@ -210,28 +314,15 @@ public class UIController implements Initializable
     int height = (int) image.getHeight();
     
     // split task 2 from fftTruncatedMatrix
-    CompletableFuture<?> task2 = fftTruncatedMatrix.thenApplyAsync(fftTruncMatrix -> {
-      double[][] ifftReducedImageMatrix = ifft2(fftTruncMatrix);
-      if( isCancelled.get() )  return null; 
-      double[][] ifftReducedImageMatrixPadded = createSubMatrix(ifftReducedImageMatrix, width, height);
-      if( isCancelled.get() )  return null; 
-      double[][] ifftReducedImageMatrixPaddedAbsValue = getAbsValuesOfMatrix(ifftReducedImageMatrixPadded);
-      if( isCancelled.get() )  return null; 
+    CompletableFuture<?> task2 = fftTruncatedMatrix.thenApplyAsync(truncatedCompression -> {
+      if( token.isCancelled() )  return null; 
       
-      int[] pixelBuffer = getPixelBufferFor(ifftReducedImageMatrixPaddedAbsValue);
-      BufferedImage imageOut = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB); // Create new image
-      for (int i = 0; i < pixelBuffer.length; i++)
-      {
-        int argb = pixelBuffer[i];
-        int x = i % width;
-        int y = i / width;
-        imageOut.setRGB(x, y, argb);
-      }
-      return imageOut;
-    }).thenAcceptAsync(imageOut -> this.fftImageView.setImage(SwingFXUtils.toFXImage(imageOut, null)), Platform::runLater)
+      int[] pixelBuffer = truncatedCompression.createReconstructedPixelBuffer();
+      return ImageHelper.toFXImageFromRGB(pixelBuffer, width, height);
+    }, this.fftWorkerPool2).thenAcceptAsync(imageOut -> this.fftImageView.setImage(imageOut), Platform::runLater)
         .orTimeout(20, TimeUnit.SECONDS)
         .exceptionally(exce -> {
-          isCancelled.set(true);
+          token.cancel();
           exce.printStackTrace();
           return (Void) null;
         });
@@ -241,6 +332,149 @@ public class UIController implements Initializable
   }
 
 
+  // Only the reconstructed image is shown, there is no spectrum of the whole image (also in
+  // out-of-core mode)
+  private void applyTiledCompression(double compressRate, CancellationToken token)
+  {
+    Image image = this.mainImageView.getImage();
+    int width = (int) image.getWidth();
+    int height = (int) image.getHeight();
+    int[] grayPixelBuffer = this.grayPixelBuffer;
+    boolean outOfCore = this.outOfCoreMode;
+
+    CompletableFuture.supplyAsync(() -> {
+      long time = System.nanoTime();
+      int[] pixelBuffer;
+      if (outOfCore)
+      {
+        try
+        {
+          OutOfCoreCompression outOfCoreCompression = new OutOfCoreCompression(Paths.get(System.getProperty("java.io.tmpdir")));
+          pixelBuffer = outOfCoreCompression.compress(grayPixelBuffer, width, height, compressRate, token);
+        }
+        catch (IOException exce)
+        {
+          throw new UncheckedIOException(exce);
+        }
+        System.out.println("Time for out-of-core compression : " + (System.nanoTime() - time)/1_000_000 + " [ms]");
+      }
+      else
+      {
+        TiledCompression tiledCompression = new TiledCompression();
+        pixelBuffer = tiledCompression.compress(grayPixelBuffer, width, height, compressRate, token);
+        System.out.println("Time for tiled compression (" + tiledCompression.getTileCount(width, height) + " tiles) : "
+            + (System.nanoTime() - time)/1_000_000 + " [ms]");
+      }
+
+      return ImageHelper.toFXImageFromRGB(pixelBuffer, width, height);
+    }, this.workerPool).thenAcceptAsync(imageOut -> {
+      this.fftImageView.setImage(imageOut);
+      this.fftTruncKoefImageView.setImage(null);
+    }, Platform::runLater)
+      .orTimeout(20, TimeUnit.SECONDS)
+      .exceptionally(exce -> {
+        token.cancel();
+        exce.printStackTrace();
+        return (Void) null;
+      })
+      .handleAsync((val,exce) -> closeProgressIndicatorCalculateReducedImage() , Platform::runLater);
+  }
+
+  // The reconstructed image and the truncated spectrum are shown, the float spectrum is not kept
+  // between two runs, so there is no view of the whole spectrum
+  private void applyFloatCompression(double compressRate, CancellationToken token)
+  {
+    Image image = this.mainImageView.getImage();
+    int width = (int) image.getWidth();
+    int height = (int) image.getHeight();
+    int[] grayPixelBuffer = this.grayPixelBuffer;
+    FloatCompression floatCompression = new FloatCompression(this.padCheckBox.isSelected());
+
+    CompletableFuture.supplyAsync(() -> {
+      long time = System.nanoTime();
+      BufferedImage spectrumImage = Rasters.createImage(floatCompression.getRows(width), floatCompression.getCols(height));
+      int[] pixelBuffer = Parallelism.invoke(this.fftWorkerPool2,
+          () -> floatCompression.compress(grayPixelBuffer, width, height, compressRate, Rasters.getPixels(spectrumImage), token));
+      System.out.println("Time for float compression : " + (System.nanoTime() - time)/1_000_000 + " [ms]");
+
+      return new Image[] {
+          ImageHelper.toFXImageFromRGB(pixelBuffer, width, height),
+          ImageHelper.toFXImage(Rasters.getPixels(spectrumImage), spectrumImage.getWidth(), spectrumImage.getHeight()) };
+    }, this.workerPool).thenAcceptAsync(images -> {
+      this.fftImageView.setImage(images[0]);
+      this.fftTruncKoefImageView.setImage(images[1]);
+    }, Platform::runLater)
+      .orTimeout(20, TimeUnit.SECONDS)
+      .exceptionally(exce -> {
+        token.cancel();
+        exce.printStackTrace();
+        return (Void) null;
+      })
+      .handleAsync((val,exce) -> closeProgressIndicatorCalculateReducedImage() , Platform::runLater);
+  }
+
+  // The luma channel is calculated on fftWorkerPool1, the chroma channels on fftWorkerPool2
+  private void applyColorCompression(double lumaRate, double chromaRate, boolean chromaSubsampling, CancellationToken token)
+  {
+    Image image = this.mainImageView.getImage();
+    int width = (int) image.getWidth();
+    int height = (int) image.getHeight();
+    int[] colorPixelBuffer = this.colorPixelBuffer;
+
+    CompletableFuture.supplyAsync(() -> {
+      ColorCompression colorCompression = new ColorCompression(lumaRate, chromaRate, chromaSubsampling);
+      long time = System.nanoTime();
+      BufferedImage imageOut = colorCompression.compress(colorPixelBuffer, width, height, this.fftWorkerPool1, this.fftWorkerPool2, token);
+      System.out.println("Time for color compression : " + (System.nanoTime() - time)/1_000_000 + " [ms]");
+      return ImageHelper.toFXImage(Rasters.getPixels(imageOut), imageOut.getWidth(), imageOut.getHeight());
+    }, this.workerPool).thenAcceptAsync(imageOut -> {
+      this.fftImageView.setImage(imageOut);
+      this.fftTruncKoefImageView.setImage(null);
+    }, Platform::runLater)
+      .orTimeout(20, TimeUnit.SECONDS)
+      .exceptionally(exce -> {
+        token.cancel();
+        exce.printStackTrace();
+        return (Void) null;
+      })
+      .handleAsync((val,exce) -> closeProgressIndicatorCalculateReducedImage() , Platform::runLater);
+  }
+
+  // Writes the truncated spectrum of the last compression to a file
+  @FXML
+  public void save()
+  {
+    GrayImageCompression compression = this.compression;
+    if (this.mainImageView.getImage() == null || compression == null)
+      return;
+
+    FileChooser fileChooser = new FileChooser();
+    fileChooser.setTitle("Save Compressed Image");
+    fileChooser.setInitialDirectory(Paths.get(".").toFile());
+    fileChooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("Compressed spectrum", "*.fftc"));
+    File file = fileChooser.showSaveDialog(mainWindow.getScene().getWindow());
+    if (file == null)
+      return;
+
+    double compressRate = this.qualitySlider.getValue();
+
+    CompletableFuture.runAsync(() -> {
+      try
+      {
+        long bytes = compression.save(file.toPath(), compressRate);
+        System.out.println("Saved " + file + " : " + bytes + " bytes (" + (compression.getWidth() * compression.getHeight()) + " pixels)");
+      }
+      catch (IOException exce)
+      {
+        throw new UncheckedIOException(exce);
+      }
+    }, this.workerPool).exceptionally(exce -> {
+      exce.printStackTrace();
+      return (Void) null;
+    });
+  }
+
+
   @FXML
   public void exit()
   {
@@ -262,12 +496,32 @@ public class UIController implements Initializable
       this.workerPool = new ForkJoinPool( Math.max(1, numOfProc-1) );
       this.fftWorkerPool1 = new ForkJoinPool( Math.max(1, numOfProc/2 - 1) );
       this.fftWorkerPool2 = new ForkJoinPool( Math.max(1, numOfProc/2 - 1) );
+      try
+      {
+        this.thumbnailCache.trim();
+      }
+      catch (IOException exce)
+      {
+        exce.printStackTrace();
+      }
     } );
     
     this.startBtn.setDisable(true);
+    this.gallery.setCellFactory(listView -> {
+      ThumbnailCell cell = new ThumbnailCell(this.thumbnailCache, ImageLoader.getInstance().getExecutor());
+      cell.setOnMouseClicked(mouseEvent -> {
+        if (cell.getItem() != null)
+          selectImage(cell.getItem(), mouseEvent);
+      });
+      // the cells get other indices while the gallery is scrolled
+      cell.indexProperty().addListener((observable, oldIndex, newIndex) -> updateVisibleRange());
+      this.galleryCells.add(cell);
+      return cell;
+    });
     this.cpuLoadBar.setFill(Color.GREEN);
 
     this.qualityValue.textProperty().bind(qualitySlider.valueProperty().asString("%6.2f"));
+    this.chromaValue.textProperty().bind(chromaSlider.valueProperty().asString("%6.2f"));
 
     try
     {
@@ -311,87 +565,346 @@ public class UIController implements Initializable
   // Callback-Method:  called if an image is selected in the preview list
   private void loadImageConvertToGrayScaleAndCalculateFourierCoeffiecents(File file)
   {   
-    try
+    this.startBtn.setDisable(true);
+    
+    // the calculations of the previous image are stopped
+    this.imageToken.cancel();
+    this.applyToken.cancel();
+    CancellationToken token = new CancellationToken();
+    this.imageToken = token;
+
+    // Padding is optional, the FFT handles arbitrary sizes
+    boolean padToPowerOf2 = this.padCheckBox.isSelected();
+
+    // Only the full gray mode is cached. A cached compression is shown at once, a stored spectrum
+    // replaces the decoding and the transformation.
+    boolean cacheable = !this.tiledCheckBox.isSelected() && !this.floatCheckBox.isSelected() && !this.colorCheckBox.isSelected();
+    SpectrumCache.Key key = SpectrumCache.Key.of(file, padToPowerOf2);
+    if (cacheable)
     {
-      this.startBtn.setDisable(true);
-      
-      this.timeOutExceptionOccured.set(false);
-      
-      byte[] bytes = Files.readAllBytes(Paths.get(file.getAbsolutePath()));
-      InputStream iStream = new ByteArrayInputStream(bytes);
-      Image image = new Image(iStream);
+      SpectrumCache.Entry entry = this.spectrumCache.get(key);
+      if (entry != null)
+      {
+        showCachedImage(entry);
+        return;
+      }
+    }
+    SpectrumStore.Stored stored = cacheable ? findStoredSpectrum(key) : null;
+    if (stored != null)
+    {
+      showImage(file, token, key, cacheable, padToPowerOf2, stored, null);
+      return;
+    }
+
+    // the image is decoded off the JavaFX thread, ahead of the decodes of the gallery
+    ImageLoader.getInstance().load(file.toPath(), Image::new, true)
+      .thenAcceptAsync(image -> {
+        if (this.imageToken == token)
+          showImage(file, token, key, cacheable, padToPowerOf2, null, image);
+      }, Platform::runLater)
+      .exceptionally(exce -> {
+        exce.printStackTrace();
+        isCalculatingImage.set(false);
+        return null;
+      });
+  }
 
+  // Shows the decoded image (or the image of the stored spectrum) and starts the transformation
+  private void showImage(File file, CancellationToken token, SpectrumCache.Key key, boolean cacheable, boolean padToPowerOf2,
+      SpectrumStore.Stored stored, Image image)
+  {
+    int width;
+    int height;
+    int[] pixelBuffer;
+    CompletableFuture<int[]> calculateGrayPixelBuffer;
+    if (stored != null)
+    {
+      width = stored.getWidth();
+      height = stored.getHeight();
+      pixelBuffer = null;
+      calculateGrayPixelBuffer = CompletableFuture.supplyAsync(() -> {
+        try
+        {
+          return stored.readGrayPixelBuffer();
+        }
+        catch (IOException exce)
+        {
+          throw new UncheckedIOException(exce);
+        }
+      }, this.workerPool);
+    }
+    else
+    {
       PixelReader pReader = image.getPixelReader();
-      int width = (int) image.getWidth();
-      int height = (int) image.getHeight();
-      int[] pixelBuffer = new int[width * height];
-      
-      System.out.println("Image size " + width + " x " + height + " (" + (width * height) + ") pixels");
+      width = (int) image.getWidth();
+      height = (int) image.getHeight();
+      pixelBuffer = new int[width * height];
 
-      CompletableFuture<int[]> calculateGrayPixelBuffer = CompletableFuture.supplyAsync(() ->
+      calculateGrayPixelBuffer = CompletableFuture.supplyAsync(() ->
       {
         WritablePixelFormat<IntBuffer> format = WritablePixelFormat.getIntArgbInstance();
         pReader.getPixels(0, 0, width, height, format, pixelBuffer, 0, width);
-  
+
         int[] grayPixelBuffer = createNewGrayScaleBuffer(pixelBuffer);
         return grayPixelBuffer;
-      } );
-      
-      showProgressIndicatorCalculateFFT();
-      
-     // Control variable for interrupting the calculation task2
-      AtomicBoolean isCancelled = new AtomicBoolean(false);
-      
-      calculateGrayPixelBuffer.thenApplyAsync( (grayPixelBuffer)  -> {
-        double[][] imageMatrix = getPaddedPowerOf2MatrixForPixelBuffer(grayPixelBuffer, width, height);
-        this.fftMatrix = fft2(imageMatrix);
-        if( isCancelled.get() ) return null;
-        this.fftMatrixAbsValue = getAbsValuesOfMatrix(fftMatrix);
-        
-        if( isCancelled.get() ) return null;
-        this.sortedKoefCF = CompletableFuture.supplyAsync(() -> getSortedElements(fftMatrixAbsValue));
-
-        if( isCancelled.get() ) return null;
-        double[][] fftMatrixAbsValueShifted = FFTUtils.shiftAbsFourierKoef(fftMatrixAbsValue);
-
-        this.maxValueCF = this.sortedKoefCF.join().get(this.sortedKoefCF.join().size() - 1);
-        if( isCancelled.get() ) return null;
-        BufferedImage fftBufferedImage = getLogScaledBufferedImageForMatix(fftMatrixAbsValueShifted, this.maxValueCF);
-        return fftBufferedImage;
-      }, this.workerPool).thenAcceptAsync(fftBufferedImage -> this.fftKoefImageView.setImage(SwingFXUtils.toFXImage(fftBufferedImage, null)), Platform::runLater)
-        .thenRunAsync( () -> { this.startBtn.setDisable(false); closeProgressIndicatorCalculateFFT();}, Platform::runLater)
-        .thenRunAsync( () -> isCalculatingImage.set(false) )
-        .orTimeout(20, TimeUnit.SECONDS )
-        .exceptionally(exce -> {
-            isCancelled.set(true);
-            this.timeOutExceptionOccured.set(true);
-            exce.printStackTrace();
-            isCalculatingImage.set(false);
-            CompletableFuture.runAsync(() -> closeProgressIndicatorCalculateFFT(), Platform::runLater);
-            return null;
-          });
-
-      int[] grayPixelBuffer = calculateGrayPixelBuffer.join();
-      BufferedImage imageOut = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB); // Erzeuge neues Bild
-      for (int i = 0; i < pixelBuffer.length; i++)
+      }, this.workerPool);
+    }
+
+    System.out.println("Image size " + width + " x " + height + " (" + (width * height) + ") pixels" + ((stored != null) ? ", spectrum stored" : ""));
+
+    showProgressIndicatorCalculateFFT();
+
+    // The memory of the previous image is released. If the spectrum of the whole image does not
+    // fit into the heap, the tiled mode (or the out-of-core mode) is used.
+    releaseReservation();
+    MemoryPlan.Mode requestedMode = MemoryPlan.Mode.FULL;
+    if (this.tiledCheckBox.isSelected())
+      requestedMode = MemoryPlan.Mode.TILED;
+    else if (this.floatCheckBox.isSelected())
+      requestedMode = MemoryPlan.Mode.FLOAT;
+    MemoryPlan plan = this.memoryPlanner.plan(width, height, padToPowerOf2, requestedMode);
+    if (isStatisticsEnabled())
+      System.out.println(plan);
+    this.memoryLabel.setText(plan.getSummary());
+
+    this.compression = null;
+    this.grayPixelBuffer = null;
+    this.colorPixelBuffer = null;
+    if (plan.getDecision() == MemoryPlan.Decision.REJECT)
+    {
+      this.tiledMode = false;
+      this.outOfCoreMode = false;
+      this.floatMode = false;
+      this.colorMode = false;
+      this.mainImageView.setImage(null);
+      closeProgressIndicatorCalculateFFT();
+      isCalculatingImage.set(false);
+      return;
+    }
+
+    // In tiled, out-of-core and float mode the spectrum of the whole image is not calculated here
+    this.outOfCoreMode = plan.getMode() == MemoryPlan.Mode.OUT_OF_CORE;
+    this.tiledMode = plan.getMode() == MemoryPlan.Mode.TILED || this.outOfCoreMode;
+    this.floatMode = plan.getMode() == MemoryPlan.Mode.FLOAT;
+
+    // In color mode the color image is kept, the channels are transformed by applyFFT()
+    this.colorMode = this.colorCheckBox.isSelected() && !this.tiledMode && !this.floatMode;
+    this.colorPixelBuffer = this.colorMode ? pixelBuffer : null;
+
+    calculateGrayPixelBuffer.thenApplyAsync( (grayPixelBuffer)  -> {
+      // a full compression is cached when it is finished, its memory stays reserved
+      boolean caching = cacheable && plan.getMode() == MemoryPlan.Mode.FULL;
+      MemoryPlanner.Reservation retained;
+      try
+      {
+        // cached images are evicted if they hold the memory, otherwise it waits for other jobs
+        // (or until the image is closed)
+        this.spectrumCache.evictFor(plan.getEstimatedBytes(), this.memoryPlanner);
+        MemoryPlanner.Reservation reservation = this.memoryPlanner.reserve(plan, token);
+        retained = caching ? reservation.split(MemoryPlanner.estimateRetained(width, height, padToPowerOf2)) : null;
+
+        // the wait may outlast the image (timeout, another image opened), then the memory is
+        // released at once
+        if (!keepReservation(reservation, token))
+        {
+          if (retained != null)
+            retained.close();
+          throw new CancellationException("image closed while waiting for memory");
+        }
+      }
+      catch (InterruptedException exce)
+      {
+        Thread.currentThread().interrupt();
+        throw new CancellationException("memory reservation interrupted");
+      }
+
+      if( this.tiledMode || this.floatMode )
       {
-        int argb = grayPixelBuffer[i];
-        int x = i % width;
-        int y = i / width;
-        imageOut.setRGB(x, y, argb);
+        this.grayPixelBuffer = grayPixelBuffer;
+        return null;
       }
+      if( this.colorMode )
+        return null;
 
-      mainImageView.setImage(SwingFXUtils.toFXImage(imageOut, null));
+      // spectrum view on the workerPool, sorts on fftWorkerPool1, reconstruction on fftWorkerPool2
+      GrayImageCompression compression;
+      BufferedImage fftBufferedImage = null;
+      try
+      {
+        compression = (stored != null)
+            ? new GrayImageCompression(stored.readHalfSpectrum(token), width, height, stored.getCols(),
+                this.workerPool, this.fftWorkerPool1, this.fftWorkerPool2, token)
+            : new GrayImageCompression(grayPixelBuffer, width, height, padToPowerOf2,
+                this.workerPool, this.fftWorkerPool1, this.fftWorkerPool2, token);
+        fftBufferedImage = compression.createSpectrumImage();
+        printStatistics();
+      }
+      catch (IOException exce)
+      {
+        throw new UncheckedIOException(exce);
+      }
+      finally
+      {
+        // nothing is cached if the transformation failed or was cancelled
+        if (retained != null && fftBufferedImage == null)
+          retained.close();
+      }
+      if (retained != null)
+        cacheWhenReady(key, compression, grayPixelBuffer, fftBufferedImage, retained, stored == null);
+
+      if( token.isCancelled() ) return null;
+      this.compression = compression;
+      return ImageHelper.toFXImage(Rasters.getPixels(fftBufferedImage), fftBufferedImage.getWidth(), fftBufferedImage.getHeight());
+    }, this.workerPool).thenAcceptAsync(fftImage -> this.fftKoefImageView.setImage(fftImage), Platform::runLater)
+      .thenRunAsync( () -> { this.startBtn.setDisable(false); closeProgressIndicatorCalculateFFT();}, Platform::runLater)
+      .thenRunAsync( () -> isCalculatingImage.set(false) )
+      .orTimeout(20, TimeUnit.SECONDS )
+      .exceptionally(exce -> {
+          // stops the FFT and the sorts, the image has to be opened again
+          token.cancel();
+          if (this.imageToken == token)
+            this.compression = null;
+          exce.printStackTrace();
+          isCalculatingImage.set(false);
+          CompletableFuture.runAsync(() -> closeProgressIndicatorCalculateFFT(), Platform::runLater);
+          return null;
+        });
+
+    // in color mode the loaded image is shown as it is. The gray image is shown when it is
+    // calculated (or read from the spectrum store), a failure is reported by the chain above.
+    boolean colorMode = this.colorMode;
+    calculateGrayPixelBuffer.thenAcceptAsync(grayPixelBuffer -> {
+      if (this.imageToken != token)
+        return;
+
+      mainImageView.setImage(colorMode ? image : ImageHelper.toFXImageFromRGB(grayPixelBuffer, width, height));
       mainImageView.setPreserveRatio(true);
       mainImageView.setSmooth(true);
       mainImageView.setCache(true);
+    }, Platform::runLater);
+  }
+
+  // The memory plan and the statistics are printed per opened image with -Dapp.statistics=true
+  private static boolean isStatisticsEnabled()
+  {
+    return Boolean.getBoolean("app.statistics");
+  }
+
+  // Statistics of the caches and the loader
+  private void printStatistics()
+  {
+    if (!isStatisticsEnabled())
+      return;
+
+    System.out.println(FFTPlanCache.getStatistics());
+    System.out.println(this.spectrumCache.getStatistics());
+    System.out.println(ImageLoader.getInstance().getStatistics());
+  }
+
+  // Releases the memory of the current image
+  private void releaseReservation()
+  {
+    synchronized (this.reservationLock)
+    {
+      if (this.reservation != null)
+        this.reservation.close();
+      this.reservation = null;
+    }
+  }
+
+  // Keeps the reservation for the image of the token. If the token is cancelled (the token is
+  // cancelled before releaseReservation() runs for the next image) the reservation is closed and
+  // false is returned.
+  private boolean keepReservation(MemoryPlanner.Reservation reservation, CancellationToken token)
+  {
+    synchronized (this.reservationLock)
+    {
+      if (!token.isCancelled() && this.imageToken == token)
+      {
+        this.reservation = reservation;
+        return true;
+      }
+    }
+    reservation.close();
+    return false;
+  }
+
+  // Shows a compression of the spectrum cache, nothing is calculated. The memory of the image is
+  // held by the cache entry.
+  private void showCachedImage(SpectrumCache.Entry entry)
+  {
+    GrayImageCompression compression = entry.getCompression();
+    System.out.println("Image size " + compression.getWidth() + " x " + compression.getHeight() + ", cached");
+    printStatistics();
+
+    releaseReservation();
+    this.memoryLabel.setText("CACHED " + (entry.getWeightBytes() >> 20) + " MB / " + (this.memoryPlanner.getBudgetBytes() >> 20) + " MB");
+
+    this.tiledMode = false;
+    this.outOfCoreMode = false;
+    this.floatMode = false;
+    this.colorMode = false;
+    this.grayPixelBuffer = null;
+    this.colorPixelBuffer = null;
+    this.compression = compression;
+
+    BufferedImage spectrumImage = entry.getSpectrumImage();
+    this.fftKoefImageView.setImage(ImageHelper.toFXImage(Rasters.getPixels(spectrumImage), spectrumImage.getWidth(), spectrumImage.getHeight()));
+    this.mainImageView.setImage(ImageHelper.toFXImageFromRGB(entry.getGrayPixelBuffer(), compression.getWidth(), compression.getHeight()));
+    this.mainImageView.setPreserveRatio(true);
+    this.mainImageView.setSmooth(true);
+    this.mainImageView.setCache(true);
+
+    this.startBtn.setDisable(false);
+    isCalculatingImage.set(false);
+  }
+
+  // The stored spectrum of the image, null if it is not stored or can not be read
+  private SpectrumStore.Stored findStoredSpectrum(SpectrumCache.Key key)
+  {
+    if (this.spectrumStore == null)
+      return null;
+
+    try
+    {
+      return this.spectrumStore.find(key);
     }
     catch (IOException exce)
     {
       exce.printStackTrace();
+      return null;
     }
   }
 
+  // Caches the compression when its background calculations are finished and writes a newly
+  // calculated spectrum to the store. The retained reservation is handed to the cache entry or
+  // closed if the calculations fail.
+  private void cacheWhenReady(SpectrumCache.Key key, GrayImageCompression compression, int[] grayPixelBuffer,
+      BufferedImage spectrumImage, MemoryPlanner.Reservation retained, boolean store)
+  {
+    compression.whenReady().whenCompleteAsync((ready, exce) -> {
+      if (exce != null)
+      {
+        retained.close();
+        return;
+      }
+
+      this.spectrumCache.put(key, new SpectrumCache.Entry(compression, grayPixelBuffer, spectrumImage, retained.getBytes(), retained));
+      if (store && this.spectrumStore != null)
+      {
+        try
+        {
+          this.spectrumStore.write(key, grayPixelBuffer, compression.getWidth(), compression.getHeight(),
+              compression.getHalfSpectrum(), compression.getCols());
+        }
+        catch (IOException writeExce)
+        {
+          writeExce.printStackTrace();
+        }
+      }
+    }, this.workerPool);
+  }
+
   // -----------------------------------------------
   // --------- progress indicator handling ---------
   // -----------------------------------------------
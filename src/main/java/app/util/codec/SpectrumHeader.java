@@ -0,0 +1,150 @@
+package app.util.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import app.util.fft.FFT;
+
+/**
+ * Header of a compressed spectrum file.
+ *
+ * The file stores the truncated half spectrum (see FFT.rfft2()) of a real image matrix with
+ * rows x cols elements. The image itself has width x height pixels; if the matrix was padded,
+ * rows and cols are larger than width and height. Following the image matrices of FFTUtils,
+ * the rows of the matrix correspond to the x coordinate.
+ *
+ * Layout (big endian):
+ *   int magic, short version, int width, int height, int rows, int cols, int chunkRows,
+ *   double quantizationStep
+ */
+public final class SpectrumHeader
+{
+  static final int MAGIC = 0x46465443; // "FFTC"
+  static final short VERSION = 1;
+  static final int SIZE = 4 + 2 + 5*4 + 8;
+
+  private final int width;
+  private final int height;
+  private final int rows;
+  private final int cols;
+  private final int chunkRows;
+  private final double quantizationStep;
+
+  public SpectrumHeader(int width, int height, int rows, int cols, int chunkRows, double quantizationStep)
+  {
+    if (width <= 0 || height <= 0 || rows < width || cols < height)
+    {
+      throw new IllegalArgumentException("invalid size: image " + width + " x " + height + ", matrix " + rows + " x " + cols);
+    }
+    if (chunkRows <= 0)
+    {
+      throw new IllegalArgumentException("chunkRows must be positive");
+    }
+    if (!(quantizationStep > 0.0) || Double.isInfinite(quantizationStep))
+    {
+      throw new IllegalArgumentException("invalid quantization step " + quantizationStep);
+    }
+
+    this.width = width;
+    this.height = height;
+    this.rows = rows;
+    this.cols = cols;
+    this.chunkRows = chunkRows;
+    this.quantizationStep = quantizationStep;
+  }
+
+  // Width of the image
+  public int getWidth()
+  {
+    return this.width;
+  }
+
+  // Height of the image
+  public int getHeight()
+  {
+    return this.height;
+  }
+
+  // Rows of the (padded) image matrix and of its half spectrum
+  public int getRows()
+  {
+    return this.rows;
+  }
+
+  // Columns of the (padded) image matrix
+  public int getCols()
+  {
+    return this.cols;
+  }
+
+  // Columns of the half spectrum
+  public int getHalfSpectrumCols()
+  {
+    return FFT.getHalfSpectrumLength(this.cols);
+  }
+
+  // true if the image matrix was padded
+  public boolean isPadded()
+  {
+    return this.rows != this.width || this.cols != this.height;
+  }
+
+  // Number of spectrum rows per chunk
+  public int getChunkRows()
+  {
+    return this.chunkRows;
+  }
+
+  // Number of chunks in the file
+  public int getChunkCount()
+  {
+    return (this.rows + this.chunkRows - 1) / this.chunkRows;
+  }
+
+  // Coefficients are stored as multiples of the quantization step
+  public double getQuantizationStep()
+  {
+    return this.quantizationStep;
+  }
+
+  void write(ByteBuffer buffer)
+  {
+    buffer.putInt(MAGIC);
+    buffer.putShort(VERSION);
+    buffer.putInt(this.width);
+    buffer.putInt(this.height);
+    buffer.putInt(this.rows);
+    buffer.putInt(this.cols);
+    buffer.putInt(this.chunkRows);
+    buffer.putDouble(this.quantizationStep);
+  }
+
+  static SpectrumHeader read(ByteBuffer buffer) throws IOException
+  {
+    if (buffer.getInt() != MAGIC)
+    {
+      throw new IOException("not a spectrum file");
+    }
+    short version = buffer.getShort();
+    if (version != VERSION)
+    {
+      throw new IOException("unsupported spectrum file version " + version);
+    }
+
+    try
+    {
+      return new SpectrumHeader(buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getDouble());
+    }
+    catch (IllegalArgumentException exce)
+    {
+      throw new IOException("corrupt spectrum header: " + exce.getMessage(), exce);
+    }
+  }
+
+  @Override
+  public String toString()
+  {
+    return "SpectrumHeader[image " + width + " x " + height + ", matrix " + rows + " x " + cols
+        + ", chunkRows " + chunkRows + ", quantizationStep " + quantizationStep + "]";
+  }
+}
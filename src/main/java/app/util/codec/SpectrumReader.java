@@ -0,0 +1,250 @@
+package app.util.codec;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import app.util.fft.ComplexMatrix;
+import app.util.fft.FFT;
+import app.util.fft.RealMatrix;
+
+/**
+ * Reads a spectrum written by SpectrumWriter from a channel, chunk by chunk.
+ *
+ * The chunks are decoded directly into the half spectrum matrix; only the compressed and
+ * the decompressed payload of one chunk are held additionally. readImageMatrix() transforms
+ * the decoded half spectrum in place, so no second matrix is allocated.
+ */
+public final class SpectrumReader implements Closeable
+{
+  private static final int CHUNK_HEADER_SIZE = 5*4;
+
+  // a varint of a long has at most 10 bytes, a coefficient has three (gap, Re, Im)
+  private static final int MAXIMUM_VARINT_BYTES = 10;
+  private static final int MAXIMUM_COEFFICIENT_BYTES = 3*MAXIMUM_VARINT_BYTES;
+
+  private final ReadableByteChannel channel;
+  private final SpectrumHeader header;
+  private final Inflater inflater = new Inflater();
+
+  private int nextRow = 0;
+  private long coefficientCount = 0;
+
+  public SpectrumReader(ReadableByteChannel channel) throws IOException
+  {
+    this.channel = channel;
+
+    ByteBuffer buffer = ByteBuffer.allocate(SpectrumHeader.SIZE);
+    readFully(buffer);
+    this.header = SpectrumHeader.read(buffer);
+  }
+
+  // Opens the file and reads the header
+  public static SpectrumReader open(Path path) throws IOException
+  {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try
+    {
+      return new SpectrumReader(channel);
+    }
+    catch (IOException exce)
+    {
+      channel.close();
+      throw exce;
+    }
+  }
+
+  // Reads the file and returns the image matrix (width x height, like the matrices of FFTUtils)
+  public static RealMatrix readImageMatrix(Path path) throws IOException
+  {
+    try (SpectrumReader reader = open(path))
+    {
+      return reader.readImageMatrix();
+    }
+  }
+
+  public SpectrumHeader getHeader()
+  {
+    return this.header;
+  }
+
+  // First spectrum row of the next chunk
+  public int getNextRow()
+  {
+    return this.nextRow;
+  }
+
+  // Number of coefficients read so far
+  public long getCoefficientCount()
+  {
+    return this.coefficientCount;
+  }
+
+  // Decodes the next chunk into the rows getNextRow() .. of the half spectrum (rows x halfCols).
+  // Returns false if all chunks have been read.
+  public boolean readChunk(ComplexMatrix halfSpectrum) throws IOException
+  {
+    int halfCols = this.header.getHalfSpectrumCols();
+    if (halfSpectrum.getRows() != this.header.getRows() || halfSpectrum.getCols() != halfCols)
+    {
+      throw new IllegalArgumentException("spectrum " + halfSpectrum + " does not match " + this.header);
+    }
+    if (this.nextRow >= this.header.getRows())
+      return false;
+
+    ByteBuffer chunkHeader = ByteBuffer.allocate(CHUNK_HEADER_SIZE);
+    readFully(chunkHeader);
+    int firstRow = chunkHeader.getInt();
+    int rowCount = chunkHeader.getInt();
+    int count = chunkHeader.getInt();
+    int payloadLength = chunkHeader.getInt();
+    int compressedLength = chunkHeader.getInt();
+
+    // the lengths are checked before the buffers are allocated, so a corrupt file can not
+    // exhaust the heap
+    int expectedRows = Math.min(this.header.getChunkRows(), this.header.getRows() - this.nextRow);
+    long chunkCoefficients = (long) expectedRows*halfCols;
+    if (firstRow != this.nextRow || rowCount != expectedRows || count < 0 || count > chunkCoefficients
+        || payloadLength < 0 || payloadLength > (long) count*MAXIMUM_COEFFICIENT_BYTES
+        || compressedLength < 0 || compressedLength > getMaximumCompressedLength(payloadLength))
+    {
+      throw new IOException("corrupt chunk at row " + this.nextRow);
+    }
+
+    ByteBuffer compressed = ByteBuffer.allocate(compressedLength);
+    readFully(compressed);
+    byte[] payload = inflate(compressed.array(), payloadLength);
+
+    // the rows of the chunk are overwritten completely
+    ComplexMatrix chunk = halfSpectrum.subMatrix(firstRow, 0, rowCount, halfCols);
+    chunk.fill(0.0);
+
+    double step = this.header.getQuantizationStep();
+    long chunkSize = (long) rowCount*halfCols;
+    int[] offset = new int[1];
+    long position = -1;
+    for (int k = 0; k < count; k++)
+    {
+      position += readVarLong(payload, offset) + 1;
+      double re = step*unzigzag(readVarLong(payload, offset));
+      double im = step*unzigzag(readVarLong(payload, offset));
+      if (position >= chunkSize)
+      {
+        throw new IOException("corrupt chunk at row " + firstRow + ": position out of range");
+      }
+      chunk.set((int) (position / halfCols), (int) (position % halfCols), re, im);
+    }
+
+    this.nextRow += rowCount;
+    this.coefficientCount += count;
+    return true;
+  }
+
+  // Reads all remaining chunks into a new half spectrum
+  public ComplexMatrix readSpectrum() throws IOException
+  {
+    ComplexMatrix halfSpectrum = new ComplexMatrix(this.header.getRows(), this.header.getHalfSpectrumCols());
+    while (readChunk(halfSpectrum))
+    {
+      // decode the next chunk
+    }
+    return halfSpectrum;
+  }
+
+  // Reads all remaining chunks and computes the inverse FFT in place. Returns the image
+  // matrix without padding (width x height).
+  public RealMatrix readImageMatrix() throws IOException
+  {
+    RealMatrix matrix = FFT.irfft2InPlace(readSpectrum(), this.header.getCols());
+    return matrix.subMatrix(0, 0, this.header.getWidth(), this.header.getHeight());
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    this.inflater.end();
+    this.channel.close();
+  }
+
+  private byte[] inflate(byte[] compressed, int payloadLength) throws IOException
+  {
+    byte[] payload = new byte[payloadLength];
+    this.inflater.reset();
+    this.inflater.setInput(compressed);
+    try
+    {
+      int length = 0;
+      while (length < payloadLength && !this.inflater.finished())
+      {
+        int n = this.inflater.inflate(payload, length, payloadLength - length);
+        if (n == 0 && (this.inflater.needsInput() || this.inflater.needsDictionary()))
+          break;
+        length += n;
+      }
+      if (length != payloadLength)
+      {
+        throw new IOException("corrupt chunk at row " + this.nextRow + ": payload too short");
+      }
+    }
+    catch (DataFormatException exce)
+    {
+      throw new IOException("corrupt chunk at row " + this.nextRow, exce);
+    }
+    return payload;
+  }
+
+  // The bytes that deflate needs for the payload at most (deflateBound() of zlib), limited by
+  // the bytes left in a file
+  private long getMaximumCompressedLength(int payloadLength) throws IOException
+  {
+    long maximum = (long) payloadLength + (payloadLength >> 12) + (payloadLength >> 14) + (payloadLength >> 25) + 13;
+    if (this.channel instanceof SeekableByteChannel)
+    {
+      SeekableByteChannel file = (SeekableByteChannel) this.channel;
+      maximum = Math.min(maximum, file.size() - file.position());
+    }
+    return maximum;
+  }
+
+  private void readFully(ByteBuffer buffer) throws IOException
+  {
+    while (buffer.hasRemaining())
+    {
+      if (this.channel.read(buffer) < 0)
+      {
+        throw new EOFException("unexpected end of spectrum file");
+      }
+    }
+    buffer.flip();
+  }
+
+  private static long readVarLong(byte[] payload, int[] offset) throws IOException
+  {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7)
+    {
+      if (offset[0] >= payload.length)
+      {
+        throw new IOException("corrupt chunk: truncated payload");
+      }
+      int b = payload[offset[0]++];
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0)
+        return value;
+    }
+    throw new IOException("corrupt chunk: varint too long");
+  }
+
+  private static long unzigzag(long value)
+  {
+    return (value >>> 1) ^ -(value & 1);
+  }
+}
@@ -0,0 +1,225 @@
+package app.util.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import app.util.fft.ComplexMatrix;
+
+/**
+ * Writes a truncated half spectrum to a channel, chunk by chunk.
+ *
+ * After the header (see SpectrumHeader) every chunk of header.getChunkRows() spectrum rows
+ * (the last one may be shorter) is stored as
+ *   int firstRow, int rowCount, int coefficientCount, int payloadLength, int compressedLength
+ * followed by the deflated payload. The payload holds the coefficients that are not zero after
+ * quantization, ordered by position (row - firstRow)*halfCols + col:
+ *   varint gap to the previous position (minus 1), zigzag varint Re, zigzag varint Im
+ * where Re and Im are the coefficient divided by the quantization step and rounded.
+ *
+ * Only one chunk is held in memory, the spectrum itself is not copied.
+ */
+public final class SpectrumWriter implements Closeable
+{
+  // Default quantization step. The rounding error of every coefficient is at most step/sqrt(2);
+  // the inverse FFT averages the errors of the n coefficients (scale 1/n), so a reconstructed
+  // pixel deviates by at most step/sqrt(2) before it is rounded to a gray level. With step 1 a
+  // gray pixel therefore differs by at most one gray level from the pixel without quantization.
+  public static final double DEFAULT_QUANTIZATION_STEP = 1.0;
+
+  // Default number of spectrum rows per chunk
+  public static final int DEFAULT_CHUNK_ROWS = 64;
+
+  private final WritableByteChannel channel;
+  private final SpectrumHeader header;
+  private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+  private final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+
+  private int nextRow = 0;
+  private long coefficientCount = 0;
+  private long bytesWritten = 0;
+
+  public SpectrumWriter(WritableByteChannel channel, SpectrumHeader header) throws IOException
+  {
+    this.channel = channel;
+    this.header = header;
+
+    ByteBuffer buffer = ByteBuffer.allocate(SpectrumHeader.SIZE);
+    header.write(buffer);
+    buffer.flip();
+    writeFully(buffer);
+  }
+
+  // Creates (or replaces) the file and writes the header
+  public static SpectrumWriter open(Path path, SpectrumHeader header) throws IOException
+  {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    try
+    {
+      return new SpectrumWriter(channel, header);
+    }
+    catch (IOException exce)
+    {
+      channel.close();
+      throw exce;
+    }
+  }
+
+  // Writes the complete half spectrum to the file
+  public static long write(Path path, SpectrumHeader header, ComplexMatrix halfSpectrum) throws IOException
+  {
+    try (SpectrumWriter writer = open(path, header))
+    {
+      writer.writeRemainingChunks(halfSpectrum);
+      return writer.getBytesWritten();
+    }
+  }
+
+  public SpectrumHeader getHeader()
+  {
+    return this.header;
+  }
+
+  // First spectrum row of the next chunk
+  public int getNextRow()
+  {
+    return this.nextRow;
+  }
+
+  // Number of stored (non-zero) coefficients so far
+  public long getCoefficientCount()
+  {
+    return this.coefficientCount;
+  }
+
+  // Number of bytes written to the channel so far, including the header
+  public long getBytesWritten()
+  {
+    return this.bytesWritten;
+  }
+
+  // Writes the next chunk. chunk contains the spectrum rows getNextRow() .. getNextRow() + n - 1
+  // with n = min(chunkRows, remaining rows), e.g. a sub-matrix view of the half spectrum.
+  public void writeChunk(ComplexMatrix chunk) throws IOException
+  {
+    int rowCount = Math.min(this.header.getChunkRows(), this.header.getRows() - this.nextRow);
+    int halfCols = this.header.getHalfSpectrumCols();
+    if (rowCount <= 0)
+    {
+      throw new IllegalStateException("all chunks written");
+    }
+    if (chunk.getRows() != rowCount || chunk.getCols() != halfCols)
+    {
+      throw new IllegalArgumentException("expected chunk of " + rowCount + " x " + halfCols + " coefficients, got " + chunk);
+    }
+
+    // quantize and encode the coefficients
+    double step = this.header.getQuantizationStep();
+    this.payload.reset();
+    int count = 0;
+    long previous = -1;
+    for (int i = 0; i < rowCount; i++)
+    {
+      for (int j = 0; j < halfCols; j++)
+      {
+        long re = Math.round(chunk.getRe(i, j) / step);
+        long im = Math.round(chunk.getIm(i, j) / step);
+        if (re == 0 && im == 0)
+          continue;
+
+        long position = (long) i*halfCols + j;
+        writeVarLong(position - previous - 1);
+        writeVarLong(zigzag(re));
+        writeVarLong(zigzag(im));
+        previous = position;
+        count++;
+      }
+    }
+    byte[] uncompressed = this.payload.toByteArray();
+
+    // entropy coding
+    this.deflater.reset();
+    this.deflater.setInput(uncompressed);
+    this.deflater.finish();
+    byte[] compressed = new byte[Math.max(64, uncompressed.length + uncompressed.length/8 + 64)];
+    int compressedLength = 0;
+    while (!this.deflater.finished())
+    {
+      if (compressedLength == compressed.length)
+      {
+        compressed = Arrays.copyOf(compressed, 2*compressed.length);
+      }
+      compressedLength += this.deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(5*4 + compressedLength);
+    buffer.putInt(this.nextRow);
+    buffer.putInt(rowCount);
+    buffer.putInt(count);
+    buffer.putInt(uncompressed.length);
+    buffer.putInt(compressedLength);
+    buffer.put(compressed, 0, compressedLength);
+    buffer.flip();
+    writeFully(buffer);
+
+    this.nextRow += rowCount;
+    this.coefficientCount += count;
+  }
+
+  // Writes all chunks from getNextRow() to the end of the half spectrum
+  public void writeRemainingChunks(ComplexMatrix halfSpectrum) throws IOException
+  {
+    if (halfSpectrum.getRows() != this.header.getRows() || halfSpectrum.getCols() != this.header.getHalfSpectrumCols())
+    {
+      throw new IllegalArgumentException("spectrum " + halfSpectrum + " does not match " + this.header);
+    }
+
+    while (this.nextRow < this.header.getRows())
+    {
+      int rowCount = Math.min(this.header.getChunkRows(), this.header.getRows() - this.nextRow);
+      writeChunk(halfSpectrum.subMatrix(this.nextRow, 0, rowCount, halfSpectrum.getCols()));
+    }
+  }
+
+  // Closes the channel. Fails if not all chunks were written.
+  @Override
+  public void close() throws IOException
+  {
+    this.deflater.end();
+    this.channel.close();
+    if (this.nextRow != this.header.getRows())
+    {
+      throw new IOException("incomplete spectrum: " + this.nextRow + " of " + this.header.getRows() + " rows written");
+    }
+  }
+
+  private void writeFully(ByteBuffer buffer) throws IOException
+  {
+    while (buffer.hasRemaining())
+    {
+      this.bytesWritten += this.channel.write(buffer);
+    }
+  }
+
+  private void writeVarLong(long value)
+  {
+    while ((value & ~0x7FL) != 0)
+    {
+      this.payload.write((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    this.payload.write((int) value);
+  }
+
+  private static long zigzag(long value)
+  {
+    return (value << 1) ^ (value >> 63);
+  }
+}
@@ -0,0 +1,53 @@
+package app.util.fft;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Cooperative cancellation of long calculations.
+ *
+ * The methods with a CancellationToken parameter check the token for every row (or block of
+ * columns) of their loops, so a cancelled calculation stops after a few rows with a
+ * CancellationException. The partial results are left in an undefined state and should be
+ * discarded.
+ */
+public final class CancellationToken
+{
+  // Token that is never cancelled, used by the methods without token parameter
+  public static final CancellationToken NONE = new CancellationToken(false);
+
+  private final boolean cancellable;
+  private volatile boolean cancelled;
+
+  public CancellationToken()
+  {
+    this(true);
+  }
+
+  private CancellationToken(boolean cancellable)
+  {
+    this.cancellable = cancellable;
+  }
+
+  // Requests the cancellation, the running loops stop at their next check
+  public void cancel()
+  {
+    if (this.cancellable)
+    {
+      this.cancelled = true;
+    }
+  }
+
+  public boolean isCancelled()
+  {
+    return this.cancelled;
+  }
+
+  // Throws a CancellationException if the cancellation was requested
+  public void throwIfCancelled()
+  {
+    if (this.cancelled)
+    {
+      throw new CancellationException("calculation cancelled");
+    }
+  }
+}
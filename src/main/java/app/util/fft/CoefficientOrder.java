@@ -0,0 +1,103 @@
+package app.util.fft;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Order of the coefficients of a complex matrix by their absolute value.
+ *
+ * Every coefficient is represented by one primitive long: the upper 32 bits hold the
+ * absolute value as float (the bit pattern of a non-negative float has the same order
+ * as its value), the lower 32 bits the position row*cols + col. Sorting these keys
+ * sorts the positions by magnitude without boxing.
+ *
+ * The order is computed once per spectrum and allows moving between compression rates
+ * by handling only the coefficients between two ranks (see IncrementalReconstruction).
+ */
+public final class CoefficientOrder
+{
+  private final int rows;
+  private final int cols;
+  private final long[] keys;
+
+  public CoefficientOrder(ComplexMatrix matrix)
+  {
+    this(matrix, null);
+  }
+
+  // The keys are computed and sorted in the given pool (see Parallelism)
+  public CoefficientOrder(ComplexMatrix matrix, ForkJoinPool pool)
+  {
+    this(matrix, pool, CancellationToken.NONE);
+  }
+
+  // The token is checked for every row and before sorting, the sort can not be interrupted
+  public CoefficientOrder(ComplexMatrix matrix, ForkJoinPool pool, CancellationToken token)
+  {
+    this.rows = matrix.getRows();
+    this.cols = matrix.getCols();
+    this.keys = new long[Math.multiplyExact(rows, cols)];
+
+    Parallelism.run(pool, () -> computeKeys(matrix, token));
+  }
+
+  private void computeKeys(ComplexMatrix matrix, CancellationToken token)
+  {
+    IntStream.range(0, rows).parallel().forEach( i -> {
+      token.throwIfCancelled();
+      for (int j = 0; j < cols; j++)
+      {
+        int position = i*cols + j;
+        long magnitude = Float.floatToIntBits((float) matrix.abs(i, j));
+        keys[position] = (magnitude << 32) | position;
+      }
+    });
+
+    token.throwIfCancelled();
+    Arrays.parallelSort(keys);
+  }
+
+  public int getRows()
+  {
+    return this.rows;
+  }
+
+  public int getCols()
+  {
+    return this.cols;
+  }
+
+  // Number of coefficients
+  public int size()
+  {
+    return this.keys.length;
+  }
+
+  // Position (row*cols + col) of the coefficient with the given rank (rank 0 is the smallest)
+  public int getPosition(int rank)
+  {
+    return (int) this.keys[rank];
+  }
+
+  // Absolute value (float precision) of the coefficient with the given rank
+  public double getMagnitude(int rank)
+  {
+    return Float.intBitsToFloat((int) (this.keys[rank] >>> 32));
+  }
+
+  // Number of coefficients set to zero for the compression rate. Like the truncation with
+  // the threshold getSortedElements(matrix).get((int) (compressRate * size)) the coefficient
+  // at that rank and all smaller ones are dropped.
+  public int getTruncatedCount(double compressRate)
+  {
+    long count = (long) (compressRate * size()) + 1;
+    return (int) Math.max(0, Math.min(size(), count));
+  }
+
+  // Approximate heap size in bytes
+  public long getMemoryInBytes()
+  {
+    return 16L + 8L*this.keys.length;
+  }
+}
@@ -0,0 +1,152 @@
+package app.util.fft;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import app.util.image.Rasters;
+
+/**
+ * Compression of color images.
+ *
+ * The image is converted to the YCbCr color space (JPEG, full range). The luma channel Y and
+ * the two chroma channels Cb and Cr are transformed, truncated and reconstructed separately
+ * and concurrently; every channel runs as its own task on the given executors and uses the
+ * parallel streams of the FFT class inside. The eye is less sensitive to chroma, so the chroma
+ * channels get their own (usually higher) compression rate and can be subsampled by 2 in both
+ * directions (4:2:0) before the transformation.
+ *
+ * The pixel buffers are in the row major layout of PixelReader.getPixels(): pixel (x, y) is
+ * located at y*width + x.
+ */
+public final class ColorCompression
+{
+  private final double lumaRate;
+  private final double chromaRate;
+  private final boolean chromaSubsampling;
+
+  public ColorCompression(double lumaRate, double chromaRate, boolean chromaSubsampling)
+  {
+    this.lumaRate = lumaRate;
+    this.chromaRate = chromaRate;
+    this.chromaSubsampling = chromaSubsampling;
+  }
+
+  public double getLumaRate()
+  {
+    return this.lumaRate;
+  }
+
+  public double getChromaRate()
+  {
+    return this.chromaRate;
+  }
+
+  public boolean isChromaSubsampling()
+  {
+    return this.chromaSubsampling;
+  }
+
+  // Compresses the image, the channels are processed in the common pool
+  public BufferedImage compress(int[] argbPixelBuffer, int width, int height)
+  {
+    return compress(argbPixelBuffer, width, height, ForkJoinPool.commonPool(), ForkJoinPool.commonPool());
+  }
+
+  // Compresses the image. The luma channel is processed by lumaExecutor, the chroma channels
+  // by chromaExecutor.
+  public BufferedImage compress(int[] argbPixelBuffer, int width, int height, Executor lumaExecutor, Executor chromaExecutor)
+  {
+    return compress(argbPixelBuffer, width, height, lumaExecutor, chromaExecutor, CancellationToken.NONE);
+  }
+
+  // see compress(argbPixelBuffer, width, height, lumaExecutor, chromaExecutor), stops with a
+  // CancellationException if the token is cancelled
+  public BufferedImage compress(int[] argbPixelBuffer, int width, int height, Executor lumaExecutor, Executor chromaExecutor,
+      CancellationToken token)
+  {
+    if (argbPixelBuffer.length < (long) width * height)
+    {
+      throw new IllegalArgumentException("pixel buffer too small for " + width + " x " + height + " pixels");
+    }
+
+    int chromaWidth = chromaSubsampling ? (width + 1)/2 : width;
+    int chromaHeight = chromaSubsampling ? (height + 1)/2 : height;
+
+    // color conversion, the chroma channels are averaged over the subsampled blocks
+    RealMatrix luma = new RealMatrix(height, width);
+    RealMatrix cb = new RealMatrix(chromaHeight, chromaWidth);
+    RealMatrix cr = new RealMatrix(chromaHeight, chromaWidth);
+    int step = chromaSubsampling ? 2 : 1;
+
+    IntStream.range(0, chromaHeight).parallel().forEach( cy -> {
+      token.throwIfCancelled();
+      for (int cx = 0; cx < chromaWidth; cx++)
+      {
+        double sumCb = 0.0;
+        double sumCr = 0.0;
+        int count = 0;
+        for (int y = cy*step; y < Math.min(height, (cy + 1)*step); y++)
+        {
+          for (int x = cx*step; x < Math.min(width, (cx + 1)*step); x++)
+          {
+            int argb = argbPixelBuffer[y*width + x];
+            int red = (argb >> 16) & 0xff;
+            int green = (argb >> 8) & 0xff;
+            int blue = argb & 0xff;
+
+            luma.set(y, x, 0.299*red + 0.587*green + 0.114*blue);
+            sumCb += 128.0 - 0.168736*red - 0.331264*green + 0.5*blue;
+            sumCr += 128.0 + 0.5*red - 0.418688*green - 0.081312*blue;
+            count++;
+          }
+        }
+        cb.set(cy, cx, sumCb / count);
+        cr.set(cy, cx, sumCr / count);
+      }
+    });
+
+    CompletableFuture<RealMatrix> lumaCF = CompletableFuture.supplyAsync(() -> compressChannel(luma, lumaRate, token), lumaExecutor);
+    CompletableFuture<RealMatrix> cbCF = CompletableFuture.supplyAsync(() -> compressChannel(cb, chromaRate, token), chromaExecutor);
+    CompletableFuture<RealMatrix> crCF = CompletableFuture.supplyAsync(() -> compressChannel(cr, chromaRate, token), chromaExecutor);
+
+    RealMatrix lumaOut = lumaCF.join();
+    RealMatrix cbOut = cbCF.join();
+    RealMatrix crOut = crCF.join();
+
+    // merge the channels, the chroma channels are upsampled by replication
+    int[] rgbPixelBuffer = new int[width * height];
+    IntStream.range(0, height).parallel().forEach( y -> {
+      token.throwIfCancelled();
+      for (int x = 0; x < width; x++)
+      {
+        double yValue = lumaOut.get(y, x);
+        double cbValue = cbOut.get(y/step, x/step) - 128.0;
+        double crValue = crOut.get(y/step, x/step) - 128.0;
+
+        int red = clamp(yValue + 1.402*crValue);
+        int green = clamp(yValue - 0.344136*cbValue - 0.714136*crValue);
+        int blue = clamp(yValue + 1.772*cbValue);
+        rgbPixelBuffer[y*width + x] = 0xff000000 | (red << 16) | (green << 8) | blue;
+      }
+    });
+
+    return Rasters.wrap(rgbPixelBuffer, width, height);
+  }
+
+  // Transforms, truncates and reconstructs one channel
+  private static RealMatrix compressChannel(RealMatrix channel, double compressRate, CancellationToken token)
+  {
+    ComplexMatrix halfSpectrum = FFT.rfft2(channel, token);
+    ThresholdSelector selector = new ThresholdSelector(FFTUtils.getAbsValuesOfMatrix(halfSpectrum, token), null, token);
+    halfSpectrum.truncate(selector.getThreshold(compressRate));
+    return FFT.irfft2InPlace(halfSpectrum, channel.getCols(), token);
+  }
+
+  private static int clamp(double value)
+  {
+    return (int) Math.round(Math.min(255.0, Math.max(0.0, value)));
+  }
+}
@@ -0,0 +1,276 @@
+package app.util.fft;
+
+import java.util.stream.IntStream;
+
+/**
+ * Complex matrix backed by one contiguous double array.
+ *
+ * The elements are stored interleaved [Re, Im] like the vectors of the FFT class.
+ * The element (r, c) is located at data[offset + r*rowStride + c*colStride] (strides
+ * in doubles), so sub-matrices and transposed matrices are views sharing the data
+ * with the original matrix. A shifted view moves the element (0,0) to the center
+ * (fftshift) by mapping the indices cyclically.
+ *
+ * A new matrix is compact: rowStride = 2*cols and colStride = 2. The data array
+ * can hold at most Integer.MAX_VALUE doubles.
+ */
+public final class ComplexMatrix
+{
+  private final double[] data;
+  private final int offset;
+  private final int rows;
+  private final int cols;
+  private final int rowStride;
+  private final int colStride;
+  private final int rowShift;
+  private final int colShift;
+
+  // Creates a new zero matrix
+  public ComplexMatrix(int rows, int cols)
+  {
+    this(new double[Math.multiplyExact(2*rows, cols)], 0, rows, cols, 2*cols, 2, 0, 0);
+  }
+
+  private ComplexMatrix(double[] data, int offset, int rows, int cols, int rowStride, int colStride, int rowShift, int colShift)
+  {
+    this.data = data;
+    this.offset = offset;
+    this.rows = rows;
+    this.cols = cols;
+    this.rowStride = rowStride;
+    this.colStride = colStride;
+    this.rowShift = rowShift;
+    this.colShift = colShift;
+  }
+
+  // Creates a compact matrix using the given array [Re(0,0), Im(0,0), Re(0,1), ...]
+  public static ComplexMatrix wrap(double[] data, int rows, int cols)
+  {
+    if (data.length < 2L * rows * cols)
+    {
+      throw new IllegalArgumentException("array too small for " + rows + " x " + cols + " elements");
+    }
+    return new ComplexMatrix(data, 0, rows, cols, 2*cols, 2, 0, 0);
+  }
+
+  // Creates a compact matrix from a matrix in the double[][] layout of the FFT class
+  public static ComplexMatrix of(double[][] matrix)
+  {
+    int rows = matrix.length;
+    int cols = matrix[0].length/2;
+    ComplexMatrix result = new ComplexMatrix(rows, cols);
+    IntStream.range(0, rows).parallel().forEach( i -> System.arraycopy(matrix[i], 0, result.data, i*result.rowStride, 2*cols) );
+    return result;
+  }
+
+  // Converts the matrix to the double[][] layout of the FFT class
+  public double[][] toArray()
+  {
+    double[][] matrix = new double[rows][2*cols];
+    IntStream.range(0, rows).parallel().forEach( i -> {
+      for (int j = 0; j < cols; j++)
+      {
+        int index = index(i, j);
+        matrix[i][2*j] = data[index];
+        matrix[i][2*j+1] = data[index+1];
+      }
+    });
+    return matrix;
+  }
+
+  public int getRows()
+  {
+    return this.rows;
+  }
+
+  public int getCols()
+  {
+    return this.cols;
+  }
+
+  public double getRe(int row, int col)
+  {
+    return this.data[index(row, col)];
+  }
+
+  public double getIm(int row, int col)
+  {
+    return this.data[index(row, col) + 1];
+  }
+
+  public double abs(int row, int col)
+  {
+    int index = index(row, col);
+    return Math.sqrt(data[index]*data[index] + data[index+1]*data[index+1]);
+  }
+
+  public void set(int row, int col, double re, double im)
+  {
+    int index = index(row, col);
+    this.data[index] = re;
+    this.data[index+1] = im;
+  }
+
+  // true if every row is stored contiguously, i.e. row i is located at
+  // data[getRowOffset(i) .. getRowOffset(i) + 2*cols - 1]
+  public boolean hasContiguousRows()
+  {
+    return this.colStride == 2 && this.colShift == 0;
+  }
+
+  // true if the matrix is compact (not a view of a larger or permuted matrix)
+  public boolean isCompact()
+  {
+    return this.offset == 0 && this.rowStride == 2*this.cols && hasContiguousRows() && this.rowShift == 0
+        && this.data.length == 2*this.rows*this.cols;
+  }
+
+  // The backing array, shared by all views
+  public double[] getData()
+  {
+    return this.data;
+  }
+
+  // Index of the element (row, 0) in the backing array
+  public int getRowOffset(int row)
+  {
+    return index(row, 0);
+  }
+
+  public int getRowStride()
+  {
+    return this.rowStride;
+  }
+
+  public int getColStride()
+  {
+    return this.colStride;
+  }
+
+  // View of the rows x cols sub-matrix starting at (row, col)
+  public ComplexMatrix subMatrix(int row, int col, int rows, int cols)
+  {
+    if (row < 0 || col < 0 || row + rows > this.rows || col + cols > this.cols)
+    {
+      throw new IndexOutOfBoundsException("sub-matrix exceeds " + this.rows + " x " + this.cols);
+    }
+    if (this.rowShift != 0 || this.colShift != 0)
+    {
+      throw new IllegalStateException("sub-matrix of a shifted view");
+    }
+    return new ComplexMatrix(data, index(row, col), rows, cols, rowStride, colStride, 0, 0);
+  }
+
+  // Transposed view
+  public ComplexMatrix transposed()
+  {
+    return new ComplexMatrix(data, offset, cols, rows, colStride, rowStride, colShift, rowShift);
+  }
+
+  // Shifted view: the element (0,0) is moved to (rows/2, cols/2) like FFTUtils.shiftAbsFourierKoef()
+  public ComplexMatrix shifted()
+  {
+    return new ComplexMatrix(data, offset, rows, cols, rowStride, colStride,
+        (rowShift + rows - rows/2) % rows, (colShift + cols - cols/2) % cols);
+  }
+
+  // Compact copy of the matrix (or view)
+  public ComplexMatrix copy()
+  {
+    ComplexMatrix result = new ComplexMatrix(rows, cols);
+    result.copyFrom(this);
+    return result;
+  }
+
+  // Copies the elements of the matrix m, which must have the same size
+  public void copyFrom(ComplexMatrix m)
+  {
+    if (m.rows != this.rows || m.cols != this.cols)
+    {
+      throw new IllegalArgumentException("different matrix sizes");
+    }
+
+    IntStream.range(0, rows).parallel().forEach( i -> {
+      if (this.hasContiguousRows() && m.hasContiguousRows())
+      {
+        System.arraycopy(m.data, m.getRowOffset(i), this.data, this.getRowOffset(i), 2*cols);
+      }
+      else
+      {
+        for (int j = 0; j < cols; j++)
+        {
+          int src = m.index(i, j);
+          int dst = this.index(i, j);
+          this.data[dst] = m.data[src];
+          this.data[dst+1] = m.data[src+1];
+        }
+      }
+    });
+  }
+
+  // Sets all elements to the given real value
+  public void fill(double re)
+  {
+    IntStream.range(0, rows).parallel().forEach( i -> {
+      for (int j = 0; j < cols; j++)
+      {
+        int index = index(i, j);
+        data[index] = re;
+        data[index+1] = 0.0;
+      }
+    });
+  }
+
+  // Multiplies all elements in place with the factor
+  public void scale(double factor)
+  {
+    IntStream.range(0, rows).parallel().forEach( i -> {
+      for (int j = 0; j < cols; j++)
+      {
+        int index = index(i, j);
+        data[index] *= factor;
+        data[index+1] *= factor;
+      }
+    });
+  }
+
+  // Sets all elements with an absolute value not larger than threshold to zero (in place)
+  public void truncate(double threshold)
+  {
+    double thresholdSquared = threshold*threshold;
+    IntStream.range(0, rows).parallel().forEach( i -> {
+      for (int j = 0; j < cols; j++)
+      {
+        // 0/1 mask instead of a branch, the comparison is unpredictable
+        int index = index(i, j);
+        double keep = (data[index]*data[index] + data[index+1]*data[index+1] > thresholdSquared) ? 1.0 : 0.0;
+        data[index] *= keep;
+        data[index+1] *= keep;
+      }
+    });
+  }
+
+  // Index of Re(row, col) in the backing array
+  int index(int row, int col)
+  {
+    if (rowShift != 0)
+    {
+      row += rowShift;
+      if (row >= rows)
+        row -= rows;
+    }
+    if (colShift != 0)
+    {
+      col += colShift;
+      if (col >= cols)
+        col -= cols;
+    }
+    return offset + row*rowStride + col*colStride;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "ComplexMatrix[" + rows + " x " + cols + "]";
+  }
+}
@@ -1,201 +1,787 @@
 package app.util.fft;
 
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.IntStream;
 
 /**
  * Methods for calculating the Fourier Transfomations
- * 
+ *
  * The fft() and ifft() methods are an adaption of the algorithm from
  * https://introcs.cs.princeton.edu/java/97data/FFT.java.html
+ * The recursion is replaced by an iterative in-place radix-2 scheme
+ * (bit-reversal permutation followed by the butterfly stages). The
+ * twiddle factors and bit-reversal tables are held by an FFTPlan per
+ * transformation length, which is looked up in the FFTPlanCache.
+ * Lengths that are not a power of 2 are handled by a mixed-radix or
+ * Bluestein kernel (see FFTPlan), so no padding is required.
  *
  * Because of memory efficiency complex vectors are represented by double array:
  * [c_1, c_2, ..., c_n] is mapped to [Re(c_1), Im(c_1), Re(c_2), Im(c_2), ..., Re(c_n), Im(c_n)]
- * 
+ *
  * Remark: This class should not be used in productive software!
  */
 public final class FFT
 {
+  // Number of adjacent columns gathered together in the column pass
+  private static final int COLUMN_BLOCK_SIZE = 16;
+
+  // Scratch buffer used for the column pass of fft2 and ifft2 (one per thread)
+  private static final ThreadLocal<double[]> columnBuffer = ThreadLocal.withInitial(() -> new double[0]);
+
+  // Scratch buffer used for real transformations of odd length (one per thread)
+  private static final ThreadLocal<double[]> rowBuffer = ThreadLocal.withInitial(() -> new double[0]);
+
   private FFT()
   {
-    
+
   }
-  
-  // compute the FFT of x[], assuming its length is a power of 2
+
+  // compute the FFT of x[]
   public static double[] fft(double[] x)
   {
-    int n = x.length/2;
+    double[] y = x.clone();
+    fft(y, 0, x.length/2);
+    return y;
+  }
+
+  // compute the inverse FFT of x[]
+  public static double[] ifft(double[] x)
+  {
+    double[] y = x.clone();
+    ifft(y, 0, x.length/2);
+    return y;
+  }
+
+  // compute in place the FFT of the n complex values stored in data[] starting at offset
+  public static void fft(double[] data, int offset, int n)
+  {
+    FFTPlanCache.getPlan(n).fft(data, offset);
+  }
+
+  // compute in place the inverse FFT of the n complex values stored in data[] starting at offset
+  public static void ifft(double[] data, int offset, int n)
+  {
+    FFTPlanCache.getPlan(n).ifft(data, offset);
+  }
+
+  //compute the two-dimensonal FFT of matrix[][]
+  //first compute the fft of every row and subsequently of the columns
+  public static double[][] fft2(double[][] matrix)
+  {
+    return fft2(matrix, CancellationToken.NONE);
+  }
+
+  // see fft2(matrix), the calculation stops with a CancellationException if the token is cancelled
+  public static double[][] fft2(double[][] matrix, CancellationToken token)
+  {
+    assert (matrix != null && matrix[0] != null);
+
+    double[][] result = copyOf(matrix);
+    fft2InPlace(result, token);
+    return result;
+  }
+
+  //compute the two-dimensonal inverse FFT of matrix[][]
+  public static double[][] ifft2(double[][] matrix)
+  {
+    return ifft2(matrix, CancellationToken.NONE);
+  }
+
+  // see ifft2(matrix), the calculation stops with a CancellationException if the token is cancelled
+  public static double[][] ifft2(double[][] matrix, CancellationToken token)
+  {
+    assert (matrix != null && matrix[0] != null);
+
+    double[][] result = copyOf(matrix);
+    ifft2InPlace(result, token);
+    return result;
+  }
+
+  // compute the two-dimensonal FFT of matrix[][] in place. The rows are overwritten.
+  public static double[][] fft2InPlace(double[][] matrix)
+  {
+    return fft2InPlace(matrix, CancellationToken.NONE);
+  }
+
+  public static double[][] fft2InPlace(double[][] matrix, CancellationToken token)
+  {
+    transform2(matrix, false, token);
+    return matrix;
+  }
+
+  // compute the two-dimensonal inverse FFT of matrix[][] in place. The rows are overwritten.
+  public static double[][] ifft2InPlace(double[][] matrix)
+  {
+    return ifft2InPlace(matrix, CancellationToken.NONE);
+  }
+
+  public static double[][] ifft2InPlace(double[][] matrix, CancellationToken token)
+  {
+    transform2(matrix, true, token);
+    return matrix;
+  }
+
+  // compute the FFT of the n real values stored in data[0..n-1] in place. The n/2+1 non-redundant
+  // complex coefficients are written to data[], so data[] must provide 2*(n/2+1) elements.
+  // The remaining coefficients follow from X[n-k] = conj(X[k]).
+  public static void rfft(double[] data, int n)
+  {
+    rfft(data, 0, n);
+  }
+
+  // compute in place the FFT of the n real values stored in data[] starting at offset (see rfft(data, n))
+  public static void rfft(double[] data, int offset, int n)
+  {
+    rfft(data, offset, RealFFTPlan.of(n));
+  }
 
-    // base case
+  // see rfft(data, offset, n) with the plans of the length
+  static void rfft(double[] data, int offset, RealFFTPlan plans)
+  {
+    int n = plans.getLength();
     if (n == 1)
-      return new double[] {x[0],x[1]};
+    {
+      data[offset + 1] = 0.0;
+      return;
+    }
 
-    // radix 2 Cooley-Tukey FFT
     if (n % 2 != 0)
     {
-      throw new IllegalArgumentException("n is not a power of 2");
+      rfftOddLength(data, offset, n, plans.getPlan());
+      return;
     }
 
-    // fft of even terms
-    double[] even = new double[n];
-    for (int k = 0; k < n / 2; k++)
+    // the n real values are interpreted as n/2 complex values z[m] = x[2m] + i*x[2m+1]
+    int half = n/2;
+    plans.getHalfPlan().fft(data, offset);
+
+    // split the spectrum of z into the spectra of the even and odd samples and combine them
+    double[] twiddles = plans.getPlan().getTwiddles();
+
+    double re0 = data[offset];
+    double im0 = data[offset + 1];
+    data[offset] = re0 + im0;
+    data[offset + 1] = 0.0;
+    data[offset + 2*half] = re0 - im0;
+    data[offset + 2*half+1] = 0.0;
+
+    for (int k = 1; k <= half/2; k++)
     {
-      even[2*k] = x[4 * k];
-      even[2*k+1] = x[4 * k+1];
+      int m = half - k;
+
+      double zkRe = data[offset + 2*k];
+      double zkIm = data[offset + 2*k+1];
+      double zmRe = data[offset + 2*m];
+      double zmIm = data[offset + 2*m+1];
+
+      // E = (Z[k] + conj(Z[m]))/2, O = -i*(Z[k] - conj(Z[m]))/2
+      double eRe = 0.5*(zkRe + zmRe);
+      double eIm = 0.5*(zkIm - zmIm);
+      double oRe = 0.5*(zkIm + zmIm);
+      double oIm = -0.5*(zkRe - zmRe);
+
+      // w^k*O with w = exp(-2*pi*i/n)
+      double wRe = twiddles[2*k];
+      double wIm = -twiddles[2*k+1];
+      double tRe = wRe*oRe - wIm*oIm;
+      double tIm = wRe*oIm + wIm*oRe;
+
+      // X[k] = E + w^k*O, X[m] = conj(E - w^k*O)
+      data[offset + 2*k] = eRe + tRe;
+      data[offset + 2*k+1] = eIm + tIm;
+      data[offset + 2*m] = eRe - tRe;
+      data[offset + 2*m+1] = tIm - eIm;
     }
-    double[] q = fft(even);
-    
-    
-    // fft of odd terms
-    double[] odd = even; // reuse the array
-    for (int k = 0; k < n / 2; k++)
+  }
+
+  // compute the inverse of rfft() in place. data[] holds the n/2+1 non-redundant complex
+  // coefficients, afterwards data[0..n-1] contains the n real values.
+  public static void irfft(double[] data, int n)
+  {
+    irfft(data, 0, n);
+  }
+
+  // compute in place the inverse of rfft() for the coefficients stored in data[] starting at offset
+  public static void irfft(double[] data, int offset, int n)
+  {
+    irfft(data, offset, RealFFTPlan.of(n));
+  }
+
+  // see irfft(data, offset, n) with the plans of the length
+  static void irfft(double[] data, int offset, RealFFTPlan plans)
+  {
+    int n = plans.getLength();
+    if (n == 1)
     {
-      odd[2*k] = x[4 * k + 2];
-      odd[2*k+1] = x[4 * k + 3];
+      data[offset + 1] = 0.0;
+      return;
     }
-    double[] r = fft(odd);
-    
-    // combine
-    double[] y = new double[2*n];
-    for (int k = 0; k < n/2 ; k++)
+
+    if (n % 2 != 0)
     {
-      double kth = -2 * k * Math.PI / n;
-      double real = Math.cos(kth);
-      double imag = Math.sin(kth);
-      
-      double tmpRe = real*r[2*k] - imag*r[2*k +1];
-      double tmpIm = real*r[2*k+1] + imag*r[2*k];
-          
-      y[2*k] = q[2*k] + tmpRe;
-      y[2*k+1] = q[2*k+1] + tmpIm;
-      
-      y[2*k + n] = q[2*k] - tmpRe;
-      y[2*k + 1 + n] = q[2*k + 1] - tmpIm;
+      irfftOddLength(data, offset, n, plans.getPlan());
+      return;
     }
-    
-     return y;
+
+    int half = n/2;
+    double[] twiddles = plans.getPlan().getTwiddles();
+
+    double x0 = data[offset];
+    double xn = data[offset + 2*half];
+    data[offset] = 0.5*(x0 + xn);
+    data[offset + 1] = 0.5*(x0 - xn);
+
+    for (int k = 1; k <= half/2; k++)
+    {
+      int m = half - k;
+
+      double xkRe = data[offset + 2*k];
+      double xkIm = data[offset + 2*k+1];
+      double xmRe = data[offset + 2*m];
+      double xmIm = data[offset + 2*m+1];
+
+      // E = (X[k] + conj(X[m]))/2, O = conj(w^k)*(X[k] - conj(X[m]))/2
+      double eRe = 0.5*(xkRe + xmRe);
+      double eIm = 0.5*(xkIm - xmIm);
+      double dRe = 0.5*(xkRe - xmRe);
+      double dIm = 0.5*(xkIm + xmIm);
+
+      double wRe = twiddles[2*k];
+      double wIm = twiddles[2*k+1];
+      double oRe = wRe*dRe - wIm*dIm;
+      double oIm = wRe*dIm + wIm*dRe;
+
+      // Z[k] = E + i*O, Z[m] = conj(E) + i*conj(O)
+      data[offset + 2*k] = eRe - oIm;
+      data[offset + 2*k+1] = eIm + oRe;
+      data[offset + 2*m] = eRe + oIm;
+      data[offset + 2*m+1] = oRe - eIm;
+    }
+
+    plans.getHalfPlan().ifft(data, offset);
+
+    data[offset + 2*half] = 0.0;
+    data[offset + 2*half+1] = 0.0;
   }
 
-  // compute the inverse FFT of x[], assuming its length is a power of 2
-  public static double[] ifft(double[] x)
+  // compute the two-dimensonal FFT of the real matrix[][].
+  // Because of the Hermitian symmetry only the non-redundant half of the spectrum is returned: every
+  // row contains the cols/2+1 complex coefficients of the columns 0..cols/2 (interleaved re/im).
+  public static double[][] rfft2(double[][] matrix)
+  {
+    return rfft2(matrix, CancellationToken.NONE);
+  }
+
+  public static double[][] rfft2(double[][] matrix, CancellationToken token)
+  {
+    assert (matrix != null && matrix[0] != null);
+
+    int rows = matrix.length;
+    int cols = matrix[0].length;
+    int halfCols = getHalfSpectrumLength(cols);
+
+    FFTPlan colPlan = FFTPlanCache.getPlan(rows);
+    RealFFTPlan rowPlans = RealFFTPlan.of(cols);
+
+    // real row-transformation
+    double[][] halfSpectrum = new double[rows][];
+    IntStream.range(0, rows).parallel().forEach( i -> {
+      token.throwIfCancelled();
+      halfSpectrum[i] = new double[2*halfCols];
+      System.arraycopy(matrix[i], 0, halfSpectrum[i], 0, cols);
+      rfft(halfSpectrum[i], 0, rowPlans);
+    });
+
+    columnPass(halfSpectrum, halfCols, colPlan, false, token);
+
+    return halfSpectrum;
+  }
+
+  // compute the two-dimensonal inverse FFT of a half spectrum created by rfft2(). cols is the
+  // number of columns of the real matrix. The half spectrum is not changed.
+  public static double[][] irfft2(double[][] halfSpectrum, int cols)
+  {
+    return irfft2(halfSpectrum, cols, CancellationToken.NONE);
+  }
+
+  public static double[][] irfft2(double[][] halfSpectrum, int cols, CancellationToken token)
   {
-    double[] y = new double[x.length];
+    assert (halfSpectrum != null && halfSpectrum[0] != null);
 
-    int n = x.length/2;
+    double[][] result = copyOf(halfSpectrum);
+    irfft2InPlace(result, cols, token);
 
-    // take conjugate
+    IntStream.range(0, result.length).parallel().forEach( i -> result[i] = Arrays.copyOf(result[i], cols) );
+    return result;
+  }
+
+  // compute the two-dimensonal inverse FFT of a half spectrum in place. Afterwards the first cols
+  // elements of every row contain the real values.
+  public static double[][] irfft2InPlace(double[][] halfSpectrum, int cols)
+  {
+    return irfft2InPlace(halfSpectrum, cols, CancellationToken.NONE);
+  }
+
+  public static double[][] irfft2InPlace(double[][] halfSpectrum, int cols, CancellationToken token)
+  {
+    int rows = halfSpectrum.length;
+    int halfCols = getHalfSpectrumLength(cols);
+
+    FFTPlan colPlan = FFTPlanCache.getPlan(rows);
+    columnPass(halfSpectrum, halfCols, colPlan, true, token);
+
+    RealFFTPlan rowPlans = RealFFTPlan.of(cols);
+    IntStream.range(0, rows).parallel().forEach( i -> {
+      token.throwIfCancelled();
+      irfft(halfSpectrum[i], 0, rowPlans);
+    });
+
+    return halfSpectrum;
+  }
+
+  // the packing of rfft() needs an even length, odd lengths use a full complex transformation
+  private static void rfftOddLength(double[] data, int offset, int n, FFTPlan plan)
+  {
+    double[] buffer = getRowBuffer(2*n);
     for (int i = 0; i < n; i++)
     {
-      y[2*i]   = x[2*i];
-      y[2*i+1] = (-1.0)*x[2*i+1];
+      buffer[2*i] = data[offset + i];
+      buffer[2*i+1] = 0.0;
     }
 
-    // compute forward FFT
-    y = fft(y);
+    plan.fft(buffer, 0);
+    System.arraycopy(buffer, 0, data, offset, 2*getHalfSpectrumLength(n));
+  }
+
+  private static void irfftOddLength(double[] data, int offset, int n, FFTPlan plan)
+  {
+    int halfCols = getHalfSpectrumLength(n);
+    double[] buffer = getRowBuffer(2*n);
+    System.arraycopy(data, offset, buffer, 0, 2*halfCols);
+    for (int k = halfCols; k < n; k++)
+    {
+      buffer[2*k] = data[offset + 2*(n-k)];
+      buffer[2*k+1] = -data[offset + 2*(n-k)+1];
+    }
 
-    // take conjugate again
+    plan.ifft(buffer, 0);
     for (int i = 0; i < n; i++)
     {
-      y[2*i]   = y[2*i]/n;
-      y[2*i+1] = (-1.0)*y[2*i+1]/n;
+      data[offset + i] = buffer[2*i];
     }
+    data[offset + n] = 0.0;
+  }
 
-    return y;
+  // compute the two-dimensonal FFT of the matrix
+  public static ComplexMatrix fft2(ComplexMatrix matrix)
+  {
+    return fft2(matrix, CancellationToken.NONE);
   }
-  
-  //compute the two-dimensonal FFT of matrix[][], assuming its width and height are power of 2
-  //first compute the fft of every row and subsequently of the columns
-  public static double[][] fft2(double[][] matrix)
+
+  public static ComplexMatrix fft2(ComplexMatrix matrix, CancellationToken token)
   {
-    assert (matrix != null && matrix[0] != null);
+    ComplexMatrix result = matrix.copy();
+    fft2InPlace(result, token);
+    return result;
+  }
 
-    int rows = matrix.length;
-    int cols = matrix[0].length;
-    
-    assert (2*rows == cols );
+  // compute the two-dimensonal inverse FFT of the matrix
+  public static ComplexMatrix ifft2(ComplexMatrix matrix)
+  {
+    return ifft2(matrix, CancellationToken.NONE);
+  }
+
+  public static ComplexMatrix ifft2(ComplexMatrix matrix, CancellationToken token)
+  {
+    ComplexMatrix result = matrix.copy();
+    ifft2InPlace(result, token);
+    return result;
+  }
+
+  // compute the two-dimensonal FFT of the matrix (or view) in place
+  public static ComplexMatrix fft2InPlace(ComplexMatrix matrix)
+  {
+    return fft2InPlace(matrix, CancellationToken.NONE);
+  }
 
-    // col-transformation
-    double[][] fftRows = new double[rows][];
+  public static ComplexMatrix fft2InPlace(ComplexMatrix matrix, CancellationToken token)
+  {
+    transform2(matrix, false, token);
+    return matrix;
+  }
+
+  // compute the two-dimensonal inverse FFT of the matrix (or view) in place
+  public static ComplexMatrix ifft2InPlace(ComplexMatrix matrix)
+  {
+    return ifft2InPlace(matrix, CancellationToken.NONE);
+  }
+
+  public static ComplexMatrix ifft2InPlace(ComplexMatrix matrix, CancellationToken token)
+  {
+    transform2(matrix, true, token);
+    return matrix;
+  }
+
+  // compute the two-dimensonal FFT of the real matrix. The result is the half spectrum with
+  // cols/2+1 columns (see rfft2(double[][])).
+  public static ComplexMatrix rfft2(RealMatrix matrix)
+  {
+    return rfft2(matrix, CancellationToken.NONE);
+  }
+
+  public static ComplexMatrix rfft2(RealMatrix matrix, CancellationToken token)
+  {
+    int rows = matrix.getRows();
+    int cols = matrix.getCols();
+    ComplexMatrix halfSpectrum = new ComplexMatrix(rows, getHalfSpectrumLength(cols));
+
+    // real row-transformation, the real values are placed at the beginning of the row
+    double[] src = matrix.getData();
+    double[] dst = halfSpectrum.getData();
+    RealFFTPlan rowPlans = RealFFTPlan.of(cols);
     IntStream.range(0, rows).parallel().forEach( i -> {
+      token.throwIfCancelled();
+      int rowOffset = halfSpectrum.getRowOffset(i);
+      if (matrix.hasContiguousRows())
+      {
+        System.arraycopy(src, matrix.getRowOffset(i), dst, rowOffset, cols);
+      }
+      else
+      {
+        for (int j = 0; j < cols; j++)
+        {
+          dst[rowOffset + j] = matrix.get(i, j);
+        }
+      }
+      rfft(dst, rowOffset, rowPlans);
+    });
+
+    columnPass(halfSpectrum, FFTPlanCache.getPlan(rows), false, token);
+
+    return halfSpectrum;
+  }
+
+  // compute the two-dimensonal inverse FFT of a half spectrum created by rfft2(). cols is the
+  // number of columns of the real matrix. The half spectrum is not changed.
+  public static RealMatrix irfft2(ComplexMatrix halfSpectrum, int cols)
+  {
+    return irfft2(halfSpectrum, cols, CancellationToken.NONE);
+  }
+
+  public static RealMatrix irfft2(ComplexMatrix halfSpectrum, int cols, CancellationToken token)
+  {
+    return irfft2InPlace(halfSpectrum.copy(), cols, token);
+  }
+
+  // compute the two-dimensonal inverse FFT of a half spectrum in place. The returned real matrix
+  // is a view sharing the data of the half spectrum, which must be compact.
+  public static RealMatrix irfft2InPlace(ComplexMatrix halfSpectrum, int cols)
+  {
+    return irfft2InPlace(halfSpectrum, cols, CancellationToken.NONE);
+  }
+
+  public static RealMatrix irfft2InPlace(ComplexMatrix halfSpectrum, int cols, CancellationToken token)
+  {
+    if (!halfSpectrum.isCompact() || halfSpectrum.getCols() != getHalfSpectrumLength(cols))
     {
-      fftRows[i] = fft(matrix[i]);
+      throw new IllegalArgumentException("no compact half spectrum for " + cols + " columns");
     }
+
+    int rows = halfSpectrum.getRows();
+    columnPass(halfSpectrum, FFTPlanCache.getPlan(rows), true, token);
+
+    double[] data = halfSpectrum.getData();
+    RealFFTPlan rowPlans = RealFFTPlan.of(cols);
+    IntStream.range(0, rows).parallel().forEach( i -> {
+      token.throwIfCancelled();
+      irfft(data, halfSpectrum.getRowOffset(i), rowPlans);
     });
-    
-    
-    //sample columns and transform it
-    double[][] fftCols = new double[cols/2][];
-    IntStream.range(0, cols/2).parallel().forEach( j -> {
-    {
-      double[] newCol_j = new double[2*rows];
+
+    return RealMatrix.view(data, 0, rows, cols, halfSpectrum.getRowStride());
+  }
+
+  // Number of complex coefficients of a half spectrum row for a real row of length n
+  public static int getHalfSpectrumLength(int n)
+  {
+    return n/2 + 1;
+  }
+
+  // The following versions of the two-dimensional transformations run in the given pool
+  // instead of the pool of the calling thread (see Parallelism)
+
+  public static double[][] fft2(double[][] matrix, ForkJoinPool pool)
+  {
+    return Parallelism.invoke(pool, () -> fft2(matrix));
+  }
+
+  public static double[][] ifft2(double[][] matrix, ForkJoinPool pool)
+  {
+    return Parallelism.invoke(pool, () -> ifft2(matrix));
+  }
+
+  public static double[][] fft2InPlace(double[][] matrix, ForkJoinPool pool)
+  {
+    return Parallelism.invoke(pool, () -> fft2InPlace(matrix));
+  }
+
+  public static double[][] ifft2InPlace(double[][] matrix, ForkJoinPool pool)
+  {
+    return Parallelism.invoke(pool, () -> ifft2InPlace(matrix));
+  }
+
+  public static double[][] rfft2(double[][] matrix, ForkJoinPool pool)
+  {
+    return Parallelism.invoke(pool, () -> rfft2(matrix));
+  }
+
+  public static double[][] irfft2(double[][] halfSpectrum, int cols, ForkJoinPool pool)
+  {
+    return Parallelism.invoke(pool, () -> irfft2(halfSpectrum, cols));
+  }
+
+  public static double[][] irfft2InPlace(double[][] halfSpectrum, int cols, ForkJoinPool pool)
+  {
+    return Parallelism.invoke(pool, () -> irfft2InPlace(halfSpectrum, cols));
+  }
+
+  public static ComplexMatrix fft2(ComplexMatrix matrix, ForkJoinPool pool)
+  {
+    return Parallelism.invoke(pool, () -> fft2(matrix));
+  }
+
+  public static ComplexMatrix ifft2(ComplexMatrix matrix, ForkJoinPool pool)
+  {
+    return Parallelism.invoke(pool, () -> ifft2(matrix));
+  }
+
+  public static ComplexMatrix fft2InPlace(ComplexMatrix matrix, ForkJoinPool pool)
+  {
+    return Parallelism.invoke(pool, () -> fft2InPlace(matrix));
+  }
+
+  public static ComplexMatrix ifft2InPlace(ComplexMatrix matrix, ForkJoinPool pool)
+  {
+    return Parallelism.invoke(pool, () -> ifft2InPlace(matrix));
+  }
+
+  public static ComplexMatrix rfft2(RealMatrix matrix, ForkJoinPool pool)
+  {
+    return Parallelism.invoke(pool, () -> rfft2(matrix));
+  }
+
+  public static RealMatrix irfft2(ComplexMatrix halfSpectrum, int cols, ForkJoinPool pool)
+  {
+    return Parallelism.invoke(pool, () -> irfft2(halfSpectrum, cols));
+  }
+
+  public static RealMatrix irfft2InPlace(ComplexMatrix halfSpectrum, int cols, ForkJoinPool pool)
+  {
+    return Parallelism.invoke(pool, () -> irfft2InPlace(halfSpectrum, cols));
+  }
+
+  private static void transform2(double[][] matrix, boolean inverse, CancellationToken token)
+  {
+    int rows = matrix.length;
+    int cols = matrix[0].length/2;
+
+    FFTPlan rowPlan = FFTPlanCache.getPlan(cols);
+    FFTPlan colPlan = FFTPlanCache.getPlan(rows);
+
+    // row-transformation
+    IntStream rowStream = IntStream.range(0, rows);
+    if( rowPlan.isParallel() )
+      rowStream = rowStream.parallel();
+    rowStream.forEach( i -> {
+      token.throwIfCancelled();
+      if( inverse )
+        rowPlan.ifft(matrix[i], 0);
+      else
+        rowPlan.fft(matrix[i], 0);
+    });
+
+    columnPass(matrix, cols, colPlan, inverse, token);
+  }
+
+  // transforms the first cols complex columns of the matrix. The columns are processed in blocks:
+  // a block of adjacent columns is gathered row by row (contiguous reads) into a per-thread buffer,
+  // transformed there and scattered back. No matrix sized buffer is needed.
+  private static void columnPass(double[][] matrix, int cols, FFTPlan colPlan, boolean inverse, CancellationToken token)
+  {
+    int rows = matrix.length;
+    int blocks = (cols + COLUMN_BLOCK_SIZE - 1) / COLUMN_BLOCK_SIZE;
+
+    IntStream blockStream = IntStream.range(0, blocks);
+    if( colPlan.isParallel() )
+      blockStream = blockStream.parallel();
+    blockStream.forEach( block -> {
+      token.throwIfCancelled();
+      int firstCol = block * COLUMN_BLOCK_SIZE;
+      int blockCols = Math.min(COLUMN_BLOCK_SIZE, cols - firstCol);
+      double[] buffer = getColumnBuffer(blockCols * colPlan.getScratchLength());
+
+      // gather: column b of the block is stored at buffer[b*2*rows ...]
       for (int i = 0; i < rows; i++)
       {
-        newCol_j[2*i] = fftRows[i][2*j];
-        newCol_j[2*i+1] = fftRows[i][2*j+1];
+        double[] row = matrix[i];
+        for (int b = 0, src = 2*firstCol; b < blockCols; b++, src += 2)
+        {
+          int dst = 2*(b*rows + i);
+          buffer[dst] = row[src];
+          buffer[dst+1] = row[src+1];
+        }
       }
-          
-      fftCols[j] = fft(newCol_j);
-    }
-    });
-        
-    // build 2-dim fft-transformation matrix
-    IntStream.range(0, rows).parallel().forEach( i -> {
-    {
-      for (int j = 0; j < cols/2; j++)
+
+      for (int b = 0; b < blockCols; b++)
       {
-        fftRows[i][2*j] = fftCols[j][2*i];
-        fftRows[i][2*j + 1] = fftCols[j][2*i+1];
+        if( inverse )
+          colPlan.ifft(buffer, 2*b*rows);
+        else
+          colPlan.fft(buffer, 2*b*rows);
+      }
+
+      // scatter
+      for (int i = 0; i < rows; i++)
+      {
+        double[] row = matrix[i];
+        for (int b = 0, dst = 2*firstCol; b < blockCols; b++, dst += 2)
+        {
+          int src = 2*(b*rows + i);
+          row[dst] = buffer[src];
+          row[dst+1] = buffer[src+1];
+        }
       }
-    }
     });
-   
-    return fftRows;
   }
-  
-  //compute the two-dimensonal inverse FFT of matrix[][], assuming its width and height are power of 2
-  public static double[][] ifft2(double[][] matrix)
+
+  private static void transform2(ComplexMatrix matrix, boolean inverse, CancellationToken token)
   {
-    assert (matrix != null && matrix[0] != null);
+    int rows = matrix.getRows();
+    int cols = matrix.getCols();
+    double[] data = matrix.getData();
 
-    int rows = matrix.length;
-    int cols = matrix[0].length;
-    
-    assert (2*rows == cols );
-    
-    // col-transformation
-    double[][] fftRows = new double[rows][];
-    IntStream.range(0, rows).parallel().forEach( i -> {
-    {
-      fftRows[i] = ifft(matrix[i]);
-    }
+    FFTPlan rowPlan = FFTPlanCache.getPlan(cols);
+    FFTPlan colPlan = FFTPlanCache.getPlan(rows);
+
+    // row-transformation
+    IntStream rowStream = IntStream.range(0, rows);
+    if( rowPlan.isParallel() )
+      rowStream = rowStream.parallel();
+    rowStream.forEach( i -> {
+      token.throwIfCancelled();
+      if (matrix.hasContiguousRows())
+      {
+        if( inverse )
+          rowPlan.ifft(data, matrix.getRowOffset(i));
+        else
+          rowPlan.fft(data, matrix.getRowOffset(i));
+      }
+      else
+      {
+        double[] row = getColumnBuffer(rowPlan.getScratchLength());
+        for (int j = 0; j < cols; j++)
+        {
+          int index = matrix.index(i, j);
+          row[2*j] = data[index];
+          row[2*j+1] = data[index+1];
+        }
+
+        if( inverse )
+          rowPlan.ifft(row, 0);
+        else
+          rowPlan.fft(row, 0);
+
+        for (int j = 0; j < cols; j++)
+        {
+          int index = matrix.index(i, j);
+          data[index] = row[2*j];
+          data[index+1] = row[2*j+1];
+        }
+      }
     });
-    
-    
-    //sample columns and transform it
-    double[][] fftCols = new double[cols/2][];
-    IntStream.range(0, cols/2).parallel().forEach( j -> {
-    {
-      double[] newCol_j = new double[2*rows];
+
+    columnPass(matrix, colPlan, inverse, token);
+  }
+
+  // transforms the columns of the matrix. The columns are processed in blocks like the columns of
+  // a double[][] matrix: a block of adjacent columns is gathered row by row into a contiguous
+  // buffer, so every cache line of a row is used for the whole block. This works for the
+  // non-square half spectra and views as well, unlike an in-place transposition.
+  private static void columnPass(ComplexMatrix matrix, FFTPlan colPlan, boolean inverse, CancellationToken token)
+  {
+    int rows = matrix.getRows();
+    int cols = matrix.getCols();
+    double[] data = matrix.getData();
+
+    int blocks = (cols + COLUMN_BLOCK_SIZE - 1) / COLUMN_BLOCK_SIZE;
+
+    IntStream blockStream = IntStream.range(0, blocks);
+    if( colPlan.isParallel() )
+      blockStream = blockStream.parallel();
+    blockStream.forEach( block -> {
+      token.throwIfCancelled();
+      int firstCol = block * COLUMN_BLOCK_SIZE;
+      int blockCols = Math.min(COLUMN_BLOCK_SIZE, cols - firstCol);
+      double[] buffer = getColumnBuffer(blockCols * colPlan.getScratchLength());
+
       for (int i = 0; i < rows; i++)
       {
-        newCol_j[2*i] = fftRows[i][2*j];
-        newCol_j[2*i+1] = fftRows[i][2*j+1];
+        for (int b = 0; b < blockCols; b++)
+        {
+          int src = matrix.index(i, firstCol + b);
+          int dst = 2*(b*rows + i);
+          buffer[dst] = data[src];
+          buffer[dst+1] = data[src+1];
+        }
       }
-          
-      fftCols[j] = ifft(newCol_j);
-    }
-    });
-        
-    // build 2-dim fft-transformation matrix
-    IntStream.range(0, rows).parallel().forEach( i -> {
-    {
-      for (int j = 0; j < cols/2; j++)
+
+      for (int b = 0; b < blockCols; b++)
       {
-        fftRows[i][2*j] = fftCols[j][2*i];
-        fftRows[i][2*j + 1] = fftCols[j][2*i+1];
+        if( inverse )
+          colPlan.ifft(buffer, 2*b*rows);
+        else
+          colPlan.fft(buffer, 2*b*rows);
+      }
+
+      for (int i = 0; i < rows; i++)
+      {
+        for (int b = 0; b < blockCols; b++)
+        {
+          int dst = matrix.index(i, firstCol + b);
+          int src = 2*(b*rows + i);
+          data[dst] = buffer[src];
+          data[dst+1] = buffer[src+1];
+        }
       }
-    }
     });
-   
-    return fftRows;
+  }
+
+  private static double[] getColumnBuffer(int length)
+  {
+    double[] buffer = columnBuffer.get();
+    if (buffer.length < length)
+    {
+      buffer = new double[length];
+      columnBuffer.set(buffer);
+    }
+    return buffer;
+  }
+
+  private static double[] getRowBuffer(int length)
+  {
+    double[] buffer = rowBuffer.get();
+    if (buffer.length < length)
+    {
+      buffer = new double[length];
+      rowBuffer.set(buffer);
+    }
+    return buffer;
+  }
+
+  private static double[][] copyOf(double[][] matrix)
+  {
+    double[][] copy = new double[matrix.length][];
+    IntStream.range(0, matrix.length).parallel().forEach( i -> copy[i] = matrix[i].clone() );
+    return copy;
   }
 }
@@ -0,0 +1,458 @@
+package app.util.fft;
+
+/**
+ * Precomputed data for a one-dimensional FFT of a fixed length n.
+ *
+ * Depending on n one of three kernels is used:
+ * - n is a power of 2: iterative in-place radix-2 kernel, or the Stockham kernel on the
+ *   split-complex layout if it is vectorised by the JIT (see SplitComplexFFT)
+ * - n is a product of the factors 2, 3, 5 and 7: mixed-radix kernel
+ * - otherwise: Bluestein's chirp-z algorithm, which maps the transformation
+ *   to a cyclic convolution of power of 2 length
+ *
+ * A plan contains the twiddle factors, the bit-reversal table (radix-2), the
+ * factorisation (mixed-radix), the chirp and its spectrum (Bluestein), the size of
+ * the scratch buffer needed by the two-dimensional transformations and the decision
+ * whether batches of transformations of this length are worth running in parallel.
+ *
+ * Plans are immutable and can be shared between threads. They are created
+ * and held by the FFTPlanCache.
+ */
+public final class FFTPlan
+{
+  // Transformations shorter than this are not split into parallel tasks
+  private static final int MIN_PARALLEL_LENGTH = 64;
+
+  // Factors handled by the mixed-radix kernel
+  private static final int[] RADICES = { 2, 3, 5, 7 };
+
+  private static final int MAX_RADIX = 7;
+
+  private enum Kernel { RADIX_2, MIXED_RADIX, BLUESTEIN }
+
+  // Work buffer of the mixed-radix and Bluestein kernels (one per thread)
+  private static final ThreadLocal<double[]> workBuffer = ThreadLocal.withInitial(() -> new double[0]);
+
+  private final int n;
+  private final Kernel kernel;
+
+  // cos(2*pi*k/n) and sin(2*pi*k/n) interleaved as [cos_0, sin_0, cos_1, sin_1, ...],
+  // k < n/2 for the radix-2 and Bluestein kernel, k < n for the mixed-radix kernel
+  private final double[] twiddles;
+
+  // bitReversal[i] is the index i with reversed bits (radix-2)
+  private final int[] bitReversal;
+
+  // Stockham kernel replacing the radix-2 kernel (null if not enabled)
+  private final SplitComplexFFT splitKernel;
+
+  // factorisation [p_1, m_1, p_2, m_2, ...] with m_i = n/(p_1*...*p_i) (mixed-radix)
+  private final int[] factors;
+
+  // chirp exp(-i*pi*k^2/n), k < n, and the spectrum of the convolution kernel (Bluestein)
+  private final double[] chirp;
+  private final double[] chirpSpectrum;
+  private final FFTPlan convolutionPlan;
+
+  FFTPlan(int n)
+  {
+    if (n < 1)
+    {
+      throw new IllegalArgumentException("n must be positive");
+    }
+
+    this.n = n;
+
+    if ((n & (n - 1)) == 0)
+    {
+      this.kernel = Kernel.RADIX_2;
+      this.twiddles = createTwiddles(n, n/2);
+      this.bitReversal = new int[n];
+      int shift = 32 - Integer.numberOfTrailingZeros(n);
+      for (int i = 0; i < n && n > 1; i++)
+      {
+        this.bitReversal[i] = Integer.reverse(i) >>> shift;
+      }
+      this.splitKernel = (SplitComplexFFT.isEnabled() && n >= SplitComplexFFT.MIN_LENGTH) ? new SplitComplexFFT(n) : null;
+      this.factors = null;
+      this.chirp = null;
+      this.chirpSpectrum = null;
+      this.convolutionPlan = null;
+    }
+    else if (isSmooth(n))
+    {
+      this.kernel = Kernel.MIXED_RADIX;
+      this.twiddles = createTwiddles(n, n);
+      this.bitReversal = null;
+      this.factors = factorize(n);
+      this.splitKernel = null;
+      this.chirp = null;
+      this.chirpSpectrum = null;
+      this.convolutionPlan = null;
+    }
+    else
+    {
+      this.kernel = Kernel.BLUESTEIN;
+      this.twiddles = createTwiddles(n, n/2);
+      this.bitReversal = null;
+      this.factors = null;
+      this.splitKernel = null;
+
+      int m = Integer.highestOneBit(2*n - 1) << 1;
+      this.convolutionPlan = FFTPlanCache.getPlan(m);
+
+      this.chirp = new double[2*n];
+      for (int k = 0; k < n; k++)
+      {
+        // k^2 mod 2n keeps the angle small and exact
+        double angle = Math.PI * (double) (((long) k * k) % (2L * n)) / n;
+        this.chirp[2*k] = Math.cos(angle);
+        this.chirp[2*k+1] = -Math.sin(angle);
+      }
+
+      this.chirpSpectrum = new double[2*m];
+      this.chirpSpectrum[0] = this.chirp[0];
+      this.chirpSpectrum[1] = -this.chirp[1];
+      for (int k = 1; k < n; k++)
+      {
+        this.chirpSpectrum[2*k] = this.chirp[2*k];
+        this.chirpSpectrum[2*k+1] = -this.chirp[2*k+1];
+        this.chirpSpectrum[2*(m-k)] = this.chirp[2*k];
+        this.chirpSpectrum[2*(m-k)+1] = -this.chirp[2*k+1];
+      }
+      this.convolutionPlan.fft(this.chirpSpectrum, 0);
+    }
+  }
+
+  public int getLength()
+  {
+    return this.n;
+  }
+
+  // Number of doubles a thread needs as scratch buffer for transforming one
+  // strided vector (row or column) of this length
+  public int getScratchLength()
+  {
+    return 2*this.n;
+  }
+
+  // true if a batch of transformations of this length should use a parallel stream
+  public boolean isParallel()
+  {
+    return this.n >= MIN_PARALLEL_LENGTH;
+  }
+
+  // Approximate heap size of the plan in bytes (without a shared convolution plan)
+  public long getMemoryInBytes()
+  {
+    return 64L + sizeOf(this.twiddles) + sizeOf(this.bitReversal) + sizeOf(this.factors)
+        + sizeOf(this.chirp) + sizeOf(this.chirpSpectrum)
+        + ((this.splitKernel != null) ? this.splitKernel.getMemoryInBytes() : 0);
+  }
+
+  // cos(2*pi*k/n) and sin(2*pi*k/n), k < n/2, interleaved. The array must not be modified.
+  double[] getTwiddles()
+  {
+    return this.twiddles;
+  }
+
+  // compute in place the FFT of the n complex values stored in data[] starting at offset
+  public void fft(double[] data, int offset)
+  {
+    transform(data, offset);
+  }
+
+  // compute in place the inverse FFT of the n complex values stored in data[] starting at offset
+  public void ifft(double[] data, int offset)
+  {
+    int end = offset + 2*this.n;
+
+    // ifft(x) = conj(fft(conj(x)))/n
+    for (int i = offset + 1; i < end; i += 2)
+    {
+      data[i] = -data[i];
+    }
+
+    transform(data, offset);
+
+    double scale = 1.0 / this.n;
+    for (int i = offset; i < end; i += 2)
+    {
+      data[i] *= scale;
+      data[i+1] *= -scale;
+    }
+  }
+
+  private void transform(double[] data, int offset)
+  {
+    switch (this.kernel)
+    {
+      case RADIX_2:
+        if (this.splitKernel != null)
+          this.splitKernel.fft(data, offset);
+        else
+          radix2(data, offset);
+        break;
+      case MIXED_RADIX:
+        mixedRadix(data, offset);
+        break;
+      default:
+        bluestein(data, offset);
+    }
+  }
+
+  // iterative radix-2 Cooley-Tukey FFT
+  private void radix2(double[] data, int offset)
+  {
+    if (n == 1)
+      return;
+
+    // bit-reversal permutation
+    for (int i = 0; i < n; i++)
+    {
+      int j = bitReversal[i];
+      if (i < j)
+      {
+        int pi = offset + 2*i;
+        int pj = offset + 2*j;
+        double tmpRe = data[pi];
+        double tmpIm = data[pi+1];
+        data[pi] = data[pj];
+        data[pi+1] = data[pj+1];
+        data[pj] = tmpRe;
+        data[pj+1] = tmpIm;
+      }
+    }
+
+    // butterfly stages
+    for (int size = 2; size <= n; size <<= 1)
+    {
+      int halfSize = size >>> 1;
+      int tableStep = n / size;
+      for (int start = 0; start < n; start += size)
+      {
+        for (int k = 0; k < halfSize; k++)
+        {
+          double real = twiddles[2*k*tableStep];
+          double imag = -twiddles[2*k*tableStep + 1];
+
+          int p = offset + 2*(start + k);
+          int q = p + 2*halfSize;
+
+          double tmpRe = real*data[q] - imag*data[q+1];
+          double tmpIm = real*data[q+1] + imag*data[q];
+
+          data[q] = data[p] - tmpRe;
+          data[q+1] = data[p+1] - tmpIm;
+          data[p] += tmpRe;
+          data[p+1] += tmpIm;
+        }
+      }
+    }
+  }
+
+  // recursive mixed-radix decimation in time (as in KISS FFT). The input is copied to the
+  // work buffer, the result is written back to data[].
+  private void mixedRadix(double[] data, int offset)
+  {
+    double[] work = getWorkBuffer(2*n + 2*MAX_RADIX);
+    System.arraycopy(data, offset, work, 0, 2*n);
+    mixedRadixStage(data, offset, work, 0, 1, 0, work, 2*n);
+  }
+
+  private void mixedRadixStage(double[] out, int outOffset, double[] in, int inIndex, int fstride, int factorIndex,
+      double[] scratch, int scratchOffset)
+  {
+    int p = factors[factorIndex];
+    int m = factors[factorIndex + 1];
+
+    if (m == 1)
+    {
+      for (int q = 0; q < p; q++)
+      {
+        int src = 2*(inIndex + q*fstride);
+        out[outOffset + 2*q] = in[src];
+        out[outOffset + 2*q + 1] = in[src + 1];
+      }
+    }
+    else
+    {
+      for (int q = 0; q < p; q++)
+      {
+        mixedRadixStage(out, outOffset + 2*q*m, in, inIndex + q*fstride, fstride*p, factorIndex + 2, scratch, scratchOffset);
+      }
+    }
+
+    if (p == 2)
+      butterfly2(out, outOffset, fstride, m);
+    else
+      butterflyGeneric(out, outOffset, fstride, m, p, scratch, scratchOffset);
+  }
+
+  private void butterfly2(double[] out, int offset, int fstride, int m)
+  {
+    for (int k = 0; k < m; k++)
+    {
+      int a = offset + 2*k;
+      int b = a + 2*m;
+      double wRe = twiddles[2*k*fstride];
+      double wIm = -twiddles[2*k*fstride + 1];
+
+      double tmpRe = wRe*out[b] - wIm*out[b+1];
+      double tmpIm = wRe*out[b+1] + wIm*out[b];
+
+      out[b] = out[a] - tmpRe;
+      out[b+1] = out[a+1] - tmpIm;
+      out[a] += tmpRe;
+      out[a+1] += tmpIm;
+    }
+  }
+
+  private void butterflyGeneric(double[] out, int offset, int fstride, int m, int p, double[] scratch, int scratchOffset)
+  {
+    for (int u = 0; u < m; u++)
+    {
+      for (int q = 0, k = u; q < p; q++, k += m)
+      {
+        scratch[scratchOffset + 2*q] = out[offset + 2*k];
+        scratch[scratchOffset + 2*q + 1] = out[offset + 2*k + 1];
+      }
+
+      for (int q1 = 0, k = u; q1 < p; q1++, k += m)
+      {
+        double sumRe = scratch[scratchOffset];
+        double sumIm = scratch[scratchOffset + 1];
+        int twIndex = 0;
+        for (int q = 1; q < p; q++)
+        {
+          twIndex += fstride*k;
+          if (twIndex >= n)
+            twIndex -= n;
+
+          double wRe = twiddles[2*twIndex];
+          double wIm = -twiddles[2*twIndex + 1];
+          double sRe = scratch[scratchOffset + 2*q];
+          double sIm = scratch[scratchOffset + 2*q + 1];
+          sumRe += wRe*sRe - wIm*sIm;
+          sumIm += wRe*sIm + wIm*sRe;
+        }
+        out[offset + 2*k] = sumRe;
+        out[offset + 2*k + 1] = sumIm;
+      }
+    }
+  }
+
+  // Bluestein: X[k] = w[k] * sum_j (x[j]*w[j]) * conj(w[k-j]) with the chirp w[k] = exp(-i*pi*k^2/n).
+  // The sum is a cyclic convolution computed with power of 2 FFTs.
+  private void bluestein(double[] data, int offset)
+  {
+    int m = this.convolutionPlan.getLength();
+    double[] work = getWorkBuffer(2*m);
+
+    for (int k = 0; k < n; k++)
+    {
+      double xRe = data[offset + 2*k];
+      double xIm = data[offset + 2*k + 1];
+      double wRe = chirp[2*k];
+      double wIm = chirp[2*k + 1];
+      work[2*k] = xRe*wRe - xIm*wIm;
+      work[2*k + 1] = xRe*wIm + xIm*wRe;
+    }
+    for (int i = 2*n; i < 2*m; i++)
+    {
+      work[i] = 0.0;
+    }
+
+    this.convolutionPlan.fft(work, 0);
+    for (int k = 0; k < m; k++)
+    {
+      double aRe = work[2*k];
+      double aIm = work[2*k + 1];
+      double bRe = chirpSpectrum[2*k];
+      double bIm = chirpSpectrum[2*k + 1];
+      work[2*k] = aRe*bRe - aIm*bIm;
+      work[2*k + 1] = aRe*bIm + aIm*bRe;
+    }
+    this.convolutionPlan.ifft(work, 0);
+
+    for (int k = 0; k < n; k++)
+    {
+      double cRe = work[2*k];
+      double cIm = work[2*k + 1];
+      double wRe = chirp[2*k];
+      double wIm = chirp[2*k + 1];
+      data[offset + 2*k] = cRe*wRe - cIm*wIm;
+      data[offset + 2*k + 1] = cRe*wIm + cIm*wRe;
+    }
+  }
+
+  private static double[] getWorkBuffer(int length)
+  {
+    double[] buffer = workBuffer.get();
+    if (buffer.length < length)
+    {
+      buffer = new double[length];
+      workBuffer.set(buffer);
+    }
+    return buffer;
+  }
+
+  // true if n is a product of the mixed-radix factors
+  private static boolean isSmooth(int n)
+  {
+    for (int radix : RADICES)
+    {
+      while (n % radix == 0)
+        n /= radix;
+    }
+    return n == 1;
+  }
+
+  private static int[] factorize(int n)
+  {
+    int[] factors = new int[2*32];
+    int count = 0;
+    int m = n;
+    for (int radix : RADICES)
+    {
+      while (m % radix == 0)
+      {
+        m /= radix;
+        factors[count++] = radix;
+        factors[count++] = m;
+      }
+    }
+
+    int[] result = new int[count];
+    System.arraycopy(factors, 0, result, 0, count);
+    return result;
+  }
+
+  private static double[] createTwiddles(int n, int count)
+  {
+    double[] twiddles = new double[2*count];
+    for (int k = 0; k < count; k++)
+    {
+      double kth = 2 * k * Math.PI / n;
+      twiddles[2*k] = Math.cos(kth);
+      twiddles[2*k+1] = Math.sin(kth);
+    }
+    return twiddles;
+  }
+
+  private static long sizeOf(double[] array)
+  {
+    return (array == null) ? 0 : 16L + 8L*array.length;
+  }
+
+  private static long sizeOf(int[] array)
+  {
+    return (array == null) ? 0 : 16L + 4L*array.length;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "FFTPlan[n=" + this.n + ", " + this.kernel + ((this.splitKernel != null) ? " split" : "") + ", " + getMemoryInBytes() + " bytes]";
+  }
+}
@@ -0,0 +1,191 @@
+package app.util.fft;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe cache of FFT plans, one plan per transformation length.
+ *
+ * The cache is bounded by the memory of the held plans. If the bound is
+ * exceeded the least recently used plans are evicted. The bound can be set
+ * with the system property "fft.plan.cache.bytes" or setMaximumMemory().
+ *
+ * A hit takes no lock: the plans are held in a ConcurrentHashMap and the
+ * recency of a plan is the epoch of its last use, where the epoch only
+ * advances when a plan is added. So a hit writes the entry only the first
+ * time it is used in an epoch, and the row loops of a 2D transformation do
+ * not write shared memory at all. The 2D transformations still fetch their
+ * plans once per pass (see RealFFTPlan).
+ *
+ * Hits, misses, evictions and the memory of the held plans can be queried
+ * for sizing the cache.
+ */
+public final class FFTPlanCache
+{
+  private static final long DEFAULT_MAXIMUM_MEMORY = 64L * 1024 * 1024;
+
+  private static final ConcurrentHashMap<Integer, Entry> plans = new ConcurrentHashMap<>();
+
+  // guards the insertions, evictions and the bound
+  private static final Object lock = new Object();
+
+  private static long maximumMemory = Long.getLong("fft.plan.cache.bytes", DEFAULT_MAXIMUM_MEMORY);
+  private static long memoryInBytes = 0;
+  private static volatile long epoch = 0;
+
+  private static final LongAdder hitCount = new LongAdder();
+  private static final AtomicLong missCount = new AtomicLong();
+  private static final AtomicLong evictionCount = new AtomicLong();
+
+  private FFTPlanCache()
+  {
+
+  }
+
+  // Returns the plan for the length n. The plan is created if it is not cached.
+  public static FFTPlan getPlan(int n)
+  {
+    Entry entry = plans.get(n);
+    if (entry != null)
+    {
+      hitCount.increment();
+      entry.touch();
+      return entry.plan;
+    }
+
+    // create the plan outside the lock, a concurrent creation of the same plan is harmless
+    missCount.incrementAndGet();
+    FFTPlan newPlan = new FFTPlan(n);
+
+    synchronized (lock)
+    {
+      entry = plans.get(n);
+      if (entry != null)
+      {
+        return entry.plan;
+      }
+
+      epoch++;
+      plans.put(n, new Entry(newPlan));
+      memoryInBytes += newPlan.getMemoryInBytes();
+      evict(newPlan);
+      return newPlan;
+    }
+  }
+
+  // Sets the memory bound in bytes. Plans are evicted if necessary.
+  public static void setMaximumMemory(long bytes)
+  {
+    synchronized (lock)
+    {
+      maximumMemory = bytes;
+      evict(null);
+    }
+  }
+
+  public static long getMaximumMemory()
+  {
+    synchronized (lock)
+    {
+      return maximumMemory;
+    }
+  }
+
+  // Memory of all cached plans in bytes
+  public static long getMemoryInBytes()
+  {
+    synchronized (lock)
+    {
+      return memoryInBytes;
+    }
+  }
+
+  public static int size()
+  {
+    return plans.size();
+  }
+
+  public static long getHitCount()
+  {
+    return hitCount.sum();
+  }
+
+  public static long getMissCount()
+  {
+    return missCount.get();
+  }
+
+  public static long getEvictionCount()
+  {
+    return evictionCount.get();
+  }
+
+  // Removes all plans and resets the statistics
+  public static void clear()
+  {
+    synchronized (lock)
+    {
+      plans.clear();
+      memoryInBytes = 0;
+      hitCount.reset();
+      missCount.set(0);
+      evictionCount.set(0);
+    }
+  }
+
+  public static String getStatistics()
+  {
+    synchronized (lock)
+    {
+      return "FFT plan cache: " + plans.size() + " plans, " + memoryInBytes / 1024 + " of " + maximumMemory / 1024 + " [kB], "
+          + hitCount.sum() + " hits, " + missCount.get() + " misses, " + evictionCount.get() + " evictions";
+    }
+  }
+
+  // Removes least recently used plans until the memory bound holds.
+  // The plan keep is never removed, even if it alone exceeds the bound.
+  private static void evict(FFTPlan keep)
+  {
+    if (memoryInBytes <= maximumMemory)
+      return;
+
+    List<Map.Entry<Integer, Entry>> entries = new ArrayList<>(plans.entrySet());
+    entries.sort(Comparator.comparingLong(e -> e.getValue().lastUse));
+    for (int i = 0; i < entries.size() && memoryInBytes > maximumMemory; i++)
+    {
+      Entry entry = entries.get(i).getValue();
+      if (entry.plan == keep)
+        continue;
+
+      plans.remove(entries.get(i).getKey());
+      memoryInBytes -= entry.plan.getMemoryInBytes();
+      evictionCount.incrementAndGet();
+    }
+  }
+
+  private static final class Entry
+  {
+    private final FFTPlan plan;
+
+    // epoch of the last use, a racy write only makes the order less exact
+    private volatile long lastUse;
+
+    private Entry(FFTPlan plan)
+    {
+      this.plan = plan;
+      this.lastUse = epoch;
+    }
+
+    private void touch()
+    {
+      long current = epoch;
+      if (this.lastUse != current)
+        this.lastUse = current;
+    }
+  }
+}
@@ -3,9 +3,11 @@ package app.util.fft;
 import java.awt.image.BufferedImage;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
+import app.util.image.Rasters;
 
 /**
  * The class contains several useful methods for the fft calculation if
@@ -46,8 +48,38 @@ public final class FFTUtils
     return matrix;
   }
   
+  // Creates a new real matrix from an (non-squared) image. The rows and cols of the matrix are a power
+  // of two. The additional introduced elements are set to zero. The matrix is the input of FFT.rfft2().
+  public static double[][] getPaddedPowerOf2RealMatrixForPixelBuffer(int[] pixelBuffer, int width, int height)
+  {
+    return getRealMatrixForPixelBuffer(pixelBuffer, width, height, true);
+  }
+
+  // Creates a new real matrix from an image. If padToPowerOf2 is set the rows and cols are padded
+  // to the next power of two, otherwise the matrix has the size of the image.
+  public static double[][] getRealMatrixForPixelBuffer(int[] pixelBuffer, int width, int height, boolean padToPowerOf2)
+  {
+    int adjustWidth = padToPowerOf2 ? getNextPowerOf2(width) : width;
+    int adjustHight = padToPowerOf2 ? getNextPowerOf2(height) : height;
+
+    double[][] matrix = new double[adjustWidth][adjustHight];
+    IntStream.range(0, width).parallel().forEach( i -> {
+      for (int j = 0; j < height; j++)
+      {
+        matrix[i][j] = pixelBuffer[i * height + j] & 0xff;
+      }
+    });
+
+    return matrix;
+  }
+
   // Create a new matrix. All elements smaller than the given threshold are set to zero.
   public static double[][] createTruncatedMatrix(double[][] cMatrix, double threshold)
+  {
+    return createTruncatedMatrix(cMatrix, threshold, CancellationToken.NONE);
+  }
+
+  public static double[][] createTruncatedMatrix(double[][] cMatrix, double threshold, CancellationToken token)
   {
     int rows = cMatrix.length;
     int cols = cMatrix[0].length;
@@ -56,20 +88,17 @@ public final class FFTUtils
     
     double thresholdSquared = threshold*threshold;
     IntStream.range(0, rows).parallel().forEach( i -> {
+    token.throwIfCancelled();
     {
+      // multiplied by a 0/1 mask instead of branching (see SplitComplexFFT.truncate())
+      double[] row = cMatrix[i];
+      double[] resultRow = result[i];
       for(int j=0; j<cols/2; j++)
       {
-        double absSquard = cMatrix[i][2*j]*cMatrix[i][2*j] + cMatrix[i][2*j+1]*cMatrix[i][2*j+1];
-        if( absSquard > thresholdSquared )
-        {
-          result[i][2*j] = cMatrix[i][2*j];
-          result[i][2*j+1] = cMatrix[i][2*j+1];
-        }
-        else
-        {
-          result[i][2*j] = 0.0;
-          result[i][2*j+1] = 0.0;
-        }
+        double absSquard = row[2*j]*row[2*j] + row[2*j+1]*row[2*j+1];
+        double keep = (absSquard > thresholdSquared) ? 1.0 : 0.0;
+        resultRow[2*j] = row[2*j] * keep;
+        resultRow[2*j+1] = row[2*j+1] * keep;
       }
     }  }); 
     
@@ -120,6 +149,14 @@ public final class FFTUtils
     return adjustedPixel;
   }
   
+  // Create a new half spectrum (see FFT.rfft2). All elements smaller than the given threshold are set
+  // to zero. Since the half spectrum holds complex coefficients in the same layout as a full
+  // spectrum, the truncation is the same; the dropped redundant coefficients are truncated implicitly.
+  public static double[][] createTruncatedHalfSpectrum(double[][] halfSpectrum, double threshold)
+  {
+    return createTruncatedMatrix(halfSpectrum, threshold);
+  }
+
   // Creates a rectangular sub-matrix
   public static double[][] createSubMatrix(double[][] matrix, int rowSize, int colSize)
   {
@@ -140,17 +177,25 @@ public final class FFTUtils
   
   // Creates real matrix containing the absolute values. cMatrix is a complex matrix.
   public static double[][] getAbsValuesOfMatrix(double[][] cMatrix)
+  {
+    return getAbsValuesOfMatrix(cMatrix, CancellationToken.NONE);
+  }
+
+  public static double[][] getAbsValuesOfMatrix(double[][] cMatrix, CancellationToken token)
   {  
     int row = cMatrix.length;
     int col = cMatrix[0].length;
     double[][] dMatrix = new double[row][col/2];
     
     IntStream.range(0, row).parallel().forEach( i -> {
+    token.throwIfCancelled();
     //for(int i=0; i < row; i++)
     {
+      double[] cRow = cMatrix[i];
+      double[] dRow = dMatrix[i];
       for(int j=0; j<col/2; j++)
       {
-        dMatrix[i][j] = Math.sqrt( cMatrix[i][2*j]*cMatrix[i][2*j] + cMatrix[i][2*j+1]*cMatrix[i][2*j+1] );
+        dRow[j] = Math.sqrt( cRow[2*j]*cRow[2*j] + cRow[2*j+1]*cRow[2*j+1] );
       }
     }
     });
@@ -158,6 +203,85 @@ public final class FFTUtils
     return dMatrix;
   }
   
+  // Creates real matrix containing the absolute values of the full spectrum. halfSpectrum is a half
+  // spectrum created by FFT.rfft2() and cols the number of columns of the real matrix.
+  // The missing coefficients are restored by the Hermitian symmetry |X[r][c]| = |X[-r][-c]|.
+  public static double[][] getAbsValuesOfHalfSpectrum(double[][] halfSpectrum, int cols)
+  {
+    return getAbsValuesOfHalfSpectrum(halfSpectrum, cols, CancellationToken.NONE);
+  }
+
+  public static double[][] getAbsValuesOfHalfSpectrum(double[][] halfSpectrum, int cols, CancellationToken token)
+  {
+    int rows = halfSpectrum.length;
+    int halfCols = FFT.getHalfSpectrumLength(cols);
+    double[][] dMatrix = new double[rows][cols];
+
+    IntStream.range(0, rows).parallel().forEach( i -> {
+      token.throwIfCancelled();
+      double[] row = halfSpectrum[i];
+      double[] mirrorRow = halfSpectrum[(rows - i) % rows];
+      for (int j = 0; j < cols; j++)
+      {
+        dMatrix[i][j] = (j < halfCols) ? abs(row, j) : abs(mirrorRow, cols - j);
+      }
+    });
+
+    return dMatrix;
+  }
+
+  // Creates real matrix containing the shifted absolute values of the full spectrum (like
+  // shiftAbsFourierKoef(getAbsValuesOfHalfSpectrum(halfSpectrum, cols)) but in one pass).
+  public static double[][] getShiftedAbsValuesOfHalfSpectrum(double[][] halfSpectrum, int cols)
+  {
+    return getShiftedAbsValuesOfHalfSpectrum(halfSpectrum, cols, CancellationToken.NONE);
+  }
+
+  public static double[][] getShiftedAbsValuesOfHalfSpectrum(double[][] halfSpectrum, int cols, CancellationToken token)
+  {
+    int rows = halfSpectrum.length;
+    int halfCols = FFT.getHalfSpectrumLength(cols);
+    int rowShift = rows - rows / 2;
+    int colShift = cols - cols / 2;
+    double[][] dMatrix = new double[rows][cols];
+
+    IntStream.range(0, rows).parallel().forEach( i -> {
+      token.throwIfCancelled();
+      int r = (i + rowShift) % rows;
+      double[] row = halfSpectrum[r];
+      double[] mirrorRow = halfSpectrum[(rows - r) % rows];
+      for (int j = 0; j < cols; j++)
+      {
+        int c = (j + colShift) % cols;
+        dMatrix[i][j] = (c < halfCols) ? abs(row, c) : abs(mirrorRow, cols - c);
+      }
+    });
+
+    return dMatrix;
+  }
+
+  // Creates a real matrix containing the absolute values of the upper left rowSize x colSize elements
+  // of the real matrix. It crops the result of FFT.irfft2() to the image size.
+  public static double[][] getAbsValuesOfRealSubMatrix(double[][] matrix, int rowSize, int colSize)
+  {
+    assert( matrix.length >= rowSize && matrix[0].length >= colSize );
+
+    double[][] dMatrix = new double[rowSize][colSize];
+    IntStream.range(0, rowSize).parallel().forEach( i -> {
+      for (int j = 0; j < colSize; j++)
+      {
+        dMatrix[i][j] = Math.abs(matrix[i][j]);
+      }
+    });
+
+    return dMatrix;
+  }
+
+  private static double abs(double[] row, int j)
+  {
+    return Math.sqrt( row[2*j]*row[2*j] + row[2*j+1]*row[2*j+1] );
+  }
+
   // Get the next power of two
   public static int getNextPowerOf2(int n)
   {
@@ -221,6 +345,7 @@ public final class FFTUtils
 
   // Does an in place shift!!
   // Its a useful tranformation befor visualiszing a fft matrix
+  // (the element (0,0) is moved to (width/2, height/2), also for odd sizes)
   public static double[][] shiftAbsFourierKoef(double[][] matrix)
   {
     int width = matrix.length;
@@ -228,18 +353,18 @@ public final class FFTUtils
 
     // Change koefficients (fftshif)
     double[][] wscratch = new double[width / 2][];
-    System.arraycopy(matrix, 0, wscratch, 0, wscratch.length);
-    System.arraycopy(matrix, width / 2, matrix, 0, wscratch.length);
-    int wpos = (width % 2 == 0) ? width / 2 : width / 2 + 1;
-    System.arraycopy(wscratch, 0, matrix, wpos, wscratch.length);
+    int wpos = width - wscratch.length;
+    System.arraycopy(matrix, wpos, wscratch, 0, wscratch.length);
+    System.arraycopy(matrix, 0, matrix, wscratch.length, wpos);
+    System.arraycopy(wscratch, 0, matrix, 0, wscratch.length);
 
     double[] hscratch = new double[height / 2];
+    int hpos = height - hscratch.length;
     for (int i = 0; i < width; i++)
     {
-      System.arraycopy(matrix[i], 0, hscratch, 0, hscratch.length);
-      System.arraycopy(matrix[i], height / 2, matrix[i], 0, hscratch.length);
-      int hpos = (height % 2 == 0) ? height / 2 : height / 2 + 1;
-      System.arraycopy(hscratch, 0, matrix[i], hpos, hscratch.length);
+      System.arraycopy(matrix[i], hpos, hscratch, 0, hscratch.length);
+      System.arraycopy(matrix[i], 0, matrix[i], hscratch.length, hpos);
+      System.arraycopy(hscratch, 0, matrix[i], 0, hscratch.length);
     }
 
     return matrix;
@@ -251,29 +376,387 @@ public final class FFTUtils
     return Arrays.stream(matrix).parallel().flatMapToDouble( row -> Arrays.stream(row) ).sorted().boxed().collect(Collectors.toList());
   }
 
+  // The token is checked for every row before and after sorting, the sort itself can not be
+  // interrupted
+  public static List<Double> getSortedElements(double[][] matrix, CancellationToken token)
+  {
+    double[] elements = Arrays.stream(matrix).parallel().flatMapToDouble( row -> {
+      token.throwIfCancelled();
+      return Arrays.stream(row);
+    }).toArray();
+
+    Arrays.parallelSort(elements);
+    return toCheckedList(elements, matrix[0].length, token);
+  }
+
   // Creates a log scaled gray image of a matrix. The gray value of a pixel ist calculated by
   //
-  // grayValue = 255*Math.log(maxElement)/Math.log(matrix[x][y])
+  // grayValue = 255*Math.log(matrix[x][y])/Math.log(maxElement)
   //
-  // maxElement should be the largest element of the matrix
+  // maxElement should be the largest element of the matrix. The gray values are clamped to
+  // [0, 255] and written in parallel bands of rows into the pixel buffer of the image; the
+  // logarithm is approximated with a table (see Rasters.LogScale).
   public static BufferedImage getLogScaledBufferedImageForMatix(double[][]  matrix, double maxElement)
   {
     int width = matrix.length;
     int height = matrix[0].length;
 
-    double logMax = Math.log(maxElement);
+    Rasters.LogScale logScale = new Rasters.LogScale(maxElement);
 
-    BufferedImage imageOut = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB); // Erzeuge neues Bild
-    for (int i = 0; i < width * height; i++)
-    {
-      int x = i % width;
-      int y = i / width;
+    BufferedImage imageOut = Rasters.createImage(width, height);
+    int[] pixels = Rasters.getPixels(imageOut);
+    Rasters.forEachBand(height, (firstRow, lastRow) -> {
+      // the columns of the matrix rows are read contiguously
+      for (int x = 0; x < width; x++)
+      {
+        double[] row = matrix[x];
+        for (int y = firstRow; y < lastRow; y++)
+        {
+          pixels[y*width + x] = logScale.toPixel(row[y]);
+        }
+      }
+    });
 
-      int grayValue = (int) Math.round(Math.log(matrix[x][y]) / logMax * 255);
-      int rgb = (grayValue << 16) + (grayValue << 8) + grayValue;
-      imageOut.setRGB(x, y, rgb);
-    }
+    return imageOut;
+  }
+
+  // ------------------------------------------------------------
+  // --------- versions for ComplexMatrix and RealMatrix ---------
+  // ------------------------------------------------------------
+
+  // Creates a new real matrix from an image (see getRealMatrixForPixelBuffer). The padding is
+  // realised by writing the image into a sub-matrix view of the zero matrix.
+  public static RealMatrix createRealMatrixForPixelBuffer(int[] pixelBuffer, int width, int height, boolean padToPowerOf2)
+  {
+    int adjustWidth = padToPowerOf2 ? getNextPowerOf2(width) : width;
+    int adjustHight = padToPowerOf2 ? getNextPowerOf2(height) : height;
+
+    RealMatrix matrix = new RealMatrix(adjustWidth, adjustHight);
+    RealMatrix image = matrix.subMatrix(0, 0, width, height);
+    IntStream.range(0, width).parallel().forEach( i -> {
+      for (int j = 0; j < height; j++)
+      {
+        image.set(i, j, pixelBuffer[i * height + j] & 0xff);
+      }
+    });
+
+    return matrix;
+  }
+
+  // Creates a new complex matrix from an image (see getPaddedPowerOf2MatrixForPixelBuffer)
+  public static ComplexMatrix createComplexMatrixForPixelBuffer(int[] pixelBuffer, int width, int height, boolean padToPowerOf2)
+  {
+    int adjustWidth = padToPowerOf2 ? getNextPowerOf2(width) : width;
+    int adjustHight = padToPowerOf2 ? getNextPowerOf2(height) : height;
+
+    ComplexMatrix matrix = new ComplexMatrix(adjustWidth, adjustHight);
+    ComplexMatrix image = matrix.subMatrix(0, 0, width, height);
+    IntStream.range(0, width).parallel().forEach( i -> {
+      for (int j = 0; j < height; j++)
+      {
+        image.set(i, j, pixelBuffer[i * height + j] & 0xff, 0.0);
+      }
+    });
+
+    return matrix;
+  }
+
+  // Create a new matrix. All elements smaller than the given threshold are set to zero.
+  public static ComplexMatrix createTruncatedMatrix(ComplexMatrix cMatrix, double threshold)
+  {
+    // copy and truncation in one pass
+    ComplexMatrix result = new ComplexMatrix(cMatrix.getRows(), cMatrix.getCols());
+    SpectrumKernels.truncateAbsMax(cMatrix, threshold, result, CancellationToken.NONE);
+    return result;
+  }
+
+  // Create a new half spectrum. All elements smaller than the given threshold are set to zero.
+  public static ComplexMatrix createTruncatedHalfSpectrum(ComplexMatrix halfSpectrum, double threshold)
+  {
+    return createTruncatedMatrix(halfSpectrum, threshold);
+  }
+
+  // Creates a rectangular sub-matrix (a view, the data is shared)
+  public static ComplexMatrix createSubMatrix(ComplexMatrix matrix, int rowSize, int colSize)
+  {
+    return matrix.subMatrix(0, 0, rowSize, colSize);
+  }
+
+  // Creates a rectangular sub-matrix (a view, the data is shared)
+  public static RealMatrix createSubMatrix(RealMatrix matrix, int rowSize, int colSize)
+  {
+    return matrix.subMatrix(0, 0, rowSize, colSize);
+  }
+
+  // Creates real matrix containing the absolute values.
+  public static RealMatrix getAbsValuesOfMatrix(ComplexMatrix cMatrix)
+  {
+    return getAbsValuesOfMatrix(cMatrix, CancellationToken.NONE);
+  }
+
+  public static RealMatrix getAbsValuesOfMatrix(ComplexMatrix cMatrix, CancellationToken token)
+  {
+    int rows = cMatrix.getRows();
+    int cols = cMatrix.getCols();
+    double[] data = cMatrix.getData();
+    RealMatrix dMatrix = new RealMatrix(rows, cols);
+    double[] result = dMatrix.getData();
+
+    IntStream.range(0, rows).parallel().forEach( i -> {
+      token.throwIfCancelled();
+      for (int j = 0; j < cols; j++)
+      {
+        int index = cMatrix.index(i, j);
+        result[i*cols + j] = Math.sqrt( data[index]*data[index] + data[index+1]*data[index+1] );
+      }
+    });
+
+    return dMatrix;
+  }
+
+  // Creates real matrix containing the absolute values of the full spectrum (see
+  // getAbsValuesOfHalfSpectrum(double[][], int))
+  public static RealMatrix getAbsValuesOfHalfSpectrum(ComplexMatrix halfSpectrum, int cols)
+  {
+    return getAbsValuesOfHalfSpectrum(halfSpectrum, cols, CancellationToken.NONE);
+  }
+
+  public static RealMatrix getAbsValuesOfHalfSpectrum(ComplexMatrix halfSpectrum, int cols, CancellationToken token)
+  {
+    int rows = halfSpectrum.getRows();
+    int halfCols = FFT.getHalfSpectrumLength(cols);
+    RealMatrix dMatrix = new RealMatrix(rows, cols);
+    double[] result = dMatrix.getData();
+
+    IntStream.range(0, rows).parallel().forEach( i -> {
+      token.throwIfCancelled();
+      int mirrorRow = (rows - i) % rows;
+      for (int j = 0; j < cols; j++)
+      {
+        result[i*cols + j] = (j < halfCols) ? halfSpectrum.abs(i, j) : halfSpectrum.abs(mirrorRow, cols - j);
+      }
+    });
+
+    return dMatrix;
+  }
+
+  // Shifted absolute values of the full spectrum. The result is a shifted view.
+  public static RealMatrix getShiftedAbsValuesOfHalfSpectrum(ComplexMatrix halfSpectrum, int cols)
+  {
+    return getAbsValuesOfHalfSpectrum(halfSpectrum, cols).shifted();
+  }
+
+  public static RealMatrix getShiftedAbsValuesOfHalfSpectrum(ComplexMatrix halfSpectrum, int cols, CancellationToken token)
+  {
+    return getAbsValuesOfHalfSpectrum(halfSpectrum, cols, token).shifted();
+  }
+
+  // Creates a compact real matrix containing the absolute values of the upper left rowSize x colSize
+  // elements of the real matrix.
+  public static RealMatrix getAbsValuesOfRealSubMatrix(RealMatrix matrix, int rowSize, int colSize)
+  {
+    RealMatrix subMatrix = matrix.subMatrix(0, 0, rowSize, colSize);
+    RealMatrix dMatrix = new RealMatrix(rowSize, colSize);
+    double[] result = dMatrix.getData();
+
+    IntStream.range(0, rowSize).parallel().forEach( i -> {
+      for (int j = 0; j < colSize; j++)
+      {
+        result[i*colSize + j] = Math.abs(subMatrix.get(i, j));
+      }
+    });
+
+    return dMatrix;
+  }
+
+  // The shift is realised as view, the matrix is not changed
+  public static RealMatrix shiftAbsFourierKoef(RealMatrix matrix)
+  {
+    return matrix.shifted();
+  }
+
+  // Gets a sorted List of the matrix elements
+  public static List<Double> getSortedElements(RealMatrix matrix)
+  {
+    return IntStream.range(0, matrix.getRows()).parallel()
+        .mapToObj( i -> IntStream.range(0, matrix.getCols()).mapToDouble( j -> matrix.get(i, j) ) )
+        .flatMapToDouble( row -> row ).sorted().boxed().collect(Collectors.toList());
+  }
+
+  // see getSortedElements(double[][], CancellationToken)
+  public static List<Double> getSortedElements(RealMatrix matrix, CancellationToken token)
+  {
+    int cols = matrix.getCols();
+    double[] elements = new double[Math.multiplyExact(matrix.getRows(), cols)];
+    IntStream.range(0, matrix.getRows()).parallel().forEach( i -> {
+      token.throwIfCancelled();
+      for (int j = 0; j < cols; j++)
+      {
+        elements[i*cols + j] = matrix.get(i, j);
+      }
+    });
+
+    Arrays.parallelSort(elements);
+    return toCheckedList(elements, cols, token);
+  }
+
+  // Boxes the elements in parallel chunks of chunkSize elements, the token is checked per chunk
+  private static List<Double> toCheckedList(double[] elements, int chunkSize, CancellationToken token)
+  {
+    int chunks = (elements.length + chunkSize - 1) / chunkSize;
+    return IntStream.range(0, chunks).parallel().boxed().flatMap( chunk -> {
+      token.throwIfCancelled();
+      int from = chunk * chunkSize;
+      return Arrays.stream(elements, from, Math.min(elements.length, from + chunkSize)).boxed();
+    }).collect(Collectors.toList());
+  }
+
+  // Creates a gray image (image buffer) for a real matrix. Values are clamped to [0, 255].
+  public static int[] getPixelBufferFor(RealMatrix matrix)
+  {
+    int width = matrix.getRows();
+    int height = matrix.getCols();
+
+    int[] pixelBuffer = new int[width*height];
+    IntStream.range(0, width).parallel().forEach( i -> {
+      for (int j = 0; j < height; j++)
+      {
+        double value = Math.min(255.0, Math.max(0.0, matrix.get(i, j)));
+        int grayValue = ((int) Math.round(value)) & 0xff;
+        pixelBuffer[i * height + j] = (grayValue << 16) + (grayValue << 8) + grayValue;
+      }
+    });
+
+    return pixelBuffer;
+  }
+
+  // Creates a log scaled gray image of a matrix (see getLogScaledBufferedImageForMatix(double[][], double))
+  public static BufferedImage getLogScaledBufferedImageForMatix(RealMatrix matrix, double maxElement)
+  {
+    int width = matrix.getRows();
+    int height = matrix.getCols();
+
+    Rasters.LogScale logScale = new Rasters.LogScale(maxElement);
+
+    BufferedImage imageOut = Rasters.createImage(width, height);
+    int[] pixels = Rasters.getPixels(imageOut);
+    Rasters.forEachBand(height, (firstRow, lastRow) -> {
+      for (int x = 0; x < width; x++)
+      {
+        for (int y = firstRow; y < lastRow; y++)
+        {
+          pixels[y*width + x] = logScale.toPixel(matrix.get(x, y));
+        }
+      }
+    });
 
     return imageOut;
   }
+
+  // ------------------------------------------------------------
+  // --------- versions running in the given ForkJoinPool --------
+  // ------------------------------------------------------------
+  //
+  // The parallel loops run in the given pool instead of the pool of the calling thread
+  // (see Parallelism)
+
+  public static double[][] getRealMatrixForPixelBuffer(int[] pixelBuffer, int width, int height, boolean padToPowerOf2, ForkJoinPool pool)
+  {
+    return Parallelism.invoke(pool, () -> getRealMatrixForPixelBuffer(pixelBuffer, width, height, padToPowerOf2));
+  }
+
+  public static double[][] createTruncatedMatrix(double[][] cMatrix, double threshold, ForkJoinPool pool)
+  {
+    return Parallelism.invoke(pool, () -> createTruncatedMatrix(cMatrix, threshold));
+  }
+
+  public static double[][] createNewMatrixWithNextPowerOfTwoDimensions(double[][] matrix, ForkJoinPool pool)
+  {
+    return Parallelism.invoke(pool, () -> createNewMatrixWithNextPowerOfTwoDimensions(matrix));
+  }
+
+  public static double[][] createTruncatedHalfSpectrum(double[][] halfSpectrum, double threshold, ForkJoinPool pool)
+  {
+    return Parallelism.invoke(pool, () -> createTruncatedHalfSpectrum(halfSpectrum, threshold));
+  }
+
+  public static double[][] getAbsValuesOfMatrix(double[][] cMatrix, ForkJoinPool pool)
+  {
+    return Parallelism.invoke(pool, () -> getAbsValuesOfMatrix(cMatrix));
+  }
+
+  public static double[][] getAbsValuesOfHalfSpectrum(double[][] halfSpectrum, int cols, ForkJoinPool pool)
+  {
+    return Parallelism.invoke(pool, () -> getAbsValuesOfHalfSpectrum(halfSpectrum, cols));
+  }
+
+  public static double[][] getShiftedAbsValuesOfHalfSpectrum(double[][] halfSpectrum, int cols, ForkJoinPool pool)
+  {
+    return Parallelism.invoke(pool, () -> getShiftedAbsValuesOfHalfSpectrum(halfSpectrum, cols));
+  }
+
+  public static double[][] getAbsValuesOfRealSubMatrix(double[][] matrix, int rowSize, int colSize, ForkJoinPool pool)
+  {
+    return Parallelism.invoke(pool, () -> getAbsValuesOfRealSubMatrix(matrix, rowSize, colSize));
+  }
+
+  public static int[] createNewGrayScaleBuffer(int[] buffer, ForkJoinPool pool)
+  {
+    return Parallelism.invoke(pool, () -> createNewGrayScaleBuffer(buffer));
+  }
+
+  public static List<Double> getSortedElements(double[][] matrix, ForkJoinPool pool)
+  {
+    return Parallelism.invoke(pool, () -> getSortedElements(matrix));
+  }
+
+  public static RealMatrix createRealMatrixForPixelBuffer(int[] pixelBuffer, int width, int height, boolean padToPowerOf2, ForkJoinPool pool)
+  {
+    return Parallelism.invoke(pool, () -> createRealMatrixForPixelBuffer(pixelBuffer, width, height, padToPowerOf2));
+  }
+
+  public static ComplexMatrix createComplexMatrixForPixelBuffer(int[] pixelBuffer, int width, int height, boolean padToPowerOf2, ForkJoinPool pool)
+  {
+    return Parallelism.invoke(pool, () -> createComplexMatrixForPixelBuffer(pixelBuffer, width, height, padToPowerOf2));
+  }
+
+  public static ComplexMatrix createTruncatedMatrix(ComplexMatrix cMatrix, double threshold, ForkJoinPool pool)
+  {
+    return Parallelism.invoke(pool, () -> createTruncatedMatrix(cMatrix, threshold));
+  }
+
+  public static ComplexMatrix createTruncatedHalfSpectrum(ComplexMatrix halfSpectrum, double threshold, ForkJoinPool pool)
+  {
+    return Parallelism.invoke(pool, () -> createTruncatedHalfSpectrum(halfSpectrum, threshold));
+  }
+
+  public static RealMatrix getAbsValuesOfMatrix(ComplexMatrix cMatrix, ForkJoinPool pool)
+  {
+    return Parallelism.invoke(pool, () -> getAbsValuesOfMatrix(cMatrix));
+  }
+
+  public static RealMatrix getAbsValuesOfHalfSpectrum(ComplexMatrix halfSpectrum, int cols, ForkJoinPool pool)
+  {
+    return Parallelism.invoke(pool, () -> getAbsValuesOfHalfSpectrum(halfSpectrum, cols));
+  }
+
+  public static RealMatrix getShiftedAbsValuesOfHalfSpectrum(ComplexMatrix halfSpectrum, int cols, ForkJoinPool pool)
+  {
+    return Parallelism.invoke(pool, () -> getShiftedAbsValuesOfHalfSpectrum(halfSpectrum, cols));
+  }
+
+  public static RealMatrix getAbsValuesOfRealSubMatrix(RealMatrix matrix, int rowSize, int colSize, ForkJoinPool pool)
+  {
+    return Parallelism.invoke(pool, () -> getAbsValuesOfRealSubMatrix(matrix, rowSize, colSize));
+  }
+
+  public static List<Double> getSortedElements(RealMatrix matrix, ForkJoinPool pool)
+  {
+    return Parallelism.invoke(pool, () -> getSortedElements(matrix));
+  }
+
+  public static int[] getPixelBufferFor(RealMatrix matrix, ForkJoinPool pool)
+  {
+    return Parallelism.invoke(pool, () -> getPixelBufferFor(matrix));
+  }
 }
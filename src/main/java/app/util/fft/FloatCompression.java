@@ -0,0 +1,390 @@
+package app.util.fft;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Compression of gray images with the spectrum in single precision.
+ *
+ * The pipeline is the one of GrayImageCompression (padding, real FFT, threshold selection,
+ * truncation, inverse FFT, gray pixels), but the half spectrum is stored as a float[] with
+ * 8 instead of 16 bytes per coefficient. The one-dimensional transformations of a row or a
+ * block of columns are still computed in double precision in per-thread buffers; only the
+ * results are rounded to float. 8 bit gray values and a lossy compression do not need more:
+ * the reconstructed pixels rarely differ by more than one gray level from the double path
+ * (see compareWithDouble()).
+ *
+ * The threshold is selected by FloatThresholdSelector without an array of absolute values and
+ * the inverse real FFT of a row is written directly to the pixel buffer, so the heap holds the
+ * pixel buffers and the float spectrum only. Images about twice as large as with the double
+ * path can be processed in the same heap.
+ *
+ * The pixel buffers have the layout of FFTUtils: matrix element (i, j) is pixel i*height + j.
+ */
+public final class FloatCompression
+{
+  // Number of adjacent columns gathered together in the column pass
+  private static final int COLUMN_BLOCK_SIZE = 16;
+
+  // Buffer of the row and column transformations (one per thread)
+  private static final ThreadLocal<double[]> workBuffer = ThreadLocal.withInitial(() -> new double[0]);
+
+  private final boolean padToPowerOf2;
+
+  public FloatCompression(boolean padToPowerOf2)
+  {
+    this.padToPowerOf2 = padToPowerOf2;
+  }
+
+  public boolean isPadToPowerOf2()
+  {
+    return this.padToPowerOf2;
+  }
+
+  // Size of the float half spectrum of an image in bytes
+  public static long getSpectrumBytes(int width, int height, boolean padToPowerOf2)
+  {
+    int rows = padToPowerOf2 ? FFTUtils.getNextPowerOf2(width) : width;
+    int cols = padToPowerOf2 ? FFTUtils.getNextPowerOf2(height) : height;
+    return 8L * rows * FFT.getHalfSpectrumLength(cols);
+  }
+
+  public int[] compress(int[] grayPixelBuffer, int width, int height, double compressRate)
+  {
+    return compress(grayPixelBuffer, width, height, compressRate, CancellationToken.NONE);
+  }
+
+  // Compresses a gray image (the blue channel is used) and returns the gray pixel buffer of the
+  // reconstructed image
+  public int[] compress(int[] grayPixelBuffer, int width, int height, double compressRate, CancellationToken token)
+  {
+    return compress(grayPixelBuffer, width, height, compressRate, null, token);
+  }
+
+  // Same as compress(grayPixelBuffer, width, height, compressRate, token), additionally the
+  // truncated spectrum is rendered into spectrumPixels (getRows(width) x getCols(height) pixels,
+  // see SpectrumKernels.renderShiftedLogSpectrum()) before the inverse FFT, if it is not null
+  public int[] compress(int[] grayPixelBuffer, int width, int height, double compressRate, int[] spectrumPixels, CancellationToken token)
+  {
+    int rows = getRows(width);
+    int cols = getCols(height);
+    int halfCols = FFT.getHalfSpectrumLength(cols);
+
+    float[] spectrum = rfft2(grayPixelBuffer, width, height, rows, cols, token);
+    float threshold = getThreshold(spectrum, rows, halfCols, compressRate, token);
+    double maxAbsValue = truncate(spectrum, threshold, token);
+    if (spectrumPixels != null)
+    {
+      SpectrumKernels.renderShiftedLogSpectrum(spectrum, rows, cols, maxAbsValue, spectrumPixels, token);
+    }
+    return irfft2(spectrum, rows, cols, width, height, token);
+  }
+
+  // Compresses the image in float and in double precision (like BatchCompression) and compares
+  // the spectra, the thresholds and the reconstructed pixels. Needs the memory of both paths.
+  public AccuracyReport compareWithDouble(int[] grayPixelBuffer, int width, int height, double compressRate, CancellationToken token)
+  {
+    int rows = getRows(width);
+    int cols = getCols(height);
+    int halfCols = FFT.getHalfSpectrumLength(cols);
+
+    // float path
+    float[] spectrum = rfft2(grayPixelBuffer, width, height, rows, cols, token);
+
+    // double path
+    RealMatrix matrix = FFTUtils.createRealMatrixForPixelBuffer(grayPixelBuffer, width, height, this.padToPowerOf2);
+    ComplexMatrix doubleSpectrum = FFT.rfft2(matrix, token);
+    matrix = null;
+
+    // largest difference and largest absolute value of the coefficients
+    double[] spectrumError = compareSpectra(spectrum, doubleSpectrum, token);
+
+    float threshold = getThreshold(spectrum, rows, halfCols, compressRate, token);
+    truncate(spectrum, threshold, token);
+    int[] pixels = irfft2(spectrum, rows, cols, width, height, token);
+    spectrum = null;
+
+    double doubleThreshold = new ThresholdSelector(FFTUtils.getAbsValuesOfMatrix(doubleSpectrum, token), null, token).getThreshold(compressRate);
+    doubleSpectrum.truncate(doubleThreshold);
+    RealMatrix reconstruction = FFT.irfft2InPlace(doubleSpectrum, cols, token);
+    int[] doublePixels = SpectrumKernels.toGrayPixelBuffer(reconstruction, width, height, token);
+
+    int maxPixelError = 0;
+    long differingPixels = 0;
+    for (int p = 0; p < pixels.length; p++)
+    {
+      int error = Math.abs((pixels[p] & 0xff) - (doublePixels[p] & 0xff));
+      maxPixelError = Math.max(maxPixelError, error);
+      differingPixels += (error != 0) ? 1 : 0;
+    }
+
+    return new AccuracyReport(width, height, spectrumError[0], spectrumError[1], threshold, doubleThreshold, maxPixelError, differingPixels);
+  }
+
+  private static double[] compareSpectra(float[] spectrum, ComplexMatrix doubleSpectrum, CancellationToken token)
+  {
+    int rows = doubleSpectrum.getRows();
+    int halfCols = doubleSpectrum.getCols();
+    double[] data = doubleSpectrum.getData();
+
+    double[] maxError = new double[rows];
+    double[] maxValue = new double[rows];
+    IntStream.range(0, rows).parallel().forEach( i -> {
+      token.throwIfCancelled();
+      int rowOffset = doubleSpectrum.getRowOffset(i);
+      for (int j = 0; j < 2*halfCols; j += 2)
+      {
+        double re = data[rowOffset + j];
+        double im = data[rowOffset + j + 1];
+        double diffRe = re - spectrum[2*i*halfCols + j];
+        double diffIm = im - spectrum[2*i*halfCols + j + 1];
+        maxError[i] = Math.max(maxError[i], Math.sqrt(diffRe*diffRe + diffIm*diffIm));
+        maxValue[i] = Math.max(maxValue[i], Math.sqrt(re*re + im*im));
+      }
+    });
+
+    return new double[] { Arrays.stream(maxError).max().getAsDouble(), Arrays.stream(maxValue).max().getAsDouble() };
+  }
+
+  // Rows of the (padded) spectrum of an image
+  public int getRows(int width)
+  {
+    return this.padToPowerOf2 ? FFTUtils.getNextPowerOf2(width) : width;
+  }
+
+  // Columns of the (padded) spectrum of an image
+  public int getCols(int height)
+  {
+    return this.padToPowerOf2 ? FFTUtils.getNextPowerOf2(height) : height;
+  }
+
+  // Real FFT of the padded image. Row i of the half spectrum (halfCols complex values, re/im
+  // interleaved) starts at 2*i*halfCols. The padding rows stay zero.
+  private static float[] rfft2(int[] grayPixelBuffer, int width, int height, int rows, int cols, CancellationToken token)
+  {
+    if (grayPixelBuffer.length < (long) width * height)
+    {
+      throw new IllegalArgumentException("pixel buffer too small for " + width + " x " + height + " pixels");
+    }
+
+    int halfCols = FFT.getHalfSpectrumLength(cols);
+    if (2L * rows * halfCols > Integer.MAX_VALUE - 8)
+    {
+      throw new IllegalArgumentException("image too large for a float spectrum: " + width + " x " + height);
+    }
+    float[] spectrum = new float[2 * rows * halfCols];
+
+    RealFFTPlan rowPlans = RealFFTPlan.of(cols);
+    IntStream.range(0, width).parallel().forEach( i -> {
+      token.throwIfCancelled();
+      double[] row = getWorkBuffer(2*halfCols);
+      for (int j = 0; j < height; j++)
+      {
+        row[j] = grayPixelBuffer[i*height + j] & 0xff;
+      }
+      for (int j = height; j < 2*halfCols; j++)
+      {
+        row[j] = 0.0;
+      }
+      FFT.rfft(row, 0, rowPlans);
+      for (int j = 0; j < 2*halfCols; j++)
+      {
+        spectrum[2*i*halfCols + j] = (float) row[j];
+      }
+    });
+
+    columnPass(spectrum, rows, halfCols, false, token);
+    return spectrum;
+  }
+
+  // Inverse of rfft2(), the reconstructed rows are clamped to [0, 255] and written to a new gray
+  // pixel buffer. The spectrum is destroyed.
+  private static int[] irfft2(float[] spectrum, int rows, int cols, int width, int height, CancellationToken token)
+  {
+    int halfCols = FFT.getHalfSpectrumLength(cols);
+    columnPass(spectrum, rows, halfCols, true, token);
+
+    int[] result = new int[width * height];
+    RealFFTPlan rowPlans = RealFFTPlan.of(cols);
+    IntStream.range(0, width).parallel().forEach( i -> {
+      token.throwIfCancelled();
+      double[] row = getWorkBuffer(2*halfCols);
+      for (int j = 0; j < 2*halfCols; j++)
+      {
+        row[j] = spectrum[2*i*halfCols + j];
+      }
+      FFT.irfft(row, 0, rowPlans);
+      for (int j = 0; j < height; j++)
+      {
+        double value = Math.min(255.0, Math.abs(row[j]));
+        int grayValue = ((int) Math.round(value)) & 0xff;
+        result[i*height + j] = (grayValue << 16) + (grayValue << 8) + grayValue;
+      }
+    });
+
+    return result;
+  }
+
+  // transforms the columns in blocks of adjacent columns, which are gathered into a per-thread
+  // double buffer, transformed and scattered back (see FFT.columnPass())
+  private static void columnPass(float[] spectrum, int rows, int halfCols, boolean inverse, CancellationToken token)
+  {
+    FFTPlan colPlan = FFTPlanCache.getPlan(rows);
+    int blocks = (halfCols + COLUMN_BLOCK_SIZE - 1) / COLUMN_BLOCK_SIZE;
+
+    IntStream blockStream = IntStream.range(0, blocks);
+    if( colPlan.isParallel() )
+      blockStream = blockStream.parallel();
+    blockStream.forEach( block -> {
+      token.throwIfCancelled();
+      int firstCol = block * COLUMN_BLOCK_SIZE;
+      int blockCols = Math.min(COLUMN_BLOCK_SIZE, halfCols - firstCol);
+      double[] buffer = getWorkBuffer(blockCols * colPlan.getScratchLength());
+
+      // gather: column b of the block is stored at buffer[b*2*rows ...]
+      for (int i = 0; i < rows; i++)
+      {
+        for (int b = 0, src = 2*(i*halfCols + firstCol); b < blockCols; b++, src += 2)
+        {
+          int dst = 2*(b*rows + i);
+          buffer[dst] = spectrum[src];
+          buffer[dst+1] = spectrum[src+1];
+        }
+      }
+
+      for (int b = 0; b < blockCols; b++)
+      {
+        if( inverse )
+          colPlan.ifft(buffer, 2*b*rows);
+        else
+          colPlan.fft(buffer, 2*b*rows);
+      }
+
+      // scatter
+      for (int i = 0; i < rows; i++)
+      {
+        for (int b = 0, dst = 2*(i*halfCols + firstCol); b < blockCols; b++, dst += 2)
+        {
+          int src = 2*(b*rows + i);
+          spectrum[dst] = (float) buffer[src];
+          spectrum[dst+1] = (float) buffer[src+1];
+        }
+      }
+    });
+  }
+
+  private static float getThreshold(float[] spectrum, int rows, int halfCols, double compressRate, CancellationToken token)
+  {
+    return FloatThresholdSelector.getThreshold(rows, halfCols, (i, row) -> {
+      for (int j = 0; j < 2*halfCols; j++)
+      {
+        row[j] = spectrum[2*i*halfCols + j];
+      }
+    }, compressRate, token);
+  }
+
+  // Sets all coefficients with an absolute value not larger than threshold to zero (0/1 mask as
+  // in FFTUtils.createTruncatedMatrix()) and returns the largest absolute value of the kept ones
+  private static double truncate(float[] spectrum, float threshold, CancellationToken token)
+  {
+    int count = spectrum.length / 2;
+    int chunkSize = 1 << 16;
+    int chunks = (count + chunkSize - 1) / chunkSize;
+    return IntStream.range(0, chunks).parallel().mapToDouble( chunk -> {
+      token.throwIfCancelled();
+      float chunkMax = 0.0f;
+      int end = 2 * Math.min(count, (chunk + 1) * chunkSize);
+      for (int k = 2 * chunk * chunkSize; k < end; k += 2)
+      {
+        // the same float absolute value as the threshold selection
+        float abs = (float) Math.sqrt((double) spectrum[k]*spectrum[k] + (double) spectrum[k+1]*spectrum[k+1]);
+        float keep = (abs > threshold) ? 1.0f : 0.0f;
+        spectrum[k] *= keep;
+        spectrum[k+1] *= keep;
+        chunkMax = Math.max(chunkMax, abs*keep);
+      }
+      return chunkMax;
+    }).max().orElse(0.0);
+  }
+
+  private static double[] getWorkBuffer(int length)
+  {
+    double[] buffer = workBuffer.get();
+    if (buffer.length < length)
+    {
+      buffer = new double[length];
+      workBuffer.set(buffer);
+    }
+    return buffer;
+  }
+
+  /**
+   * Result of compareWithDouble(): the deviation of the float path from the double path.
+   */
+  public static final class AccuracyReport
+  {
+    private final int width;
+    private final int height;
+    private final double maxSpectrumError;
+    private final double maxCoefficient;
+    private final double threshold;
+    private final double doubleThreshold;
+    private final int maxPixelError;
+    private final long differingPixels;
+
+    private AccuracyReport(int width, int height, double maxSpectrumError, double maxCoefficient, double threshold, double doubleThreshold,
+        int maxPixelError, long differingPixels)
+    {
+      this.width = width;
+      this.height = height;
+      this.maxSpectrumError = maxSpectrumError;
+      this.maxCoefficient = maxCoefficient;
+      this.threshold = threshold;
+      this.doubleThreshold = doubleThreshold;
+      this.maxPixelError = maxPixelError;
+      this.differingPixels = differingPixels;
+    }
+
+    // Largest absolute difference of a coefficient of the (untruncated) spectra
+    public double getMaxSpectrumError()
+    {
+      return this.maxSpectrumError;
+    }
+
+    // Largest absolute difference relative to the largest coefficient
+    public double getRelativeSpectrumError()
+    {
+      return (this.maxCoefficient > 0.0) ? this.maxSpectrumError / this.maxCoefficient : 0.0;
+    }
+
+    public double getThreshold()
+    {
+      return this.threshold;
+    }
+
+    public double getDoubleThreshold()
+    {
+      return this.doubleThreshold;
+    }
+
+    // Largest difference of a reconstructed pixel in gray levels
+    public int getMaxPixelError()
+    {
+      return this.maxPixelError;
+    }
+
+    public long getDifferingPixels()
+    {
+      return this.differingPixels;
+    }
+
+    @Override
+    public String toString()
+    {
+      return String.format("Float accuracy %d x %d: spectrum error %.3g (relative %.3g), threshold %.6g / %.6g, "
+          + "max pixel error %d, %d of %d pixels differ", this.width, this.height, this.maxSpectrumError,
+          getRelativeSpectrumError(), this.threshold, this.doubleThreshold, this.maxPixelError, this.differingPixels,
+          (long) this.width * this.height);
+    }
+  }
+}
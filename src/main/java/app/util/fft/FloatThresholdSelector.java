@@ -0,0 +1,99 @@
+package app.util.fft;
+
+import java.util.stream.IntStream;
+
+/**
+ * Threshold selection on the absolute values of a complex matrix in float precision.
+ *
+ * Like ThresholdSelector.getThreshold() the absolute value at rank (long) (compressRate * size)
+ * is returned, but no array of absolute values is created: the matrix is read row by row in
+ * two passes. The first pass counts the upper 16 bits of the float bit patterns of the absolute
+ * values, the second pass the lower 16 bits within the selected bucket. (The bit patterns of
+ * non-negative floats are ordered like the values.)
+ *
+ * Used by OutOfCoreCompression and FloatCompression, whose spectra are not double[][] matrices.
+ */
+final class FloatThresholdSelector
+{
+  private static final int DIGIT_BITS = 16;
+  private static final int BUCKETS = 1 << DIGIT_BITS;
+
+  // Copies the complex row (re/im interleaved) to dst[0...]
+  interface RowReader
+  {
+    void read(int row, double[] dst);
+  }
+
+  private FloatThresholdSelector()
+  {
+
+  }
+
+  public static float getThreshold(int rows, int cols, RowReader reader, double compressRate, CancellationToken token)
+  {
+    long size = (long) rows * cols;
+    long k = Math.max(0, Math.min(size - 1, (long) (compressRate * size)));
+
+    long[] upper = histogram(rows, cols, reader, 0, 0, token);
+    int upperDigit = 0;
+    while (k >= upper[upperDigit])
+    {
+      k -= upper[upperDigit];
+      upperDigit++;
+    }
+
+    long[] lower = histogram(rows, cols, reader, upperDigit << DIGIT_BITS, 0xffff0000, token);
+    int lowerDigit = 0;
+    while (k >= lower[lowerDigit])
+    {
+      k -= lower[lowerDigit];
+      lowerDigit++;
+    }
+
+    return Float.intBitsToFloat((upperDigit << DIGIT_BITS) | lowerDigit);
+  }
+
+  // Histogram of the upper (prefixMask == 0) or lower 16 bits of the float bit patterns of the
+  // absolute values matching the prefix
+  private static long[] histogram(int rows, int cols, RowReader reader, int prefix, int prefixMask, CancellationToken token)
+  {
+    int shift = (prefixMask == 0) ? DIGIT_BITS : 0;
+
+    // the rows are read sequentially in a few chunks, every chunk counts into its own histogram
+    // (two chunks per worker of the pool, a chunk covers at least BUCKETS elements)
+    long maxChunks = Math.min(rows, Math.min(2L * Parallelism.getParallelism(), (long) rows * cols / BUCKETS));
+    int chunks = (int) Math.max(1, maxChunks);
+    return IntStream.range(0, chunks).parallel().mapToObj( chunk -> {
+      long[] histogram = new long[BUCKETS];
+      double[] row = new double[2*cols];
+      int firstRow = (int) ((long) rows * chunk / chunks);
+      int lastRow = (int) ((long) rows * (chunk + 1) / chunks);
+      for (int r = firstRow; r < lastRow; r++)
+      {
+        token.throwIfCancelled();
+        reader.read(r, row);
+        for (int j = 0; j < cols; j++)
+        {
+          int bits = Float.floatToIntBits(abs(row, j));
+          if ((bits & prefixMask) == prefix)
+          {
+            histogram[(bits >>> shift) & (BUCKETS - 1)]++;
+          }
+        }
+      }
+      return histogram;
+    }).reduce((h1, h2) -> {
+      for (int d = 0; d < BUCKETS; d++)
+      {
+        h1[d] += h2[d];
+      }
+      return h1;
+    }).get();
+  }
+
+  // absolute value of the complex element index in float precision
+  static float abs(double[] data, int index)
+  {
+    return (float) Math.sqrt(data[2*index]*data[2*index] + data[2*index+1]*data[2*index+1]);
+  }
+}
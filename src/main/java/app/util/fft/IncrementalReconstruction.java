@@ -0,0 +1,309 @@
+package app.util.fft;
+
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Truncated half spectrum and its reconstruction (inverse FFT) for a changing compression rate.
+ *
+ * The first update computes the truncated spectrum and its inverse FFT completely. When the
+ * compression rate changes afterwards, only the coefficients between the old and the new
+ * rank (see CoefficientOrder) are added to or removed from the truncated spectrum. Since the
+ * inverse FFT is linear, the reconstruction is updated by adding the inverse FFT of this
+ * sparse delta: only the touched columns are transformed, and the rows are synthesised
+ * directly if few columns are touched. If the delta is too large for this to pay off, the
+ * inverse FFT of the whole truncated spectrum is computed instead.
+ *
+ * update() is synchronized on the instance. The matrices returned by the getters must not be
+ * modified and are changed by the next update, so readers synchronize on the instance too.
+ */
+public final class IncrementalReconstruction
+{
+  // After this many incremental updates the reconstruction is recomputed to drop rounding errors
+  private static final int MAX_INCREMENTAL_UPDATES = 32;
+
+  private final ComplexMatrix halfSpectrum;
+  private final int cols;
+  private final CoefficientOrder order;
+
+  private final ComplexMatrix truncatedSpectrum;
+  private final RealMatrix reconstruction;
+
+  // coefficients with a rank smaller than truncatedCount are set to zero, -1: not yet computed
+  private int truncatedCount = -1;
+  private int incrementalUpdates = 0;
+
+  // halfSpectrum is the result of FFT.rfft2() of a real matrix with cols columns
+  public IncrementalReconstruction(ComplexMatrix halfSpectrum, int cols, CoefficientOrder order)
+  {
+    if (order.getRows() != halfSpectrum.getRows() || order.getCols() != halfSpectrum.getCols())
+    {
+      throw new IllegalArgumentException("order does not belong to the spectrum");
+    }
+
+    this.halfSpectrum = halfSpectrum;
+    this.cols = cols;
+    this.order = order;
+    this.truncatedSpectrum = new ComplexMatrix(halfSpectrum.getRows(), halfSpectrum.getCols());
+    this.reconstruction = new RealMatrix(halfSpectrum.getRows(), cols);
+  }
+
+  // Updates the truncated spectrum and the reconstruction for the compression rate.
+  // Returns true if the update was incremental.
+  public synchronized boolean update(double compressRate)
+  {
+    return updateUnsynchronized(compressRate, CancellationToken.NONE);
+  }
+
+  // Same as update(compressRate), the parallel loops run in the given pool (see Parallelism).
+  // The caller holds the lock, so the pool threads must not synchronize on this instance.
+  public synchronized boolean update(double compressRate, ForkJoinPool pool)
+  {
+    return update(compressRate, pool, CancellationToken.NONE);
+  }
+
+  // Same as update(compressRate, pool), stops with a CancellationException if the token is
+  // cancelled. The next update after a cancellation is a complete recomputation.
+  public synchronized boolean update(double compressRate, ForkJoinPool pool, CancellationToken token)
+  {
+    return Parallelism.invoke(pool, () -> updateUnsynchronized(compressRate, token));
+  }
+
+  private boolean updateUnsynchronized(double compressRate, CancellationToken token)
+  {
+    try
+    {
+      return updateOrThrow(compressRate, token);
+    }
+    catch (CancellationException e)
+    {
+      // the truncated spectrum and the reconstruction are incomplete
+      this.truncatedCount = -1;
+      this.incrementalUpdates = 0;
+      throw e;
+    }
+  }
+
+  private boolean updateOrThrow(double compressRate, CancellationToken token)
+  {
+    int newCount = this.order.getTruncatedCount(compressRate);
+    if (newCount == this.truncatedCount)
+      return true;
+
+    int from = Math.min(newCount, this.truncatedCount);
+    int to = Math.max(newCount, this.truncatedCount);
+
+    boolean incremental = this.truncatedCount >= 0
+        && this.incrementalUpdates < MAX_INCREMENTAL_UPDATES
+        && isDeltaCheaper(from, to);
+
+    if (incremental)
+    {
+      updateDelta(from, to, newCount > this.truncatedCount, token);
+      this.incrementalUpdates++;
+    }
+    else
+    {
+      recompute(newCount, token);
+      this.incrementalUpdates = 0;
+    }
+
+    this.truncatedCount = newCount;
+    return incremental;
+  }
+
+  // The truncated half spectrum of the last update
+  public ComplexMatrix getTruncatedSpectrum()
+  {
+    return this.truncatedSpectrum;
+  }
+
+  // The inverse FFT of the truncated half spectrum of the last update
+  public RealMatrix getReconstruction()
+  {
+    return this.reconstruction;
+  }
+
+  private void recompute(int count, CancellationToken token)
+  {
+    this.truncatedSpectrum.copyFrom(this.halfSpectrum);
+
+    int halfCols = this.halfSpectrum.getCols();
+    double[] data = this.truncatedSpectrum.getData();
+    IntStream.range(0, count).parallel().forEach( rank -> {
+      int position = this.order.getPosition(rank);
+      int index = this.truncatedSpectrum.index(position / halfCols, position % halfCols);
+      data[index] = 0.0;
+      data[index + 1] = 0.0;
+    });
+
+    RealMatrix result = FFT.irfft2(this.truncatedSpectrum, this.cols, token);
+    this.reconstruction.copyFrom(result);
+  }
+
+  // Adds (removed == false) or removes the coefficients with ranks from..to-1
+  private void updateDelta(int from, int to, boolean removed, CancellationToken token)
+  {
+    int rows = this.halfSpectrum.getRows();
+    int halfCols = this.halfSpectrum.getCols();
+    double[] source = this.halfSpectrum.getData();
+    double[] truncated = this.truncatedSpectrum.getData();
+
+    // collect the delta spectrum per column
+    boolean[] touched = new boolean[halfCols];
+    for (int rank = from; rank < to; rank++)
+    {
+      touched[this.order.getPosition(rank) % halfCols] = true;
+    }
+    int[] touchedCols = IntStream.range(0, halfCols).filter( c -> touched[c] ).toArray();
+
+    int[] colIndex = new int[halfCols];
+    Arrays.fill(colIndex, -1);
+    for (int t = 0; t < touchedCols.length; t++)
+    {
+      colIndex[touchedCols[t]] = t;
+    }
+
+    // delta[t] is the column touchedCols[t] of the delta spectrum
+    double[][] delta = new double[touchedCols.length][2*rows];
+    double sign = removed ? -1.0 : 1.0;
+    for (int rank = from; rank < to; rank++)
+    {
+      int position = this.order.getPosition(rank);
+      int row = position / halfCols;
+      int col = position % halfCols;
+
+      int src = this.halfSpectrum.index(row, col);
+      int dst = this.truncatedSpectrum.index(row, col);
+
+      double[] column = delta[colIndex[col]];
+      column[2*row] = sign*source[src];
+      column[2*row + 1] = sign*source[src + 1];
+
+      truncated[dst] = removed ? 0.0 : source[src];
+      truncated[dst + 1] = removed ? 0.0 : source[src + 1];
+    }
+
+    // inverse FFT of the touched columns
+    FFTPlan colPlan = FFTPlanCache.getPlan(rows);
+    IntStream.range(0, touchedCols.length).parallel().forEach( t -> {
+      token.throwIfCancelled();
+      colPlan.ifft(delta[t], 0);
+    });
+
+    // inverse real FFT of every row, restricted to the touched columns
+    if (useDirectSynthesis(touchedCols.length))
+    {
+      synthesizeRowsDirectly(delta, touchedCols, token);
+    }
+    else
+    {
+      synthesizeRowsWithFFT(delta, touchedCols, token);
+    }
+  }
+
+  // x[n] += 1/cols * sum_c w_c * Re(G[c] * exp(2*pi*i*c*n/cols)), w_c = 2 except for the
+  // column 0 and the column cols/2 of an even length
+  private void synthesizeRowsDirectly(double[][] delta, int[] touchedCols, CancellationToken token)
+  {
+    int rows = this.reconstruction.getRows();
+    double[] data = this.reconstruction.getData();
+
+    double[][] cos = new double[touchedCols.length][this.cols];
+    double[][] sin = new double[touchedCols.length][this.cols];
+    double[] weight = new double[touchedCols.length];
+    for (int t = 0; t < touchedCols.length; t++)
+    {
+      int c = touchedCols[t];
+      boolean single = (c == 0) || (2*c == this.cols);
+      weight[t] = (single ? 1.0 : 2.0) / this.cols;
+      for (int n = 0; n < this.cols; n++)
+      {
+        double angle = 2 * Math.PI * (double) (((long) c * n) % this.cols) / this.cols;
+        cos[t][n] = Math.cos(angle);
+        sin[t][n] = Math.sin(angle);
+      }
+    }
+
+    IntStream.range(0, rows).parallel().forEach( r -> {
+      token.throwIfCancelled();
+      int rowOffset = r*this.cols;
+      for (int t = 0; t < touchedCols.length; t++)
+      {
+        double re = weight[t]*delta[t][2*r];
+        double im = weight[t]*delta[t][2*r + 1];
+        if (re == 0.0 && im == 0.0)
+          continue;
+
+        double[] cosT = cos[t];
+        double[] sinT = sin[t];
+        for (int n = 0; n < this.cols; n++)
+        {
+          data[rowOffset + n] += re*cosT[n] - im*sinT[n];
+        }
+      }
+    });
+  }
+
+  private void synthesizeRowsWithFFT(double[][] delta, int[] touchedCols, CancellationToken token)
+  {
+    int rows = this.reconstruction.getRows();
+    int halfCols = this.halfSpectrum.getCols();
+    double[] data = this.reconstruction.getData();
+    RealFFTPlan rowPlans = RealFFTPlan.of(this.cols);
+
+    IntStream.range(0, rows).parallel().forEach( r -> {
+      token.throwIfCancelled();
+      double[] row = new double[2*halfCols];
+      for (int t = 0; t < touchedCols.length; t++)
+      {
+        row[2*touchedCols[t]] = delta[t][2*r];
+        row[2*touchedCols[t] + 1] = delta[t][2*r + 1];
+      }
+
+      FFT.irfft(row, 0, rowPlans);
+
+      int rowOffset = r*this.cols;
+      for (int n = 0; n < this.cols; n++)
+      {
+        data[rowOffset + n] += row[n];
+      }
+    });
+  }
+
+  // Rough operation counts of the sparse and the complete inverse FFT
+  private boolean isDeltaCheaper(int from, int to)
+  {
+    int rows = this.halfSpectrum.getRows();
+    int halfCols = this.halfSpectrum.getCols();
+
+    boolean[] touched = new boolean[halfCols];
+    int touchedCount = 0;
+    for (int rank = from; rank < to && touchedCount < halfCols; rank++)
+    {
+      int col = this.order.getPosition(rank) % halfCols;
+      if (!touched[col])
+      {
+        touched[col] = true;
+        touchedCount++;
+      }
+    }
+
+    double rowCost = useDirectSynthesis(touchedCount) ? touchedCount : 2.5*log2(this.cols);
+    double deltaCost = (to - from) + (double) touchedCount*rows*(2.0 + log2(rows)) + (double) rows*this.cols*rowCost;
+    double fullCost = (double) rows*halfCols*(1.0 + log2(rows)) + (double) rows*this.cols*2.5*log2(this.cols);
+    return deltaCost < fullCost;
+  }
+
+  private boolean useDirectSynthesis(int touchedCount)
+  {
+    return touchedCount <= log2(this.cols);
+  }
+
+  private static double log2(int n)
+  {
+    return Math.max(1.0, Math.log(n) / Math.log(2));
+  }
+}
@@ -0,0 +1,180 @@
+package app.util.fft;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.IntStream;
+
+/**
+ * Complex matrix stored in a memory-mapped temporary file instead of the heap.
+ *
+ * The layout is the layout of a compact ComplexMatrix (rows one after another, re/im
+ * interleaved). The file is mapped in segments of whole rows, because a single mapping is
+ * limited to 2 GB. Rows (or parts of rows) are copied between the file and heap buffers, so
+ * the heap holds only the rows currently processed; the operating system pages the file in
+ * and out. The file is deleted when the matrix is closed.
+ */
+public final class MappedComplexMatrix implements AutoCloseable
+{
+  // Maximum size of a mapped segment in bytes
+  private static final long MAX_SEGMENT_SIZE = 1L << 30;
+
+  // Edge length of the tiles of transposeTo() (in complex elements)
+  private static final int TRANSPOSE_TILE_SIZE = 64;
+
+  private final int rows;
+  private final int cols;
+  private final int rowsPerSegment;
+  private final FileChannel channel;
+  private final DoubleBuffer[] segments;
+
+  private MappedComplexMatrix(FileChannel channel, int rows, int cols) throws IOException
+  {
+    this.rows = rows;
+    this.cols = cols;
+    this.channel = channel;
+
+    long rowBytes = 16L * cols;
+    this.rowsPerSegment = (int) Math.max(1, Math.min(rows, MAX_SEGMENT_SIZE / rowBytes));
+    int segmentCount = (rows + this.rowsPerSegment - 1) / this.rowsPerSegment;
+
+    this.segments = new DoubleBuffer[segmentCount];
+    for (int s = 0; s < segmentCount; s++)
+    {
+      int segmentRows = Math.min(this.rowsPerSegment, rows - s * this.rowsPerSegment);
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, s * this.rowsPerSegment * rowBytes, segmentRows * rowBytes);
+      // the file is temporary, so the native byte order saves the swapping of every access
+      this.segments[s] = buffer.order(ByteOrder.nativeOrder()).asDoubleBuffer();
+    }
+  }
+
+  // Creates a zero matrix in a new temporary file in the directory
+  public static MappedComplexMatrix create(Path directory, int rows, int cols) throws IOException
+  {
+    if (rows < 1 || cols < 1 || 16L * cols > MAX_SEGMENT_SIZE)
+    {
+      throw new IllegalArgumentException("invalid matrix size " + rows + " x " + cols);
+    }
+
+    Path file = Files.createTempFile(directory, "fft", ".matrix");
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+    try
+    {
+      channel.truncate(0);
+      return new MappedComplexMatrix(channel, rows, cols);
+    }
+    catch (IOException | RuntimeException exce)
+    {
+      channel.close();
+      throw exce;
+    }
+  }
+
+  public int getRows()
+  {
+    return this.rows;
+  }
+
+  public int getCols()
+  {
+    return this.cols;
+  }
+
+  // Size of the file in bytes
+  public long getSizeInBytes()
+  {
+    return 16L * this.rows * this.cols;
+  }
+
+  // Copies count complex elements of the row starting at column fromCol to dst[dstOffset...]
+  public void read(int row, int fromCol, int count, double[] dst, int dstOffset)
+  {
+    segmentAt(row, fromCol).get(dst, dstOffset, 2*count);
+  }
+
+  // Copies count complex elements from src[srcOffset...] to the row starting at column fromCol
+  public void write(int row, int fromCol, int count, double[] src, int srcOffset)
+  {
+    segmentAt(row, fromCol).put(src, srcOffset, 2*count);
+  }
+
+  // Copies the complete row to dst[dstOffset...]
+  public void readRow(int row, double[] dst, int dstOffset)
+  {
+    read(row, 0, this.cols, dst, dstOffset);
+  }
+
+  public void writeRow(int row, double[] src, int srcOffset)
+  {
+    write(row, 0, this.cols, src, srcOffset);
+  }
+
+  // Writes the transposed matrix to target (cols x rows). The matrix is processed in square
+  // tiles, so every tile is read and written in short contiguous runs; the tiles of a band of
+  // rows are transposed in parallel.
+  public void transposeTo(MappedComplexMatrix target, CancellationToken token)
+  {
+    if (target.rows != this.cols || target.cols != this.rows)
+    {
+      throw new IllegalArgumentException("target must be a " + this.cols + " x " + this.rows + " matrix");
+    }
+
+    int tile = TRANSPOSE_TILE_SIZE;
+    int colTiles = (this.cols + tile - 1) / tile;
+    for (int firstRow = 0; firstRow < this.rows; firstRow += tile)
+    {
+      int bandRow = firstRow;
+      int bandRows = Math.min(tile, this.rows - firstRow);
+
+      IntStream.range(0, colTiles).parallel().forEach( t -> {
+        token.throwIfCancelled();
+        int firstCol = t * tile;
+        int tileCols = Math.min(tile, this.cols - firstCol);
+        double[] buffer = new double[2 * tile * tile];
+        double[] transposed = new double[2 * tile * tile];
+
+        for (int i = 0; i < bandRows; i++)
+        {
+          read(bandRow + i, firstCol, tileCols, buffer, 2*i*tileCols);
+        }
+        for (int i = 0; i < bandRows; i++)
+        {
+          for (int j = 0; j < tileCols; j++)
+          {
+            transposed[2*(j*bandRows + i)] = buffer[2*(i*tileCols + j)];
+            transposed[2*(j*bandRows + i) + 1] = buffer[2*(i*tileCols + j) + 1];
+          }
+        }
+        for (int j = 0; j < tileCols; j++)
+        {
+          target.write(firstCol + j, bandRow, bandRows, transposed, 2*j*bandRows);
+        }
+      });
+    }
+  }
+
+  // Closes and deletes the file. The mapped segments are released by the garbage collector.
+  @Override
+  public void close() throws IOException
+  {
+    this.channel.close();
+  }
+
+  // View of the segment positioned at the element (row, col)
+  private DoubleBuffer segmentAt(int row, int col)
+  {
+    if (row < 0 || row >= this.rows || col < 0 || col >= this.cols)
+    {
+      throw new IndexOutOfBoundsException("(" + row + ", " + col + ")");
+    }
+
+    DoubleBuffer segment = this.segments[row / this.rowsPerSegment].duplicate();
+    segment.position(2 * ((row % this.rowsPerSegment) * this.cols + col));
+    return segment;
+  }
+}
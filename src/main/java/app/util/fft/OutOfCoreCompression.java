@@ -0,0 +1,152 @@
+package app.util.fft;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Compression of gray images whose spectrum does not fit into the heap.
+ *
+ * The half spectrum (see FFT.rfft2) is kept in memory-mapped files (see MappedComplexMatrix):
+ *   1. real FFT of the image rows, written band by band to the file A (rows x cols/2+1)
+ *   2. blocked transposition of A into the file B (cols/2+1 x rows)
+ *   3. FFT of the rows of B (the columns of the spectrum)
+ *   4. threshold selection by two streamed histogram passes over B (see FloatThresholdSelector)
+ *   5. truncation and inverse FFT of the rows of B in one pass
+ *   6. blocked transposition of B back into A
+ *   7. inverse real FFT of the rows of A, written to the pixel buffer
+ * The heap holds the pixel buffers and one band of rows, so the image size is bounded by the
+ * disk space and the throughput by the disk bandwidth.
+ *
+ * Like TiledCompression the pixel buffers have the layout of FFTUtils: matrix element (i, j) is
+ * pixel i*height + j (no padding).
+ */
+public final class OutOfCoreCompression
+{
+  public static final int DEFAULT_BAND_ROWS = 256;
+
+  private final Path directory;
+  private final int bandRows;
+
+  // the temporary files are created in directory
+  public OutOfCoreCompression(Path directory, int bandRows)
+  {
+    if (bandRows < 1)
+    {
+      throw new IllegalArgumentException("bandRows must be positive");
+    }
+    this.directory = directory;
+    this.bandRows = bandRows;
+  }
+
+  public OutOfCoreCompression(Path directory)
+  {
+    this(directory, DEFAULT_BAND_ROWS);
+  }
+
+  // Disk space in bytes needed for an image (two copies of the half spectrum)
+  public static long getDiskSpace(int width, int height)
+  {
+    return 2 * 16L * width * FFT.getHalfSpectrumLength(height);
+  }
+
+  // Approximate heap in bytes besides the pixel buffers: the row buffers of one band
+  public static long getMemoryPerBand(int width, int height, int bandRows)
+  {
+    long rowLength = 2L * Math.max(width, FFT.getHalfSpectrumLength(height));
+    return 8L * bandRows * rowLength;
+  }
+
+  public int[] compress(int[] grayPixelBuffer, int width, int height, double compressRate) throws IOException
+  {
+    return compress(grayPixelBuffer, width, height, compressRate, CancellationToken.NONE);
+  }
+
+  // Compresses a gray image (the blue channel is used) and returns the gray pixel buffer of the
+  // reconstructed image
+  public int[] compress(int[] grayPixelBuffer, int width, int height, double compressRate, CancellationToken token) throws IOException
+  {
+    if (grayPixelBuffer.length < (long) width * height)
+    {
+      throw new IllegalArgumentException("pixel buffer too small for " + width + " x " + height + " pixels");
+    }
+
+    int rows = width;
+    int cols = height;
+    int halfCols = FFT.getHalfSpectrumLength(cols);
+    int[] result = new int[width * height];
+
+    try (MappedComplexMatrix rowSpectrum = MappedComplexMatrix.create(this.directory, rows, halfCols);
+         MappedComplexMatrix colSpectrum = MappedComplexMatrix.create(this.directory, halfCols, rows))
+    {
+      // 1. real row transformation
+      RealFFTPlan rowPlans = RealFFTPlan.of(cols);
+      forEachBand(rows, token, i -> {
+        double[] row = new double[2*halfCols];
+        for (int j = 0; j < cols; j++)
+        {
+          row[j] = grayPixelBuffer[i*cols + j] & 0xff;
+        }
+        FFT.rfft(row, 0, rowPlans);
+        rowSpectrum.writeRow(i, row, 0);
+      });
+
+      // 2. + 3. column transformation on the transposed matrix
+      rowSpectrum.transposeTo(colSpectrum, token);
+      FFTPlan colPlan = FFTPlanCache.getPlan(rows);
+      forEachBand(halfCols, token, c -> {
+        double[] column = new double[colPlan.getScratchLength()];
+        colSpectrum.readRow(c, column, 0);
+        colPlan.fft(column, 0);
+        colSpectrum.writeRow(c, column, 0);
+      });
+
+      // 4. + 5. truncation and inverse column transformation
+      float threshold = FloatThresholdSelector.getThreshold(halfCols, rows, (c, column) -> colSpectrum.readRow(c, column, 0),
+          compressRate, token);
+      forEachBand(halfCols, token, c -> {
+        double[] column = new double[colPlan.getScratchLength()];
+        colSpectrum.readRow(c, column, 0);
+        for (int r = 0; r < rows; r++)
+        {
+          if (FloatThresholdSelector.abs(column, r) <= threshold)
+          {
+            column[2*r] = 0.0;
+            column[2*r + 1] = 0.0;
+          }
+        }
+        colPlan.ifft(column, 0);
+        colSpectrum.writeRow(c, column, 0);
+      });
+
+      // 6. + 7. inverse real row transformation
+      colSpectrum.transposeTo(rowSpectrum, token);
+      forEachBand(rows, token, i -> {
+        double[] row = new double[2*halfCols];
+        rowSpectrum.readRow(i, row, 0);
+        FFT.irfft(row, 0, rowPlans);
+        for (int j = 0; j < cols; j++)
+        {
+          double value = Math.min(255.0, Math.abs(row[j]));
+          int grayValue = ((int) Math.round(value)) & 0xff;
+          result[i*cols + j] = (grayValue << 16) + (grayValue << 8) + grayValue;
+        }
+      });
+    }
+
+    return result;
+  }
+
+  // The rows are processed in bands of bandRows rows, the rows of a band in parallel
+  private void forEachBand(int rows, CancellationToken token, IntConsumer action)
+  {
+    for (int firstRow = 0; firstRow < rows; firstRow += this.bandRows)
+    {
+      IntStream.range(firstRow, Math.min(rows, firstRow + this.bandRows)).parallel().forEach( i -> {
+        token.throwIfCancelled();
+        action.accept(i);
+      });
+    }
+  }
+}
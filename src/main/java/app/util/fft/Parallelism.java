@@ -0,0 +1,47 @@
+package app.util.fft;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Supplier;
+
+/**
+ * Runs calculations in a given ForkJoinPool.
+ *
+ * The parallel streams of this package run in the ForkJoinPool of the calling thread, or in
+ * the common pool if the caller is not a ForkJoin worker. The overloads with a ForkJoinPool
+ * parameter (e.g. FFT.fft2(matrix, pool)) use invoke() to move the whole calculation into the
+ * given pool, so independent calculations on separate pools do not compete for threads.
+ */
+public final class Parallelism
+{
+  private Parallelism()
+  {
+  }
+
+  // Calculates the result in the pool. If the current thread already is a worker of the pool
+  // (or pool is null), the task is executed directly.
+  public static <T> T invoke(ForkJoinPool pool, Supplier<T> task)
+  {
+    if (pool == null || ForkJoinTask.getPool() == pool)
+    {
+      return task.get();
+    }
+    return pool.invoke(ForkJoinTask.adapt(task::get));
+  }
+
+  // Executes the task in the pool (see invoke())
+  public static void run(ForkJoinPool pool, Runnable task)
+  {
+    invoke(pool, () -> {
+      task.run();
+      return null;
+    });
+  }
+
+  // Parallelism of the pool the parallel streams of the current thread run in
+  public static int getParallelism()
+  {
+    ForkJoinPool pool = ForkJoinTask.getPool();
+    return (pool != null) ? pool.getParallelism() : ForkJoinPool.getCommonPoolParallelism();
+  }
+}
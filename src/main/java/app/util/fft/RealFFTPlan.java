@@ -0,0 +1,43 @@
+package app.util.fft;
+
+/**
+ * The plans of a real FFT of length n (see FFT.rfft()): the plan of length n and, for an even
+ * length, the plan of the complex FFT of length n/2 the real values are packed into.
+ *
+ * The 2D transformations fetch the plans once from the FFTPlanCache and pass them to the
+ * transformations of all rows.
+ */
+final class RealFFTPlan
+{
+  private final int n;
+  private final FFTPlan plan;
+  private final FFTPlan halfPlan;
+
+  private RealFFTPlan(int n)
+  {
+    this.n = n;
+    this.plan = FFTPlanCache.getPlan(n);
+    this.halfPlan = (n > 1 && n % 2 == 0) ? FFTPlanCache.getPlan(n/2) : null;
+  }
+
+  static RealFFTPlan of(int n)
+  {
+    return new RealFFTPlan(n);
+  }
+
+  int getLength()
+  {
+    return this.n;
+  }
+
+  FFTPlan getPlan()
+  {
+    return this.plan;
+  }
+
+  // null for odd lengths
+  FFTPlan getHalfPlan()
+  {
+    return this.halfPlan;
+  }
+}
@@ -0,0 +1,244 @@
+package app.util.fft;
+
+import java.util.stream.IntStream;
+
+/**
+ * Real matrix backed by one contiguous double array.
+ *
+ * The element (r, c) is located at data[offset + r*rowStride + c*colStride], so
+ * sub-matrices and transposed matrices are views sharing the data with the original
+ * matrix. A shifted view moves the element (0,0) to the center (fftshift) by mapping
+ * the indices cyclically.
+ *
+ * A new matrix is compact: rowStride = cols and colStride = 1.
+ */
+public final class RealMatrix
+{
+  private final double[] data;
+  private final int offset;
+  private final int rows;
+  private final int cols;
+  private final int rowStride;
+  private final int colStride;
+  private final int rowShift;
+  private final int colShift;
+
+  // Creates a new zero matrix
+  public RealMatrix(int rows, int cols)
+  {
+    this(new double[Math.multiplyExact(rows, cols)], 0, rows, cols, cols, 1, 0, 0);
+  }
+
+  private RealMatrix(double[] data, int offset, int rows, int cols, int rowStride, int colStride, int rowShift, int colShift)
+  {
+    this.data = data;
+    this.offset = offset;
+    this.rows = rows;
+    this.cols = cols;
+    this.rowStride = rowStride;
+    this.colStride = colStride;
+    this.rowShift = rowShift;
+    this.colShift = colShift;
+  }
+
+  // Creates a compact matrix using the given array in row major order
+  public static RealMatrix wrap(double[] data, int rows, int cols)
+  {
+    if (data.length < (long) rows * cols)
+    {
+      throw new IllegalArgumentException("array too small for " + rows + " x " + cols + " elements");
+    }
+    return new RealMatrix(data, 0, rows, cols, cols, 1, 0, 0);
+  }
+
+  // View of rows x cols elements of the array with the given row stride (e.g. the real part
+  // of an in-place inverse real FFT)
+  static RealMatrix view(double[] data, int offset, int rows, int cols, int rowStride)
+  {
+    return new RealMatrix(data, offset, rows, cols, rowStride, 1, 0, 0);
+  }
+
+  // Creates a compact matrix from a double[][] matrix
+  public static RealMatrix of(double[][] matrix)
+  {
+    int rows = matrix.length;
+    int cols = matrix[0].length;
+    RealMatrix result = new RealMatrix(rows, cols);
+    IntStream.range(0, rows).parallel().forEach( i -> System.arraycopy(matrix[i], 0, result.data, i*cols, cols) );
+    return result;
+  }
+
+  // Converts the matrix to a double[][] matrix
+  public double[][] toArray()
+  {
+    double[][] matrix = new double[rows][cols];
+    IntStream.range(0, rows).parallel().forEach( i -> {
+      for (int j = 0; j < cols; j++)
+      {
+        matrix[i][j] = data[index(i, j)];
+      }
+    });
+    return matrix;
+  }
+
+  public int getRows()
+  {
+    return this.rows;
+  }
+
+  public int getCols()
+  {
+    return this.cols;
+  }
+
+  public double get(int row, int col)
+  {
+    return this.data[index(row, col)];
+  }
+
+  public void set(int row, int col, double value)
+  {
+    this.data[index(row, col)] = value;
+  }
+
+  // true if every row is stored contiguously
+  public boolean hasContiguousRows()
+  {
+    return this.colStride == 1 && this.colShift == 0;
+  }
+
+  // true if the matrix is compact (not a view of a larger or permuted matrix)
+  public boolean isCompact()
+  {
+    return this.offset == 0 && this.rowStride == this.cols && hasContiguousRows() && this.rowShift == 0
+        && this.data.length == this.rows*this.cols;
+  }
+
+  // The backing array, shared by all views
+  public double[] getData()
+  {
+    return this.data;
+  }
+
+  // Index of the element (row, 0) in the backing array
+  public int getRowOffset(int row)
+  {
+    return index(row, 0);
+  }
+
+  public int getRowStride()
+  {
+    return this.rowStride;
+  }
+
+  public int getColStride()
+  {
+    return this.colStride;
+  }
+
+  // View of the rows x cols sub-matrix starting at (row, col)
+  public RealMatrix subMatrix(int row, int col, int rows, int cols)
+  {
+    if (row < 0 || col < 0 || row + rows > this.rows || col + cols > this.cols)
+    {
+      throw new IndexOutOfBoundsException("sub-matrix exceeds " + this.rows + " x " + this.cols);
+    }
+    if (this.rowShift != 0 || this.colShift != 0)
+    {
+      throw new IllegalStateException("sub-matrix of a shifted view");
+    }
+    return new RealMatrix(data, index(row, col), rows, cols, rowStride, colStride, 0, 0);
+  }
+
+  // Transposed view
+  public RealMatrix transposed()
+  {
+    return new RealMatrix(data, offset, cols, rows, colStride, rowStride, colShift, rowShift);
+  }
+
+  // Shifted view: the element (0,0) is moved to (rows/2, cols/2) like FFTUtils.shiftAbsFourierKoef()
+  public RealMatrix shifted()
+  {
+    return new RealMatrix(data, offset, rows, cols, rowStride, colStride,
+        (rowShift + rows - rows/2) % rows, (colShift + cols - cols/2) % cols);
+  }
+
+  // Compact copy of the matrix (or view)
+  public RealMatrix copy()
+  {
+    RealMatrix result = new RealMatrix(rows, cols);
+    result.copyFrom(this);
+    return result;
+  }
+
+  // Copies the elements of the matrix m, which must have the same size
+  public void copyFrom(RealMatrix m)
+  {
+    if (m.rows != this.rows || m.cols != this.cols)
+    {
+      throw new IllegalArgumentException("different matrix sizes");
+    }
+
+    IntStream.range(0, rows).parallel().forEach( i -> {
+      if (this.hasContiguousRows() && m.hasContiguousRows())
+      {
+        System.arraycopy(m.data, m.getRowOffset(i), this.data, this.getRowOffset(i), cols);
+      }
+      else
+      {
+        for (int j = 0; j < cols; j++)
+        {
+          this.data[this.index(i, j)] = m.data[m.index(i, j)];
+        }
+      }
+    });
+  }
+
+  // Sets all elements to the given value
+  public void fill(double value)
+  {
+    IntStream.range(0, rows).parallel().forEach( i -> {
+      for (int j = 0; j < cols; j++)
+      {
+        data[index(i, j)] = value;
+      }
+    });
+  }
+
+  // Returns the largest element
+  public double max()
+  {
+    return IntStream.range(0, rows).parallel().mapToDouble( i -> {
+      double max = Double.NEGATIVE_INFINITY;
+      for (int j = 0; j < cols; j++)
+      {
+        max = Math.max(max, data[index(i, j)]);
+      }
+      return max;
+    }).max().orElse(Double.NaN);
+  }
+
+  // Index of the element (row, col) in the backing array
+  int index(int row, int col)
+  {
+    if (rowShift != 0)
+    {
+      row += rowShift;
+      if (row >= rows)
+        row -= rows;
+    }
+    if (colShift != 0)
+    {
+      col += colShift;
+      if (col >= cols)
+        col -= cols;
+    }
+    return offset + row*rowStride + col*colStride;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "RealMatrix[" + rows + " x " + cols + "]";
+  }
+}
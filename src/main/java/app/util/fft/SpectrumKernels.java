@@ -0,0 +1,189 @@
+package app.util.fft;
+
+import java.util.stream.IntStream;
+
+import app.util.image.Rasters;
+
+/**
+ * Fused kernels for the post-processing of spectra and reconstructions.
+ *
+ * Each kernel makes one parallel pass over the matrix and writes the result straight into
+ * its destination, instead of chaining FFTUtils calls that allocate a full matrix per step:
+ *
+ *   truncateAbsMax()           createTruncatedMatrix() + getAbsValuesOfMatrix() + max
+ *   renderShiftedLogSpectrum() getShiftedAbsValuesOfHalfSpectrum() + getLogScaledBufferedImageForMatix()
+ *                              (also for the float spectrum of FloatCompression)
+ *   toGrayPixelBuffer()        getAbsValuesOfRealSubMatrix() + getPixelBufferFor()
+ *
+ * The parallel loops run in the pool of the calling thread (see Parallelism), the token is
+ * checked for every row.
+ */
+public final class SpectrumKernels
+{
+  private SpectrumKernels()
+  {
+
+  }
+
+  // Writes the matrix src truncated at threshold (see ComplexMatrix.truncate()) to dst and returns
+  // the largest absolute value of the kept elements (0 if no element is kept). dst must have the
+  // size of src and may be src itself.
+  public static double truncateAbsMax(ComplexMatrix src, double threshold, ComplexMatrix dst, CancellationToken token)
+  {
+    int rows = src.getRows();
+    int cols = src.getCols();
+    if (dst.getRows() != rows || dst.getCols() != cols)
+    {
+      throw new IllegalArgumentException("different matrix sizes");
+    }
+
+    double[] in = src.getData();
+    double[] out = dst.getData();
+    boolean contiguous = src.hasContiguousRows() && dst.hasContiguousRows();
+    double thresholdSquared = threshold*threshold;
+
+    double maxSquared = IntStream.range(0, rows).parallel().mapToDouble( i -> {
+      token.throwIfCancelled();
+      double rowMax = 0.0;
+      int srcIndex = src.getRowOffset(i);
+      int dstIndex = dst.getRowOffset(i);
+      for (int j = 0; j < cols; j++)
+      {
+        if (!contiguous)
+        {
+          srcIndex = src.index(i, j);
+          dstIndex = dst.index(i, j);
+        }
+
+        double re = in[srcIndex];
+        double im = in[srcIndex + 1];
+        double squared = re*re + im*im;
+        // 0/1 mask instead of a branch, the comparison is unpredictable
+        double keep = (squared > thresholdSquared) ? 1.0 : 0.0;
+        out[dstIndex] = re*keep;
+        out[dstIndex + 1] = im*keep;
+        rowMax = Math.max(rowMax, squared*keep);
+
+        srcIndex += 2;
+        dstIndex += 2;
+      }
+      return rowMax;
+    }).max().orElse(0.0);
+
+    return Math.sqrt(maxSquared);
+  }
+
+  // Renders the log scaled, shifted absolute values of the full spectrum into pixels, like
+  // getLogScaledBufferedImageForMatix(getShiftedAbsValuesOfHalfSpectrum(halfSpectrum, cols), maxElement).
+  // The image has halfSpectrum.getRows() x cols pixels, the matrix element (x, y) is the pixel
+  // pixels[y*width + x] (width = halfSpectrum.getRows()). The missing half is mirrored on the fly.
+  public static void renderShiftedLogSpectrum(ComplexMatrix halfSpectrum, int cols, double maxElement, int[] pixels, CancellationToken token)
+  {
+    int width = halfSpectrum.getRows();
+    int height = cols;
+    if (pixels.length < width * height)
+    {
+      throw new IllegalArgumentException("pixel buffer too small for " + width + " x " + height + " pixels");
+    }
+
+    int halfCols = FFT.getHalfSpectrumLength(cols);
+    int rowShift = width - width / 2;
+    int colShift = cols - cols / 2;
+    double[] data = halfSpectrum.getData();
+    boolean contiguous = halfSpectrum.hasContiguousRows();
+    Rasters.LogScale logScale = new Rasters.LogScale(maxElement);
+
+    Rasters.forEachBand(height, (firstRow, lastRow) -> {
+      token.throwIfCancelled();
+      for (int x = 0; x < width; x++)
+      {
+        // the pixel column x is the shifted row r of the spectrum, its second half the mirrored row
+        int r = (x + rowShift) % width;
+        int mirror = (width - r) % width;
+        int rowOffset = halfSpectrum.getRowOffset(r);
+        int mirrorOffset = halfSpectrum.getRowOffset(mirror);
+        for (int y = firstRow; y < lastRow; y++)
+        {
+          int c = y + colShift;
+          if (c >= cols)
+            c -= cols;
+
+          int index;
+          if (contiguous)
+            index = (c < halfCols) ? rowOffset + 2*c : mirrorOffset + 2*(cols - c);
+          else
+            index = (c < halfCols) ? halfSpectrum.index(r, c) : halfSpectrum.index(mirror, cols - c);
+
+          pixels[y*width + x] = logScale.toPixelOfSquare(data[index]*data[index] + data[index+1]*data[index+1]);
+        }
+      }
+    });
+  }
+
+  // Same as renderShiftedLogSpectrum(halfSpectrum, cols, ...) for the float half spectrum of
+  // FloatCompression: rows x cols/2+1 coefficients, row i starts at 2*i*(cols/2+1)
+  public static void renderShiftedLogSpectrum(float[] halfSpectrum, int rows, int cols, double maxElement, int[] pixels, CancellationToken token)
+  {
+    int width = rows;
+    int height = cols;
+    if (pixels.length < width * height)
+    {
+      throw new IllegalArgumentException("pixel buffer too small for " + width + " x " + height + " pixels");
+    }
+
+    int halfCols = FFT.getHalfSpectrumLength(cols);
+    int rowShift = width - width / 2;
+    int colShift = cols - cols / 2;
+    Rasters.LogScale logScale = new Rasters.LogScale(maxElement);
+
+    Rasters.forEachBand(height, (firstRow, lastRow) -> {
+      token.throwIfCancelled();
+      for (int x = 0; x < width; x++)
+      {
+        int r = (x + rowShift) % width;
+        int mirror = (width - r) % width;
+        int rowOffset = 2*r*halfCols;
+        int mirrorOffset = 2*mirror*halfCols;
+        for (int y = firstRow; y < lastRow; y++)
+        {
+          int c = y + colShift;
+          if (c >= cols)
+            c -= cols;
+
+          int index = (c < halfCols) ? rowOffset + 2*c : mirrorOffset + 2*(cols - c);
+          double re = halfSpectrum[index];
+          double im = halfSpectrum[index+1];
+          pixels[y*width + x] = logScale.toPixelOfSquare(re*re + im*im);
+        }
+      }
+    });
+  }
+
+  // Gray pixel buffer of the absolute values of the upper left width x height elements of the
+  // matrix, clamped to [0, 255], like getPixelBufferFor(getAbsValuesOfRealSubMatrix(matrix, width, height)).
+  // It crops the result of FFT.irfft2() to the image size; pixel i*height + j is element (i, j).
+  public static int[] toGrayPixelBuffer(RealMatrix matrix, int width, int height, CancellationToken token)
+  {
+    if (matrix.getRows() < width || matrix.getCols() < height)
+    {
+      throw new IllegalArgumentException("matrix smaller than " + width + " x " + height);
+    }
+
+    double[] data = matrix.getData();
+    boolean contiguous = matrix.hasContiguousRows();
+    int[] pixelBuffer = new int[width * height];
+
+    IntStream.range(0, width).parallel().forEach( i -> {
+      token.throwIfCancelled();
+      int rowOffset = matrix.getRowOffset(i);
+      for (int j = 0; j < height; j++)
+      {
+        double value = contiguous ? data[rowOffset + j] : data[matrix.index(i, j)];
+        int grayValue = (int) (Math.min(255.0, Math.abs(value)) + 0.5);
+        pixelBuffer[i * height + j] = (grayValue << 16) + (grayValue << 8) + grayValue;
+      }
+    });
+
+    return pixelBuffer;
+  }
+}
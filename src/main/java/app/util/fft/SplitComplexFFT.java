@@ -0,0 +1,332 @@
+package app.util.fft;
+
+import java.lang.management.ManagementFactory;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+/**
+ * FFT of power of 2 length on the split-complex layout: the real and the imaginary parts are
+ * stored in two separate arrays instead of the interleaved [re, im, re, im, ...] layout.
+ *
+ * The kernel is a radix-4 Stockham autosort FFT with a final radix-2 stage for odd powers of 2.
+ * It needs no bit-reversal permutation, and every stage is a loop over contiguous elements of
+ * plain double arrays, which the JIT compiles to SIMD instructions (superword optimisation).
+ * The interleaved layout prevents this.
+ *
+ * FFTPlan uses the kernel for power of 2 lengths if isEnabled() is true and converts the
+ * interleaved data on the fly. Calculations keeping their data split can call fft() and ifft()
+ * directly and use abs() and truncate() for the absolute values and the truncation.
+ */
+public final class SplitComplexFFT
+{
+  // System property selecting the kernel of FFTPlan: "split", "scalar" or "auto" (default)
+  public static final String ENGINE_PROPERTY = "app.fft.engine";
+
+  // Shorter transformations gain nothing from the conversion of the layout
+  static final int MIN_LENGTH = 64;
+
+  // Stages with a smaller stride run along the twiddle table instead of along the stride
+  private static final int MIN_INNER_STRIDE = 8;
+
+  private static final boolean ENABLED = detect();
+
+  // Ping-pong buffers [re, im, re, im] of the Stockham stages (one set per thread)
+  private static final ThreadLocal<double[][]> workBuffers = ThreadLocal.withInitial(() -> new double[4][0]);
+
+  private final int n;
+
+  // exp(-2*pi*i*k*p/len), k = 1, 2, 3, p < len/4, of the radix-4 stage of length len stored
+  // as [w1_0, w1_1, ..., w2_0, w2_1, ..., w3_0, ...] starting at stageOffsets[stage]
+  private final double[] twiddleRe;
+  private final double[] twiddleIm;
+  private final int[] stageOffsets;
+
+  public SplitComplexFFT(int n)
+  {
+    if (n < 1 || (n & (n - 1)) != 0)
+    {
+      throw new IllegalArgumentException("n must be a power of 2");
+    }
+
+    this.n = n;
+
+    int stages = Integer.numberOfTrailingZeros(n) / 2;
+    this.stageOffsets = new int[stages];
+    int count = 0;
+    for (int stage = 0, len = n; stage < stages; stage++, len >>>= 2)
+    {
+      this.stageOffsets[stage] = count;
+      count += 3*(len/4);
+    }
+
+    this.twiddleRe = new double[count];
+    this.twiddleIm = new double[count];
+    for (int stage = 0, len = n; stage < stages; stage++, len >>>= 2)
+    {
+      for (int p = 0; p < len/4; p++)
+      {
+        for (int k = 1; k <= 3; k++)
+        {
+          // k*p < 3*len/4, the reduction modulo len is not needed
+          double angle = 2 * Math.PI * k * p / len;
+          int index = this.stageOffsets[stage] + (k - 1)*(len/4) + p;
+          this.twiddleRe[index] = Math.cos(angle);
+          this.twiddleIm[index] = -Math.sin(angle);
+        }
+      }
+    }
+  }
+
+  // true if FFTPlan uses this kernel for power of 2 lengths
+  public static boolean isEnabled()
+  {
+    return ENABLED;
+  }
+
+  public int getLength()
+  {
+    return this.n;
+  }
+
+  // Approximate heap size in bytes
+  public long getMemoryInBytes()
+  {
+    return 48L + 2*(16L + 8L*this.twiddleRe.length) + 4L*this.stageOffsets.length;
+  }
+
+  // compute in place the FFT of the n complex values re[k] + i*im[k]
+  public void fft(double[] re, double[] im)
+  {
+    if (re.length < this.n || im.length < this.n)
+    {
+      throw new IllegalArgumentException("arrays shorter than " + this.n);
+    }
+
+    double[][] work = getWorkBuffers(this.n);
+    if (stockham(re, im, work[2], work[3]))
+    {
+      System.arraycopy(work[2], 0, re, 0, this.n);
+      System.arraycopy(work[3], 0, im, 0, this.n);
+    }
+  }
+
+  // compute in place the inverse FFT, ifft(x) = conj(fft(conj(x)))/n = swap(fft(swap(x)))/n
+  public void ifft(double[] re, double[] im)
+  {
+    fft(im, re);
+
+    double scale = 1.0 / this.n;
+    for (int k = 0; k < this.n; k++)
+    {
+      re[k] *= scale;
+      im[k] *= scale;
+    }
+  }
+
+  // compute in place the FFT of the n interleaved complex values stored in data[] starting at
+  // offset (used by FFTPlan)
+  void fft(double[] data, int offset)
+  {
+    int n = this.n;
+    double[][] work = getWorkBuffers(n);
+    double[] re = work[0];
+    double[] im = work[1];
+
+    for (int k = 0; k < n; k++)
+    {
+      re[k] = data[offset + 2*k];
+      im[k] = data[offset + 2*k + 1];
+    }
+
+    if (stockham(re, im, work[2], work[3]))
+    {
+      re = work[2];
+      im = work[3];
+    }
+
+    for (int k = 0; k < n; k++)
+    {
+      data[offset + 2*k] = re[k];
+      data[offset + 2*k + 1] = im[k];
+    }
+  }
+
+  // dst[k] = |re[k] + i*im[k]|, k < dst.length
+  public static void abs(double[] re, double[] im, double[] dst)
+  {
+    for (int k = 0; k < dst.length; k++)
+    {
+      dst[k] = Math.sqrt(re[k]*re[k] + im[k]*im[k]);
+    }
+  }
+
+  // Sets all elements with an absolute value not larger than threshold to zero. The elements are
+  // multiplied by a 0/1 mask instead of branching, so the loop can be vectorised.
+  public static void truncate(double[] re, double[] im, double threshold)
+  {
+    double thresholdSquared = threshold*threshold;
+    for (int k = 0; k < re.length; k++)
+    {
+      double keep = (re[k]*re[k] + im[k]*im[k] > thresholdSquared) ? 1.0 : 0.0;
+      re[k] *= keep;
+      im[k] *= keep;
+    }
+  }
+
+  // Stockham stages alternating between (xRe, xIm) and (yRe, yIm). A radix-4 stage of length len
+  // combines the elements x[q + s*(p + k*len/4)], k < 4, s = n/len, into y[q + s*(4*p + k)].
+  // A final radix-2 stage is used if log2(n) is odd. Returns true if the result is in y.
+  private boolean stockham(double[] xRe, double[] xIm, double[] yRe, double[] yIm)
+  {
+    boolean swapped = false;
+
+    int len = this.n;
+    int s = 1;
+    for (int stage = 0; len >= 4; stage++, len >>>= 2, s <<= 2)
+    {
+      if (s >= MIN_INNER_STRIDE)
+        radix4Outer(xRe, xIm, yRe, yIm, len >>> 2, s, this.stageOffsets[stage]);
+      else
+        radix4Inner(xRe, xIm, yRe, yIm, len >>> 2, s, this.stageOffsets[stage]);
+
+      double[] tmp = xRe;
+      xRe = yRe;
+      yRe = tmp;
+      tmp = xIm;
+      xIm = yIm;
+      yIm = tmp;
+      swapped = !swapped;
+    }
+
+    if (len == 2)
+    {
+      // twiddle factor 1: y[2*q] = x[q] + x[q + s], y[2*q + 1] = x[q] - x[q + s] with s = n/2
+      for (int q = 0; q < s; q++)
+      {
+        double aRe = xRe[q];
+        double aIm = xIm[q];
+        double bRe = xRe[q + s];
+        double bIm = xIm[q + s];
+        yRe[q] = aRe + bRe;
+        yIm[q] = aIm + bIm;
+        yRe[q + s] = aRe - bRe;
+        yIm[q + s] = aIm - bIm;
+      }
+      swapped = !swapped;
+    }
+
+    return swapped;
+  }
+
+  // radix-4 stage with a common twiddle factor per p, unit stride over q (the later stages)
+  private void radix4Outer(double[] xRe, double[] xIm, double[] yRe, double[] yIm, int m, int s, int twiddleOffset)
+  {
+    for (int p = 0; p < m; p++)
+    {
+      int t = twiddleOffset + p;
+      double w1Re = this.twiddleRe[t];
+      double w1Im = this.twiddleIm[t];
+      double w2Re = this.twiddleRe[t + m];
+      double w2Im = this.twiddleIm[t + m];
+      double w3Re = this.twiddleRe[t + 2*m];
+      double w3Im = this.twiddleIm[t + 2*m];
+
+      int a = s*p;
+      int b = a + s*m;
+      int c = b + s*m;
+      int d = c + s*m;
+      int out = 4*s*p;
+      for (int q = 0; q < s; q++)
+      {
+        butterfly4(xRe, xIm, yRe, yIm, a + q, b + q, c + q, d + q, out + q, s,
+            w1Re, w1Im, w2Re, w2Im, w3Re, w3Im);
+      }
+    }
+  }
+
+  // radix-4 stage along the twiddle table (the first stages with a small stride)
+  private void radix4Inner(double[] xRe, double[] xIm, double[] yRe, double[] yIm, int m, int s, int twiddleOffset)
+  {
+    for (int q = 0; q < s; q++)
+    {
+      for (int p = 0; p < m; p++)
+      {
+        int t = twiddleOffset + p;
+        int a = q + s*p;
+        butterfly4(xRe, xIm, yRe, yIm, a, a + s*m, a + 2*s*m, a + 3*s*m, q + 4*s*p, s,
+            this.twiddleRe[t], this.twiddleIm[t], this.twiddleRe[t + m], this.twiddleIm[t + m],
+            this.twiddleRe[t + 2*m], this.twiddleIm[t + 2*m]);
+      }
+    }
+  }
+
+  // y[out + k*s] = w^k * sum_j x[j-th input] * (-i)^(j*k), k < 4
+  private static void butterfly4(double[] xRe, double[] xIm, double[] yRe, double[] yIm, int a, int b, int c, int d,
+      int out, int s, double w1Re, double w1Im, double w2Re, double w2Im, double w3Re, double w3Im)
+  {
+    double apcRe = xRe[a] + xRe[c];
+    double apcIm = xIm[a] + xIm[c];
+    double amcRe = xRe[a] - xRe[c];
+    double amcIm = xIm[a] - xIm[c];
+    double bpdRe = xRe[b] + xRe[d];
+    double bpdIm = xIm[b] + xIm[d];
+    // i*(b - d)
+    double jbmdRe = xIm[d] - xIm[b];
+    double jbmdIm = xRe[b] - xRe[d];
+
+    yRe[out] = apcRe + bpdRe;
+    yIm[out] = apcIm + bpdIm;
+
+    double re = amcRe - jbmdRe;
+    double im = amcIm - jbmdIm;
+    yRe[out + s] = re*w1Re - im*w1Im;
+    yIm[out + s] = re*w1Im + im*w1Re;
+
+    re = apcRe - bpdRe;
+    im = apcIm - bpdIm;
+    yRe[out + 2*s] = re*w2Re - im*w2Im;
+    yIm[out + 2*s] = re*w2Im + im*w2Re;
+
+    re = amcRe + jbmdRe;
+    im = amcIm + jbmdIm;
+    yRe[out + 3*s] = re*w3Re - im*w3Im;
+    yIm[out + 3*s] = re*w3Im + im*w3Re;
+  }
+
+  private static double[][] getWorkBuffers(int length)
+  {
+    double[][] buffers = workBuffers.get();
+    if (buffers[0].length < length)
+    {
+      for (int i = 0; i < buffers.length; i++)
+      {
+        buffers[i] = new double[length];
+      }
+    }
+    return buffers;
+  }
+
+  // "split" and "scalar" force the kernel. "auto" uses the split kernel if the JIT compiles
+  // unit stride loops to SIMD instructions (superword optimisation with vectors of at least
+  // two doubles), otherwise the scalar radix-2 kernel of FFTPlan.
+  private static boolean detect()
+  {
+    String engine = System.getProperty(ENGINE_PROPERTY, "auto");
+    if (engine.equals("split"))
+      return true;
+    if (engine.equals("scalar"))
+      return false;
+
+    try
+    {
+      HotSpotDiagnosticMXBean bean = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+      boolean superWord = Boolean.parseBoolean(bean.getVMOption("UseSuperWord").getValue());
+      int maxVectorSize = Integer.parseInt(bean.getVMOption("MaxVectorSize").getValue());
+      return superWord && maxVectorSize >= 16;
+    }
+    catch (RuntimeException | LinkageError exce)
+    {
+      return false;
+    }
+  }
+}
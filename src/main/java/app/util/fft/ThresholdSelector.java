@@ -0,0 +1,226 @@
+package app.util.fft;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Finds the k-th smallest element of a matrix without sorting and without boxing.
+ *
+ * The selection is a radix select on the bits of the elements: every double is mapped to a
+ * 64 bit key with the same order, and four parallel histogram passes over 16 bit digits
+ * narrow down the key of the k-th element. The matrix is not copied.
+ *
+ * The histogram of the first digit and the largest element are computed once by the
+ * constructor, so getMaxElement() is free and every selection needs three more passes.
+ *
+ * Replaces FFTUtils.getSortedElements() if only single ranks (thresholds) are needed.
+ *
+ * If a ForkJoinPool is given, the histogram passes run in that pool, otherwise in the pool of
+ * the calling thread. If a CancellationToken is given, it is checked for every row.
+ */
+public final class ThresholdSelector
+{
+  private static final int DIGIT_BITS = 16;
+  private static final int BUCKETS = 1 << DIGIT_BITS;
+  private static final int PASSES = 64 / DIGIT_BITS;
+
+  private final double[][] jaggedMatrix;
+  private final RealMatrix matrix;
+  private final int rows;
+  private final int cols;
+  private final ForkJoinPool pool;
+  private final CancellationToken token;
+
+  private final long[] firstHistogram;
+  private final double maxElement;
+
+  public ThresholdSelector(double[][] matrix)
+  {
+    this(matrix, (ForkJoinPool) null);
+  }
+
+  public ThresholdSelector(RealMatrix matrix)
+  {
+    this(matrix, (ForkJoinPool) null);
+  }
+
+  public ThresholdSelector(double[][] matrix, ForkJoinPool pool)
+  {
+    this(matrix, pool, CancellationToken.NONE);
+  }
+
+  public ThresholdSelector(RealMatrix matrix, ForkJoinPool pool)
+  {
+    this(matrix, pool, CancellationToken.NONE);
+  }
+
+  public ThresholdSelector(double[][] matrix, ForkJoinPool pool, CancellationToken token)
+  {
+    this(matrix, null, matrix.length, matrix[0].length, pool, token);
+  }
+
+  public ThresholdSelector(RealMatrix matrix, ForkJoinPool pool, CancellationToken token)
+  {
+    this(null, matrix, matrix.getRows(), matrix.getCols(), pool, token);
+  }
+
+  private ThresholdSelector(double[][] jaggedMatrix, RealMatrix matrix, int rows, int cols, ForkJoinPool pool, CancellationToken token)
+  {
+    this.jaggedMatrix = jaggedMatrix;
+    this.matrix = matrix;
+    this.rows = rows;
+    this.cols = cols;
+    this.pool = pool;
+    this.token = token;
+
+    double[] max = new double[] { Double.NEGATIVE_INFINITY };
+    this.firstHistogram = histogram(0L, 0L, PASSES - 1, max);
+    this.maxElement = max[0];
+  }
+
+  // Number of elements
+  public long size()
+  {
+    return (long) this.rows * this.cols;
+  }
+
+  // Largest element of the matrix
+  public double getMaxElement()
+  {
+    return this.maxElement;
+  }
+
+  // The element at position compressRate*size() of the sorted elements, i.e. the same value as
+  // getSortedElements(matrix).get((int) (compressRate * size))
+  public double getThreshold(double compressRate)
+  {
+    long k = (long) (compressRate * size());
+    return select(Math.max(0, Math.min(size() - 1, k)));
+  }
+
+  // The k-th smallest element (k = 0 is the smallest element)
+  public double select(long k)
+  {
+    if (k < 0 || k >= size())
+    {
+      throw new IndexOutOfBoundsException("k = " + k + ", size = " + size());
+    }
+
+    long prefix = 0L;
+    long prefixMask = 0L;
+    for (int pass = PASSES - 1; pass >= 0; pass--)
+    {
+      long[] histogram = (pass == PASSES - 1) ? this.firstHistogram : histogram(prefix, prefixMask, pass, null);
+
+      int digit = 0;
+      while (k >= histogram[digit])
+      {
+        k -= histogram[digit];
+        digit++;
+      }
+
+      int shift = pass * DIGIT_BITS;
+      prefix |= ((long) digit) << shift;
+      prefixMask |= ((long) (BUCKETS - 1)) << shift;
+    }
+
+    return fromKey(prefix);
+  }
+
+  // Histogram of the digit at position pass for all elements whose key matches the prefix.
+  // If max is not null, max[0] is set to the largest element.
+  private long[] histogram(long prefix, long prefixMask, int pass, double[] max)
+  {
+    return Parallelism.invoke(this.pool, () -> histogramInPool(prefix, prefixMask, pass, max));
+  }
+
+  private long[] histogramInPool(long prefix, long prefixMask, int pass, double[] max)
+  {
+    int shift = pass * DIGIT_BITS;
+    // two chunks per worker of the pool the pass runs in, but every chunk allocates and merges a
+    // histogram of BUCKETS counters, so a chunk covers at least BUCKETS elements
+    int parallelism = (this.pool != null) ? this.pool.getParallelism() : Parallelism.getParallelism();
+    long maxChunks = Math.min(rows, Math.min(2L * parallelism, (long) rows * cols / BUCKETS));
+    int chunks = (int) Math.max(1, maxChunks);
+
+    return IntStream.range(0, chunks).parallel().mapToObj( chunk -> {
+      long[] histogram = new long[BUCKETS + 1];
+      double chunkMax = Double.NEGATIVE_INFINITY;
+      double[] buffer = null;
+
+      int firstRow = (int) ((long) rows * chunk / chunks);
+      int lastRow = (int) ((long) rows * (chunk + 1) / chunks);
+      for (int i = firstRow; i < lastRow; i++)
+      {
+        token.throwIfCancelled();
+        double[] row;
+        int start;
+        if (jaggedMatrix != null)
+        {
+          row = jaggedMatrix[i];
+          start = 0;
+        }
+        else if (matrix.hasContiguousRows())
+        {
+          row = matrix.getData();
+          start = matrix.getRowOffset(i);
+        }
+        else
+        {
+          if (buffer == null)
+            buffer = new double[cols];
+          for (int j = 0; j < cols; j++)
+          {
+            buffer[j] = matrix.get(i, j);
+          }
+          row = buffer;
+          start = 0;
+        }
+
+        for (int j = start; j < start + cols; j++)
+        {
+          long key = toKey(row[j]);
+          if ((key & prefixMask) == prefix)
+          {
+            histogram[(int) ((key >>> shift) & (BUCKETS - 1))]++;
+          }
+          if (row[j] > chunkMax)
+          {
+            chunkMax = row[j];
+          }
+        }
+      }
+
+      // the additional last element transports the maximum
+      histogram[BUCKETS] = Double.doubleToRawLongBits(chunkMax);
+      return histogram;
+    }).reduce((h1, h2) -> {
+      double chunkMax = Math.max(Double.longBitsToDouble(h1[BUCKETS]), Double.longBitsToDouble(h2[BUCKETS]));
+      for (int d = 0; d < BUCKETS; d++)
+      {
+        h1[d] += h2[d];
+      }
+      h1[BUCKETS] = Double.doubleToRawLongBits(chunkMax);
+      return h1;
+    }).map( histogram -> {
+      if (max != null)
+      {
+        max[0] = Double.longBitsToDouble(histogram[BUCKETS]);
+      }
+      return histogram;
+    }).get();
+  }
+
+  // Maps a double to a long whose unsigned order is the order of the doubles
+  private static long toKey(double value)
+  {
+    long bits = Double.doubleToRawLongBits(value + 0.0);
+    return (bits < 0) ? ~bits : bits ^ Long.MIN_VALUE;
+  }
+
+  private static double fromKey(long key)
+  {
+    long bits = (key < 0) ? key ^ Long.MIN_VALUE : ~key;
+    return Double.longBitsToDouble(bits);
+  }
+}
@@ -0,0 +1,235 @@
+package app.util.fft;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Compression of an image tile by tile.
+ *
+ * The image is split into tiles of at most tileSize x tileSize pixels. Every tile is
+ * transformed, truncated with the compression rate and reconstructed independently of the
+ * other tiles, so only the tiles currently processed by the worker threads are held in
+ * memory. The tiles are processed in parallel; the result is written into a pixel buffer.
+ *
+ * Neighbouring tiles may overlap. Then every tile consists of a core, which is written to the
+ * result, and a margin of overlap pixels, which is transformed as well but discarded after the
+ * reconstruction. This moves the boundary artefacts of the truncation out of the visible image
+ * and hides the seams. If windowed is set, the margin is additionally faded to the mean value
+ * of the tile with a raised cosine, which removes the jump at the periodic boundary of the
+ * tile and the leakage caused by it.
+ *
+ * Unlike the matrices of FFTUtils the pixel buffers are in the row major layout of
+ * PixelReader.getPixels(): pixel (x, y) is located at y*width + x.
+ */
+public final class TiledCompression
+{
+  public static final int MIN_TILE_SIZE = 64;
+  public static final int MAX_TILE_SIZE = 512;
+  public static final int DEFAULT_TILE_SIZE = 256;
+  public static final int DEFAULT_OVERLAP = 16;
+
+  private final int tileSize;
+  private final int overlap;
+  private final boolean windowed;
+
+  // overlap is the margin width on each side of the core, the core is tileSize - 2*overlap
+  public TiledCompression(int tileSize, int overlap, boolean windowed)
+  {
+    if (tileSize < MIN_TILE_SIZE || tileSize > MAX_TILE_SIZE)
+    {
+      throw new IllegalArgumentException("tile size must be between " + MIN_TILE_SIZE + " and " + MAX_TILE_SIZE);
+    }
+    if (overlap < 0 || 4*overlap > tileSize)
+    {
+      throw new IllegalArgumentException("overlap must be between 0 and tileSize/4");
+    }
+
+    this.tileSize = tileSize;
+    this.overlap = overlap;
+    this.windowed = windowed;
+  }
+
+  public TiledCompression()
+  {
+    this(DEFAULT_TILE_SIZE, DEFAULT_OVERLAP, true);
+  }
+
+  public int getTileSize()
+  {
+    return this.tileSize;
+  }
+
+  public int getOverlap()
+  {
+    return this.overlap;
+  }
+
+  public boolean isWindowed()
+  {
+    return this.windowed;
+  }
+
+  // Edge length of the part of a tile written to the result
+  public int getCoreSize()
+  {
+    return this.tileSize - 2*this.overlap;
+  }
+
+  // Number of tiles for an image
+  public long getTileCount(int width, int height)
+  {
+    int core = getCoreSize();
+    return (long) ((width + core - 1) / core) * ((height + core - 1) / core);
+  }
+
+  // Approximate memory in bytes needed by one worker for one tile (image matrix, half spectrum,
+  // sorted absolute values)
+  public long getMemoryPerTile()
+  {
+    long pixels = (long) this.tileSize * this.tileSize;
+    long coefficients = (long) this.tileSize * FFT.getHalfSpectrumLength(this.tileSize);
+    return 8*pixels + 16*coefficients + 8*coefficients;
+  }
+
+  // Same as compress(grayPixelBuffer, width, height, compressRate), the tiles are processed in
+  // the given pool (see Parallelism)
+  public int[] compress(int[] grayPixelBuffer, int width, int height, double compressRate, ForkJoinPool pool)
+  {
+    return compress(grayPixelBuffer, width, height, compressRate, pool, CancellationToken.NONE);
+  }
+
+  // see compress(grayPixelBuffer, width, height, compressRate, pool), stops with a
+  // CancellationException if the token is cancelled
+  public int[] compress(int[] grayPixelBuffer, int width, int height, double compressRate, ForkJoinPool pool, CancellationToken token)
+  {
+    return Parallelism.invoke(pool, () -> compress(grayPixelBuffer, width, height, compressRate, token));
+  }
+
+  // Compresses a gray image (the blue channel is used) and returns the gray pixel buffer of the
+  // reconstructed image. Both buffers have the row major layout y*width + x.
+  public int[] compress(int[] grayPixelBuffer, int width, int height, double compressRate)
+  {
+    return compress(grayPixelBuffer, width, height, compressRate, CancellationToken.NONE);
+  }
+
+  // see compress(grayPixelBuffer, width, height, compressRate), the token is checked for every tile
+  public int[] compress(int[] grayPixelBuffer, int width, int height, double compressRate, CancellationToken token)
+  {
+    if (grayPixelBuffer.length < (long) width * height)
+    {
+      throw new IllegalArgumentException("pixel buffer too small for " + width + " x " + height + " pixels");
+    }
+
+    int core = getCoreSize();
+    int tilesX = (width + core - 1) / core;
+    int tilesY = (height + core - 1) / core;
+    int[] result = new int[width * height];
+
+    IntStream.range(0, tilesX * tilesY).parallel().forEach( tile -> {
+      token.throwIfCancelled();
+      int coreX = (tile % tilesX) * core;
+      int coreY = (tile / tilesX) * core;
+      compressTile(grayPixelBuffer, result, width, height, coreX, coreY, compressRate);
+    });
+
+    return result;
+  }
+
+  private void compressTile(int[] src, int[] dst, int width, int height, int coreX, int coreY, double compressRate)
+  {
+    int core = getCoreSize();
+    int coreWidth = Math.min(core, width - coreX);
+    int coreHeight = Math.min(core, height - coreY);
+
+    // the margin is clipped at the image boundary
+    int x0 = Math.max(0, coreX - overlap);
+    int y0 = Math.max(0, coreY - overlap);
+    int x1 = Math.min(width, coreX + coreWidth + overlap);
+    int y1 = Math.min(height, coreY + coreHeight + overlap);
+    int tileWidth = x1 - x0;
+    int tileHeight = y1 - y0;
+
+    // rows of the tile matrix are image rows (y), columns are x
+    RealMatrix matrix = new RealMatrix(tileHeight, tileWidth);
+    double[] data = matrix.getData();
+    double sum = 0.0;
+    for (int y = 0; y < tileHeight; y++)
+    {
+      int srcOffset = (y0 + y)*width + x0;
+      for (int x = 0; x < tileWidth; x++)
+      {
+        double value = src[srcOffset + x] & 0xff;
+        data[y*tileWidth + x] = value;
+        sum += value;
+      }
+    }
+
+    if (windowed && overlap > 0)
+    {
+      double mean = sum / (tileWidth * tileHeight);
+      double[] windowX = createWindow(tileWidth, coreX - x0, x1 - (coreX + coreWidth));
+      double[] windowY = createWindow(tileHeight, coreY - y0, y1 - (coreY + coreHeight));
+      for (int y = 0; y < tileHeight; y++)
+      {
+        for (int x = 0; x < tileWidth; x++)
+        {
+          int index = y*tileWidth + x;
+          data[index] = mean + windowX[x]*windowY[y]*(data[index] - mean);
+        }
+      }
+    }
+
+    ComplexMatrix halfSpectrum = FFT.rfft2(matrix);
+    halfSpectrum.truncate(getThreshold(halfSpectrum, compressRate));
+    RealMatrix reconstruction = FFT.irfft2InPlace(halfSpectrum, tileWidth);
+
+    // write the core, values are clamped to [0, 255]
+    for (int y = coreY; y < coreY + coreHeight; y++)
+    {
+      int dstOffset = y*width;
+      for (int x = coreX; x < coreX + coreWidth; x++)
+      {
+        double value = Math.min(255.0, Math.max(0.0, reconstruction.get(y - y0, x - x0)));
+        int gray = (int) Math.round(value);
+        dst[dstOffset + x] = (gray << 16) + (gray << 8) + gray;
+      }
+    }
+  }
+
+  // Raised cosine from 0 to 1 over the left margin, 1 over the core and back to 0 over the right margin
+  private static double[] createWindow(int length, int leftMargin, int rightMargin)
+  {
+    double[] window = new double[length];
+    Arrays.fill(window, 1.0);
+    for (int k = 0; k < leftMargin; k++)
+    {
+      window[k] = 0.5 - 0.5*Math.cos(Math.PI * (k + 0.5) / leftMargin);
+    }
+    for (int k = 0; k < rightMargin; k++)
+    {
+      window[length - 1 - k] = 0.5 - 0.5*Math.cos(Math.PI * (k + 0.5) / rightMargin);
+    }
+    return window;
+  }
+
+  // The element at position compressRate*size of the sorted absolute values of the half spectrum
+  // (see ThresholdSelector.getThreshold()). A tile is small, so a primitive sort is sufficient.
+  private static double getThreshold(ComplexMatrix halfSpectrum, double compressRate)
+  {
+    int rows = halfSpectrum.getRows();
+    int cols = halfSpectrum.getCols();
+    double[] absValues = new double[rows * cols];
+    for (int i = 0; i < rows; i++)
+    {
+      for (int j = 0; j < cols; j++)
+      {
+        absValues[i*cols + j] = halfSpectrum.abs(i, j);
+      }
+    }
+    Arrays.sort(absValues);
+
+    int k = (int) (compressRate * absValues.length);
+    return absValues[Math.max(0, Math.min(absValues.length - 1, k))];
+  }
+}
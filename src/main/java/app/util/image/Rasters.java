@@ -0,0 +1,154 @@
+package app.util.image;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.stream.IntStream;
+
+/**
+ * Bulk rendering of pixel buffers (no JavaFX classes).
+ *
+ * Images are written through the int[] behind a TYPE_INT_RGB BufferedImage instead of one
+ * setRGB() call per pixel. Pixels are stored as opaque ARGB (alpha 0xff), which AWT ignores
+ * for TYPE_INT_RGB and JavaFX takes as it is (see app.util.ui.ImageHelper), so the same
+ * buffer can be shown by both. Large images are rendered in parallel bands of rows.
+ */
+public final class Rasters
+{
+  // Rows of a band rendered by one task
+  public static final int BAND_ROWS = 64;
+
+  private static final int[] RGB_MASKS = { 0xff0000, 0xff00, 0xff };
+  private static final DirectColorModel RGB_MODEL = new DirectColorModel(24, RGB_MASKS[0], RGB_MASKS[1], RGB_MASKS[2]);
+
+  // log2(1 + (k + 0.5)/LOG_TABLE_SIZE) for the upper LOG_TABLE_BITS bits k of the mantissa
+  private static final int LOG_TABLE_BITS = 10;
+  private static final int LOG_TABLE_SIZE = 1 << LOG_TABLE_BITS;
+  private static final double[] LOG2_MANTISSA = new double[LOG_TABLE_SIZE];
+
+  static
+  {
+    for (int k = 0; k < LOG_TABLE_SIZE; k++)
+    {
+      LOG2_MANTISSA[k] = Math.log(1.0 + (k + 0.5) / LOG_TABLE_SIZE) / Math.log(2.0);
+    }
+  }
+
+  // Renders the rows firstRow (inclusive) to lastRow (exclusive)
+  public interface BandRenderer
+  {
+    void render(int firstRow, int lastRow);
+  }
+
+  private Rasters()
+  {
+
+  }
+
+  // Creates a TYPE_INT_RGB image backed by the pixel buffer (row major, y*width + x), the
+  // pixels are not copied
+  public static BufferedImage wrap(int[] pixelBuffer, int width, int height)
+  {
+    if (pixelBuffer.length < width * height)
+    {
+      throw new IllegalArgumentException("pixel buffer too small for " + width + " x " + height + " pixels");
+    }
+
+    DataBufferInt buffer = new DataBufferInt(pixelBuffer, width * height);
+    WritableRaster raster = Raster.createPackedRaster(buffer, width, height, width, RGB_MASKS, null);
+    return new BufferedImage(RGB_MODEL, raster, false, null);
+  }
+
+  // Creates a TYPE_INT_RGB image with a new pixel buffer
+  public static BufferedImage createImage(int width, int height)
+  {
+    return wrap(new int[width * height], width, height);
+  }
+
+  // The pixel buffer of a TYPE_INT_RGB or TYPE_INT_ARGB image (not a copy), null for other
+  // types of images
+  public static int[] getPixels(BufferedImage image)
+  {
+    if ((image.getType() != BufferedImage.TYPE_INT_RGB && image.getType() != BufferedImage.TYPE_INT_ARGB)
+        || image.getRaster().getDataBuffer().getNumBanks() != 1 || image.getRaster().getParent() != null)
+    {
+      return null;
+    }
+    return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+  }
+
+  // Renders the rows in bands of BAND_ROWS rows in parallel
+  public static void forEachBand(int rows, BandRenderer renderer)
+  {
+    int bands = (rows + BAND_ROWS - 1) / BAND_ROWS;
+    IntStream.range(0, bands).parallel().forEach( band -> {
+      int firstRow = band * BAND_ROWS;
+      renderer.render(firstRow, Math.min(rows, firstRow + BAND_ROWS));
+    });
+  }
+
+  // Opaque gray pixel, value is clamped to [0, 255]
+  public static int gray(int value)
+  {
+    int gray = Math.max(0, Math.min(255, value));
+    return 0xff000000 | (gray << 16) | (gray << 8) | gray;
+  }
+
+  // Copies the pixel buffer and sets the alpha of every pixel to 0xff
+  public static int[] toOpaque(int[] pixelBuffer, int width, int height)
+  {
+    int[] result = new int[width * height];
+    forEachBand(height, (firstRow, lastRow) -> {
+      for (int i = firstRow * width; i < lastRow * width; i++)
+      {
+        result[i] = 0xff000000 | pixelBuffer[i];
+      }
+    });
+    return result;
+  }
+
+  // Approximation of log2(value) for positive finite values: the exponent plus the logarithm of
+  // the mantissa from a table (absolute error < 0.0008)
+  public static double fastLog2(double value)
+  {
+    long bits = Double.doubleToRawLongBits(value);
+    int exponent = (int) ((bits >>> 52) & 0x7ff) - 1023;
+    int index = (int) (bits >>> (52 - LOG_TABLE_BITS)) & (LOG_TABLE_SIZE - 1);
+    return exponent + LOG2_MANTISSA[index];
+  }
+
+  /**
+   * Logarithmic gray scale of FFTUtils.getLogScaledBufferedImageForMatix():
+   * gray = 255*log(value)/log(maxElement), clamped to [0, 255].
+   */
+  public static final class LogScale
+  {
+    private final double scale;
+
+    public LogScale(double maxElement)
+    {
+      double logMax = (maxElement > 0.0) ? fastLog2(maxElement) : 0.0;
+      this.scale = (logMax > 0.0) ? 255.0 / logMax : 0.0;
+    }
+
+    // Opaque gray pixel of the value, values below 1 are black
+    public int toPixel(double value)
+    {
+      if (!(value >= 1.0))
+        return 0xff000000;
+
+      return gray((int) (fastLog2(value) * this.scale + 0.5));
+    }
+
+    // Same as toPixel(Math.sqrt(squaredValue)) without the square root: log(v) = log(v*v)/2
+    public int toPixelOfSquare(double squaredValue)
+    {
+      if (!(squaredValue >= 1.0))
+        return 0xff000000;
+
+      return gray((int) (fastLog2(squaredValue) * 0.5 * this.scale + 0.5));
+    }
+  }
+}
@@ -0,0 +1,235 @@
+package app.util.pipeline;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Pipeline of processing stages connected by bounded queues.
+ *
+ * Every stage has its own fixed number of worker threads (its concurrency limit) and an input
+ * queue of limited capacity. A stage blocks if the queue of the next stage is full, so the
+ * number of items in flight, and with it the memory, is bounded by the queue capacities and
+ * concurrency limits. Memory-heavy stages therefore get a small concurrency limit and a small
+ * queue, cheap stages may run with more threads.
+ *
+ * A stage transforms an item into the item for the next stage. If a stage throws an exception
+ * (or runs out of memory) or returns null, the item is dropped and counted as failed. Any other
+ * Error also drops the item; the remaining items are processed and process() rethrows the first
+ * such Error.
+ */
+public final class Pipeline<T>
+{
+  // Marks the end of the input of a stage (one per worker)
+  private static final Object END = new Object();
+
+  private final List<Stage<T>> stages = new ArrayList<>();
+
+  // Adds a stage, concurrency is the number of worker threads, queueCapacity the capacity
+  // of its input queue
+  public Pipeline<T> addStage(String name, int concurrency, int queueCapacity, Function<T, T> task)
+  {
+    if (concurrency < 1 || queueCapacity < 1)
+    {
+      throw new IllegalArgumentException("concurrency and queue capacity must be positive");
+    }
+    this.stages.add(new Stage<>(name, concurrency, queueCapacity, task));
+    return this;
+  }
+
+  // Statistics of the stages of the last process() call
+  public List<StageStatistics> getStatistics()
+  {
+    List<StageStatistics> statistics = new ArrayList<>();
+    for (Stage<T> stage : this.stages)
+    {
+      statistics.add(stage.statistics);
+    }
+    return Collections.unmodifiableList(statistics);
+  }
+
+  // Passes all items through the stages and waits until the pipeline is empty. Returns the
+  // items that passed the last stage (in completion order).
+  public List<T> process(Iterable<T> items) throws InterruptedException
+  {
+    if (this.stages.isEmpty())
+    {
+      throw new IllegalStateException("no stages");
+    }
+
+    int count = this.stages.size();
+    List<BlockingQueue<Object>> queues = new ArrayList<>();
+    for (Stage<T> stage : this.stages)
+    {
+      stage.statistics = new StageStatistics(stage.name, stage.concurrency);
+      queues.add(new ArrayBlockingQueue<>(stage.queueCapacity));
+    }
+    List<T> results = Collections.synchronizedList(new ArrayList<>());
+    AtomicReference<Error> firstError = new AtomicReference<>();
+
+    List<ExecutorService> executors = new ArrayList<>();
+    try
+    {
+      for (int s = 0; s < count; s++)
+      {
+        Stage<T> stage = this.stages.get(s);
+        BlockingQueue<Object> input = queues.get(s);
+        BlockingQueue<Object> output = (s + 1 < count) ? queues.get(s + 1) : null;
+        int nextConcurrency = (s + 1 < count) ? this.stages.get(s + 1).concurrency : 0;
+        AtomicInteger runningWorkers = new AtomicInteger(stage.concurrency);
+
+        ExecutorService executor = Executors.newFixedThreadPool(stage.concurrency, createThreadFactory(stage.name));
+        executors.add(executor);
+        for (int w = 0; w < stage.concurrency; w++)
+        {
+          executor.execute(() -> runWorker(stage, input, output, results, runningWorkers, nextConcurrency, firstError));
+        }
+      }
+
+      BlockingQueue<Object> first = queues.get(0);
+      for (T item : items)
+      {
+        first.put(item);
+      }
+      for (int w = 0; w < this.stages.get(0).concurrency; w++)
+      {
+        first.put(END);
+      }
+
+      for (ExecutorService executor : executors)
+      {
+        executor.shutdown();
+      }
+      for (ExecutorService executor : executors)
+      {
+        while (!executor.awaitTermination(1, TimeUnit.SECONDS))
+        {
+          // wait for the remaining items
+        }
+      }
+    }
+    finally
+    {
+      for (ExecutorService executor : executors)
+      {
+        executor.shutdownNow();
+      }
+    }
+
+    if (firstError.get() != null)
+      throw firstError.get();
+    return results;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> void runWorker(Stage<T> stage, BlockingQueue<Object> input, BlockingQueue<Object> output,
+      List<T> results, AtomicInteger runningWorkers, int nextConcurrency, AtomicReference<Error> firstError)
+  {
+    try
+    {
+      while (true)
+      {
+        Object item = input.take();
+        if (item == END)
+          break;
+
+        long start = System.nanoTime();
+        T result = null;
+        try
+        {
+          result = stage.task.apply((T) item);
+        }
+        catch (RuntimeException | OutOfMemoryError exce)
+        {
+          System.err.println("Stage " + stage.name + " failed: " + exce);
+          exce.printStackTrace();
+        }
+        catch (Error exce)
+        {
+          System.err.println("Stage " + stage.name + " failed: " + exce);
+          exce.printStackTrace();
+          firstError.compareAndSet(null, exce);
+        }
+        stage.statistics.record(start, System.nanoTime(), result != null);
+
+        if (result != null)
+        {
+          if (output != null)
+            output.put(result);
+          else
+            results.add(result);
+        }
+      }
+    }
+    catch (InterruptedException exce)
+    {
+      Thread.currentThread().interrupt();
+    }
+    finally
+    {
+      // the last worker of a stage ends the next stage, also if the worker ended abnormally
+      if (runningWorkers.decrementAndGet() == 0 && output != null)
+      {
+        endNextStage(output, nextConcurrency);
+      }
+    }
+  }
+
+  private static void endNextStage(BlockingQueue<Object> output, int nextConcurrency)
+  {
+    try
+    {
+      for (int w = 0; w < nextConcurrency; w++)
+      {
+        output.put(END);
+      }
+    }
+    catch (InterruptedException exce)
+    {
+      // the pipeline is shut down, all workers are interrupted
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static ThreadFactory createThreadFactory(String name)
+  {
+    AtomicInteger counter = new AtomicInteger();
+    return new ThreadFactory()
+    {
+      @Override
+      public Thread newThread(Runnable task)
+      {
+        Thread th = new Thread(task, "pipeline-" + name + "-" + counter.incrementAndGet());
+        th.setDaemon(true);
+        return th;
+      }
+    };
+  }
+
+  private static final class Stage<T>
+  {
+    private final String name;
+    private final int concurrency;
+    private final int queueCapacity;
+    private final Function<T, T> task;
+    private volatile StageStatistics statistics;
+
+    private Stage(String name, int concurrency, int queueCapacity, Function<T, T> task)
+    {
+      this.name = name;
+      this.concurrency = concurrency;
+      this.queueCapacity = queueCapacity;
+      this.task = task;
+      this.statistics = new StageStatistics(name, concurrency);
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package app.util.pipeline;
+
+/**
+ * Throughput of a pipeline stage.
+ *
+ * The busy time is the sum of the processing times of all items; the active time is the wall
+ * clock time between the start of the first and the end of the last item of the stage.
+ */
+public final class StageStatistics
+{
+  private final String name;
+  private final int concurrency;
+
+  private long processed = 0;
+  private long failed = 0;
+  private long busyNanos = 0;
+  private long firstStart = Long.MAX_VALUE;
+  private long lastEnd = Long.MIN_VALUE;
+
+  StageStatistics(String name, int concurrency)
+  {
+    this.name = name;
+    this.concurrency = concurrency;
+  }
+
+  synchronized void record(long start, long end, boolean success)
+  {
+    if (success)
+      this.processed++;
+    else
+      this.failed++;
+
+    this.busyNanos += end - start;
+    this.firstStart = Math.min(this.firstStart, start);
+    this.lastEnd = Math.max(this.lastEnd, end);
+  }
+
+  public String getName()
+  {
+    return this.name;
+  }
+
+  public int getConcurrency()
+  {
+    return this.concurrency;
+  }
+
+  public synchronized long getProcessed()
+  {
+    return this.processed;
+  }
+
+  public synchronized long getFailed()
+  {
+    return this.failed;
+  }
+
+  // Sum of the processing times in milliseconds
+  public synchronized double getBusyMillis()
+  {
+    return this.busyNanos / 1e6;
+  }
+
+  // Items per second of wall clock time while the stage was active
+  public synchronized double getThroughput()
+  {
+    long items = this.processed + this.failed;
+    if (items == 0 || this.lastEnd <= this.firstStart)
+      return 0.0;
+    return items / ((this.lastEnd - this.firstStart) / 1e9);
+  }
+
+  // Average processing time per item in milliseconds
+  public synchronized double getAverageMillis()
+  {
+    long items = this.processed + this.failed;
+    return (items == 0) ? 0.0 : this.busyNanos / 1e6 / items;
+  }
+
+  @Override
+  public synchronized String toString()
+  {
+    return String.format("%-10s threads %2d, processed %5d, failed %3d, avg %8.1f ms, throughput %8.2f items/s",
+        name, concurrency, processed, failed, getAverageMillis(), getThroughput());
+  }
+}
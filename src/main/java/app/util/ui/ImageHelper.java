@@ -0,0 +1,53 @@
+package app.util.ui;
+
+import java.awt.image.BufferedImage;
+
+import app.util.image.Rasters;
+import javafx.embed.swing.SwingFXUtils;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+
+/**
+ * Creation of JavaFX images from pixel buffers without SwingFXUtils.toFXImage().
+ *
+ * The pixels are written with a PixelWriter in the IntArgbPre format, the native format of
+ * JavaFX images, so no conversion is needed. The images can be created in a worker thread
+ * and shown later on the JavaFX application thread.
+ */
+public final class ImageHelper
+{
+  private ImageHelper()
+  {
+  }
+
+  // pixelBuffer is row major (y*width + x) and opaque (alpha 0xff, see Rasters)
+  public static WritableImage toFXImage(int[] opaquePixelBuffer, int width, int height)
+  {
+    WritableImage image = new WritableImage(width, height);
+    image.getPixelWriter().setPixels(0, 0, width, height, PixelFormat.getIntArgbPreInstance(), opaquePixelBuffer, 0, width);
+    return image;
+  }
+
+  // pixelBuffer is row major (y*width + x), the alpha of the pixels is ignored
+  public static WritableImage toFXImageFromRGB(int[] rgbPixelBuffer, int width, int height)
+  {
+    return toFXImage(Rasters.toOpaque(rgbPixelBuffer, width, height), width, height);
+  }
+
+  // Images with an int[] pixel buffer are copied directly, other images with SwingFXUtils. The
+  // pixels of a TYPE_INT_RGB image may have any alpha and are made opaque first; the images of
+  // Rasters are opaque already and are passed to toFXImage(int[], width, height) instead.
+  public static WritableImage toFXImage(BufferedImage image)
+  {
+    int[] pixels = Rasters.getPixels(image);
+    if (pixels == null)
+      return SwingFXUtils.toFXImage(image, null);
+
+    if (image.getType() == BufferedImage.TYPE_INT_RGB)
+      return toFXImageFromRGB(pixels, image.getWidth(), image.getHeight());
+
+    WritableImage fxImage = new WritableImage(image.getWidth(), image.getHeight());
+    fxImage.getPixelWriter().setPixels(0, 0, image.getWidth(), image.getHeight(), PixelFormat.getIntArgbInstance(), pixels, 0, image.getWidth());
+    return fxImage;
+  }
+}
@@ -0,0 +1,378 @@
+package app.util.ui;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared loader for image files, used by the gallery (see ThumbnailCache) and for opening an
+ * image.
+ *
+ * Realized as a singleton with long-lived daemon threads. A file is mapped READ_ONLY and its
+ * pages are loaded on one of IO_THREADS threads; the decoders read the mapping through an
+ * InputStream, so neither a byte[] copy nor a direct buffer of the file is made. The bytes of
+ * the files between the start of the read and the end of the decoding are limited to
+ * "image.loader.bytes" (default 256 MB): a read waits (without holding a thread) until earlier
+ * files are decoded. A single file larger than the limit is read alone.
+ *
+ * Decoding is bounded by a semaphore with one permit per processor. The executor for loading
+ * tasks has twice as many threads, because its tasks also wait for the reads. An interactive
+ * load (the image opened by the user) is admitted ahead of the waiting reads and decoded on its
+ * own thread without a permit, so it never waits behind the decodes of the gallery; at most one
+ * interactive decode runs at a time.
+ *
+ * The queue depth (reads waiting or in progress and decodes waiting for a permit) and the bytes
+ * in flight are available as metrics.
+ */
+public final class ImageLoader
+{
+  // Decodes an image from the bytes of the file
+  public interface Decoder<T>
+  {
+    T decode(InputStream input) throws IOException;
+  }
+
+  private static final int IO_THREADS = 4;
+  private static final long DEFAULT_MAXIMUM_IN_FLIGHT_BYTES = 256L << 20;
+
+  private static ImageLoader instance = new ImageLoader();
+
+  public static ImageLoader getInstance()
+  {
+    return ImageLoader.instance;
+  }
+
+  private final ExecutorService ioExecutor;
+  private final ExecutorService executor;
+  private final ExecutorService interactiveExecutor;
+  private final Semaphore decodePermits;
+  private final long maximumInFlightBytes;
+
+  // reads waiting for their bytes, guarded by itself
+  private final Deque<Admission> admissions = new ArrayDeque<>();
+
+  private final AtomicInteger reading = new AtomicInteger();
+  private final AtomicInteger decoding = new AtomicInteger();
+  private final AtomicLong inFlightBytes = new AtomicLong();
+  private final AtomicLong loadCount = new AtomicLong();
+
+  private ImageLoader()
+  {
+    int numOfProcessors = Runtime.getRuntime().availableProcessors();
+    this.ioExecutor = Executors.newFixedThreadPool(IO_THREADS, daemonThreads("image-io"));
+    this.executor = Executors.newFixedThreadPool(2*numOfProcessors, daemonThreads("image-loader"));
+    this.interactiveExecutor = Executors.newSingleThreadExecutor(daemonThreads("image-open"));
+    this.decodePermits = new Semaphore(numOfProcessors);
+    this.maximumInFlightBytes = Math.max(1, Long.getLong("image.loader.bytes", DEFAULT_MAXIMUM_IN_FLIGHT_BYTES));
+  }
+
+  private static ThreadFactory daemonThreads(String name)
+  {
+    AtomicInteger count = new AtomicInteger();
+    return task -> {
+      Thread thread = new Thread(task, name + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  // Long-lived executor for loading tasks (e.g. the thumbnails of the gallery cells)
+  public ExecutorService getExecutor()
+  {
+    return this.executor;
+  }
+
+  // Reads and decodes the file in the executor of the loader
+  public <T> CompletableFuture<T> load(Path file, Decoder<T> decoder)
+  {
+    return load(file, decoder, false);
+  }
+
+  // As load(file, decoder), an interactive load is read and decoded ahead of the other loads
+  public <T> CompletableFuture<T> load(Path file, Decoder<T> decoder, boolean interactive)
+  {
+    if (!interactive)
+    {
+      // the task holds its bytes only while it runs, so queued tasks never block the bytes
+      return CompletableFuture.supplyAsync(() -> {
+        try
+        {
+          return get(file, decoder);
+        }
+        catch (IOException exce)
+        {
+          throw new UncheckedIOException(exce);
+        }
+      }, this.executor);
+    }
+
+    return read(file, true).thenApplyAsync(buffer -> {
+      try
+      {
+        return decode(buffer, decoder, true);
+      }
+      catch (IOException exce)
+      {
+        throw new UncheckedIOException(exce);
+      }
+    }, this.interactiveExecutor);
+  }
+
+  // Reads and decodes the file, the calling thread waits for the read
+  public <T> T get(Path file, Decoder<T> decoder) throws IOException
+  {
+    ByteBuffer buffer;
+    try
+    {
+      buffer = read(file, false).join();
+    }
+    catch (CompletionException exce)
+    {
+      if (exce.getCause() instanceof IOException)
+        throw (IOException) exce.getCause();
+      throw exce;
+    }
+    return decode(buffer, decoder, false);
+  }
+
+  // Maps the file and loads its pages when its bytes are admitted. The bytes count as in flight
+  // until decode().
+  private CompletableFuture<ByteBuffer> read(Path file, boolean interactive)
+  {
+    CompletableFuture<ByteBuffer> result = new CompletableFuture<>();
+    this.reading.incrementAndGet();
+    CompletableFuture.supplyAsync(() -> {
+      try
+      {
+        return Files.size(file);
+      }
+      catch (IOException exce)
+      {
+        throw new UncheckedIOException(exce);
+      }
+    }, this.ioExecutor)
+      .thenCompose(size -> admit(size, interactive))
+      .thenApplyAsync(size -> {
+        try
+        {
+          return map(file, size);
+        }
+        catch (IOException | RuntimeException exce)
+        {
+          release(size);
+          throw (exce instanceof IOException) ? new UncheckedIOException((IOException) exce) : (RuntimeException) exce;
+        }
+      }, this.ioExecutor)
+      .whenComplete((buffer, exce) -> {
+        this.reading.decrementAndGet();
+        if (exce == null)
+        {
+          result.complete(buffer);
+        }
+        else
+        {
+          Throwable cause = (exce instanceof CompletionException) ? exce.getCause() : exce;
+          result.completeExceptionally((cause instanceof UncheckedIOException) ? cause.getCause() : cause);
+        }
+      });
+    return result;
+  }
+
+  private static MappedByteBuffer map(Path file, long size) throws IOException
+  {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+    {
+      if (channel.size() != size)
+      {
+        throw new IOException("file changed while reading: " + file);
+      }
+      if (size > Integer.MAX_VALUE)
+      {
+        throw new IOException("file too large: " + file);
+      }
+
+      // the mapping stays valid after the channel is closed
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      buffer.load();
+      return buffer;
+    }
+  }
+
+  // Bytes of a file that count against the limit
+  private long weightOf(long size)
+  {
+    return Math.min(size, this.maximumInFlightBytes);
+  }
+
+  // Completes when the bytes of the file fit into the limit (or no other file is in flight).
+  // Interactive reads are admitted ahead of the waiting reads.
+  private CompletableFuture<Long> admit(long size, boolean interactive)
+  {
+    Admission admission = new Admission(size);
+    synchronized (this.admissions)
+    {
+      if (this.admissions.isEmpty() && fits(size))
+      {
+        this.inFlightBytes.addAndGet(weightOf(size));
+        return CompletableFuture.completedFuture(size);
+      }
+
+      if (interactive)
+        this.admissions.addFirst(admission);
+      else
+        this.admissions.addLast(admission);
+    }
+    return admission.admitted;
+  }
+
+  private boolean fits(long size)
+  {
+    long bytes = this.inFlightBytes.get();
+    return bytes == 0 || bytes + weightOf(size) <= this.maximumInFlightBytes;
+  }
+
+  // Returns the bytes of a file and admits the waiting reads that fit now
+  private void release(long size)
+  {
+    Deque<Admission> admitted = new ArrayDeque<>();
+    synchronized (this.admissions)
+    {
+      this.inFlightBytes.addAndGet(-weightOf(size));
+      while (!this.admissions.isEmpty() && fits(this.admissions.peekFirst().size))
+      {
+        Admission admission = this.admissions.pollFirst();
+        this.inFlightBytes.addAndGet(weightOf(admission.size));
+        admitted.add(admission);
+      }
+    }
+
+    // completed outside the lock, the reads continue in the io executor
+    for (Admission admission : admitted)
+    {
+      admission.admitted.complete(admission.size);
+    }
+  }
+
+  // Decodes the buffer of read() with a permit of the semaphore (interactive decodes without)
+  private <T> T decode(ByteBuffer buffer, Decoder<T> decoder, boolean interactive) throws IOException
+  {
+    try
+    {
+      if (!interactive)
+        this.decodePermits.acquireUninterruptibly();
+      this.decoding.incrementAndGet();
+      try
+      {
+        return decoder.decode(new ByteBufferInputStream(buffer));
+      }
+      finally
+      {
+        this.decoding.decrementAndGet();
+        if (!interactive)
+          this.decodePermits.release();
+      }
+    }
+    finally
+    {
+      release(buffer.capacity());
+      this.loadCount.incrementAndGet();
+    }
+  }
+
+  // Reads waiting or in progress and decodes waiting for a permit
+  public int getQueueDepth()
+  {
+    return this.reading.get() + this.decodePermits.getQueueLength();
+  }
+
+  public int getDecodingCount()
+  {
+    return this.decoding.get();
+  }
+
+  // Bytes of the files that are read or wait for decoding or are decoded (at most the limit)
+  public long getInFlightBytes()
+  {
+    return this.inFlightBytes.get();
+  }
+
+  public String getStatistics()
+  {
+    return "Image loader: " + getQueueDepth() + " queued, " + getDecodingCount() + " decoding, " + (getInFlightBytes() >> 20) + " of "
+        + (this.maximumInFlightBytes >> 20) + " [MB] in flight, " + this.loadCount.get() + " loaded";
+  }
+
+  // Read waiting for the admission of its bytes
+  private static final class Admission
+  {
+    private final long size;
+    private final CompletableFuture<Long> admitted = new CompletableFuture<>();
+
+    private Admission(long size)
+    {
+      this.size = size;
+    }
+  }
+
+  /**
+   * InputStream over the remaining bytes of a buffer (no copy of the buffer).
+   */
+  private static final class ByteBufferInputStream extends InputStream
+  {
+    private final ByteBuffer buffer;
+
+    private ByteBufferInputStream(ByteBuffer buffer)
+    {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read()
+    {
+      return this.buffer.hasRemaining() ? (this.buffer.get() & 0xff) : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length)
+    {
+      if (length == 0)
+        return 0;
+      if (!this.buffer.hasRemaining())
+        return -1;
+
+      int count = Math.min(length, this.buffer.remaining());
+      this.buffer.get(bytes, offset, count);
+      return count;
+    }
+
+    @Override
+    public long skip(long n)
+    {
+      int count = (int) Math.max(0, Math.min(n, this.buffer.remaining()));
+      this.buffer.position(this.buffer.position() + count);
+      return count;
+    }
+
+    @Override
+    public int available()
+    {
+      return this.buffer.remaining();
+    }
+  }
+}
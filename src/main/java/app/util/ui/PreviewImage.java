@@ -8,7 +8,8 @@ import javafx.scene.image.Image;
 /**
  * Wrapper class for an image file. 
  * 
- * The image is used for the down scaled preview
+ * The image is used for the down scaled preview and for the thumbnails of the gallery (see
+ * ThumbnailCache)
  */
 public class PreviewImage extends Image
 {
@@ -23,6 +24,13 @@ public class PreviewImage extends Image
     this.file = file;
   }
 
+  // A thumbnail of the image file, decoded in its own size
+  public PreviewImage(File file, InputStream thumbnail)
+  {
+    super(thumbnail);
+    this.file = file;
+  }
+
   public File getFile()
   {
     return this.file;
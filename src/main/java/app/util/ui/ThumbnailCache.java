@@ -0,0 +1,357 @@
+package app.util.ui;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.stream.Stream;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import app.util.image.Rasters;
+
+/**
+ * Thumbnails of the gallery, cached in memory and on disk.
+ *
+ * A thumbnail is THUMBNAIL_HEIGHT pixels high, the display size of the gallery. It is created
+ * once per image file: the file is read by the ImageLoader, the image is decoded with source
+ * subsampling (only every n-th row and column, so a large photo is never held in full
+ * resolution), scaled and written as a png file to the cache directory. The file is keyed by
+ * the absolute path, the size and the modification time of the image file. Later requests, also
+ * after a restart, only read the small png file.
+ *
+ * The decoded thumbnails are kept in an LRU cache of MEMORY_ENTRIES entries. Since the gallery
+ * requests thumbnails for its visible cells only, the memory does not grow with the number of
+ * files in the folder.
+ *
+ * The directory is set with the system property "thumbnail.cache.dir" (default: the directory
+ * fft-thumbnail-cache in java.io.tmpdir, an empty value keeps the thumbnails in memory only), its
+ * capacity with "thumbnail.cache.bytes" (default 256 MB). trim() deletes the least recently used
+ * files (by modification time, a read touches the file) beyond the capacity.
+ */
+public final class ThumbnailCache
+{
+  public static final int THUMBNAIL_HEIGHT = 80;
+  private static final int MEMORY_ENTRIES = 256;
+  private static final String SUFFIX = ".png";
+  private static final long DEFAULT_MAXIMUM_BYTES = 256L << 20;
+
+  // null if the thumbnails are not written to disk
+  private final Path directory;
+  private final long maximumBytes;
+
+  // LRU order, guarded by itself
+  private final Map<String, PreviewImage> thumbnails = new LinkedHashMap<String, PreviewImage>(16, 0.75f, true)
+  {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, PreviewImage> eldest)
+    {
+      return size() > MEMORY_ENTRIES;
+    }
+  };
+
+  // thumbnails being loaded, by key
+  private final ConcurrentHashMap<String, CompletableFuture<PreviewImage>> inFlight = new ConcurrentHashMap<>();
+
+  public ThumbnailCache()
+  {
+    this(createDirectory(System.getProperty("thumbnail.cache.dir",
+        Paths.get(System.getProperty("java.io.tmpdir"), "fft-thumbnail-cache").toString())),
+        Long.getLong("thumbnail.cache.bytes", DEFAULT_MAXIMUM_BYTES));
+  }
+
+  public ThumbnailCache(Path directory, long maximumBytes)
+  {
+    this.directory = directory;
+    this.maximumBytes = maximumBytes;
+  }
+
+  private static Path createDirectory(String directory)
+  {
+    if (directory.isEmpty())
+      return null;
+
+    try
+    {
+      return Files.createDirectories(Paths.get(directory));
+    }
+    catch (IOException exce)
+    {
+      System.err.println("Thumbnail disk cache disabled: " + exce);
+      return null;
+    }
+  }
+
+  // The thumbnail of the image file if it is in memory, otherwise null
+  public PreviewImage getIfPresent(File file)
+  {
+    synchronized (this.thumbnails)
+    {
+      return this.thumbnails.get(keyOf(file));
+    }
+  }
+
+  // Loads the thumbnail in the executor. If the future is cancelled before the task runs (e.g.
+  // the cell has been scrolled out of view), nothing is loaded.
+  public CompletableFuture<PreviewImage> load(File file, Executor executor)
+  {
+    PreviewImage thumbnail = getIfPresent(file);
+    if (thumbnail != null)
+      return CompletableFuture.completedFuture(thumbnail);
+
+    return CompletableFuture.supplyAsync(() -> {
+      try
+      {
+        return get(file);
+      }
+      catch (IOException exce)
+      {
+        throw new UncheckedIOException(exce);
+      }
+    }, executor);
+  }
+
+  // Loads the thumbnail from memory or disk, or creates it, in the calling thread. If another
+  // thread is loading the same thumbnail (a gallery cell and the ThumbnailPublisher), its result
+  // is awaited instead of loading it twice.
+  public PreviewImage get(File file) throws IOException
+  {
+    String key = keyOf(file);
+    synchronized (this.thumbnails)
+    {
+      PreviewImage thumbnail = this.thumbnails.get(key);
+      if (thumbnail != null)
+        return thumbnail;
+    }
+
+    CompletableFuture<PreviewImage> loading = new CompletableFuture<>();
+    CompletableFuture<PreviewImage> other = this.inFlight.putIfAbsent(key, loading);
+    if (other != null)
+    {
+      try
+      {
+        return other.join();
+      }
+      catch (CompletionException exce)
+      {
+        if (exce.getCause() instanceof IOException)
+          throw (IOException) exce.getCause();
+        throw exce;
+      }
+    }
+
+    try
+    {
+      PreviewImage thumbnail = loadThumbnail(file, key);
+      synchronized (this.thumbnails)
+      {
+        this.thumbnails.put(key, thumbnail);
+      }
+      loading.complete(thumbnail);
+      return thumbnail;
+    }
+    catch (IOException | RuntimeException exce)
+    {
+      loading.completeExceptionally(exce);
+      throw exce;
+    }
+    finally
+    {
+      this.inFlight.remove(key);
+    }
+  }
+
+  private PreviewImage loadThumbnail(File file, String key) throws IOException
+  {
+    PreviewImage thumbnail = readThumbnail(file, key);
+    if (thumbnail == null)
+    {
+      byte[] png = ImageLoader.getInstance().get(file.toPath(), ThumbnailCache::createThumbnail);
+      writeThumbnail(key, png);
+      thumbnail = new PreviewImage(file, new ByteArrayInputStream(png));
+    }
+
+    if (thumbnail.isError())
+    {
+      throw new IOException("thumbnail of " + file + " can not be decoded", thumbnail.getException());
+    }
+    return thumbnail;
+  }
+
+  // png file of the thumbnail, THUMBNAIL_HEIGHT pixels high
+  static byte[] createThumbnail(InputStream image) throws IOException
+  {
+    try (ImageInputStream input = ImageIO.createImageInputStream(image))
+    {
+      Iterator<ImageReader> readers = (input != null) ? ImageIO.getImageReaders(input) : null;
+      if (readers == null || !readers.hasNext())
+      {
+        throw new IOException("Unsupported image format");
+      }
+
+      ImageReader reader = readers.next();
+      try
+      {
+        reader.setInput(input, true, true);
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+
+        // at least twice the thumbnail height is decoded for a smooth down scaling
+        int subsampling = Math.max(1, height / (2 * THUMBNAIL_HEIGHT));
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        BufferedImage decoded = reader.read(0, param);
+
+        int thumbnailWidth = (int) Math.max(1, Math.round((double) width * THUMBNAIL_HEIGHT / height));
+        BufferedImage thumbnail = Rasters.createImage(thumbnailWidth, THUMBNAIL_HEIGHT);
+        Graphics2D graphics = thumbnail.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(decoded, 0, 0, thumbnailWidth, THUMBNAIL_HEIGHT, null);
+        graphics.dispose();
+
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(thumbnail, "png", png);
+        return png.toByteArray();
+      }
+      finally
+      {
+        reader.dispose();
+      }
+    }
+  }
+
+  // The thumbnail from the disk cache, null if it does not exist. A read touches the file.
+  private PreviewImage readThumbnail(File file, String key) throws IOException
+  {
+    if (this.directory == null)
+      return null;
+
+    Path pngFile = this.directory.resolve(key);
+    if (!Files.isRegularFile(pngFile))
+      return null;
+
+    PreviewImage thumbnail = ImageLoader.getInstance().get(pngFile, input -> new PreviewImage(file, input));
+    Files.setLastModifiedTime(pngFile, FileTime.fromMillis(System.currentTimeMillis()));
+    return thumbnail;
+  }
+
+  // Writes the png file to the disk cache (temporary file and move, so a partly written file is
+  // never read)
+  private void writeThumbnail(String key, byte[] png)
+  {
+    if (this.directory == null)
+      return;
+
+    try
+    {
+      Path tmpFile = Files.createTempFile(this.directory, "thumbnail", ".tmp");
+      try
+      {
+        Files.write(tmpFile, png);
+        Files.move(tmpFile, this.directory.resolve(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }
+      finally
+      {
+        Files.deleteIfExists(tmpFile);
+      }
+    }
+    catch (IOException exce)
+    {
+      // the thumbnail is created again next time
+      exce.printStackTrace();
+    }
+  }
+
+  // Deletes the least recently used files until the files fit into the capacity
+  public void trim() throws IOException
+  {
+    if (this.directory == null)
+      return;
+
+    Map<Path, FileTime> times = new HashMap<>();
+    long bytes = 0;
+    try (Stream<Path> list = Files.list(this.directory))
+    {
+      for (Path file : (Iterable<Path>) list::iterator)
+      {
+        if (!file.getFileName().toString().endsWith(SUFFIX))
+          continue;
+        try
+        {
+          times.put(file, Files.getLastModifiedTime(file));
+          bytes += Files.size(file);
+        }
+        catch (NoSuchFileException exce)
+        {
+          // deleted concurrently
+        }
+      }
+    }
+
+    List<Path> files = new ArrayList<>(times.keySet());
+    files.sort(Comparator.comparing(times::get));
+    for (int i = 0; i < files.size() && bytes > this.maximumBytes; i++)
+    {
+      try
+      {
+        long size = Files.size(files.get(i));
+        Files.delete(files.get(i));
+        bytes -= size;
+      }
+      catch (NoSuchFileException exce)
+      {
+        // deleted concurrently
+      }
+    }
+  }
+
+  // Name of the png file: a hash of the absolute path, the size and the modification time
+  private static String keyOf(File file)
+  {
+    String key = file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified() + "|" + THUMBNAIL_HEIGHT;
+    try
+    {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+      StringBuilder name = new StringBuilder();
+      for (int i = 0; i < 16; i++)
+      {
+        name.append(String.format("%02x", digest[i]));
+      }
+      return name.append(SUFFIX).toString();
+    }
+    catch (NoSuchAlgorithmException exce)
+    {
+      throw new IllegalStateException(exce);
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package app.util.ui;
+
+import java.io.File;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import javafx.application.Platform;
+import javafx.scene.control.ListCell;
+import javafx.scene.image.ImageView;
+
+/**
+ * Cell of the gallery, a horizontal ListView of image files.
+ *
+ * The ListView creates cells for the visible files only and reuses them while scrolling. A cell
+ * loads the thumbnail of its file asynchronously (see ThumbnailCache); if the cell gets another
+ * file before, the loading is cancelled and a late thumbnail is not shown.
+ */
+public final class ThumbnailCell extends ListCell<File>
+{
+  public static final double CELL_WIDTH = 130;
+
+  private final ThumbnailCache cache;
+  private final Executor executor;
+  private final ImageView imageView = new ImageView();
+
+  // loading of the thumbnail of the current file, only used in the JavaFX thread
+  private CompletableFuture<PreviewImage> loading;
+
+  public ThumbnailCell(ThumbnailCache cache, Executor executor)
+  {
+    this.cache = cache;
+    this.executor = executor;
+
+    this.imageView.setFitHeight(ThumbnailCache.THUMBNAIL_HEIGHT);
+    this.imageView.setFitWidth(CELL_WIDTH - 10);
+    this.imageView.setPreserveRatio(true);
+    this.imageView.setSmooth(true);
+    setPrefWidth(CELL_WIDTH);
+  }
+
+  // Shows the thumbnail if it belongs to the file of the cell and the cell is still waiting for
+  // it (e.g. a thumbnail of the ThumbnailPublisher). Must be called in the JavaFX thread.
+  public void showThumbnail(PreviewImage thumbnail)
+  {
+    if (isEmpty() || this.imageView.getImage() != null || !thumbnail.getFile().equals(getItem()))
+      return;
+
+    if (this.loading != null)
+    {
+      this.loading.cancel(false);
+      this.loading = null;
+    }
+    this.imageView.setImage(thumbnail);
+  }
+
+  @Override
+  protected void updateItem(File file, boolean empty)
+  {
+    super.updateItem(file, empty);
+
+    if (this.loading != null)
+    {
+      this.loading.cancel(false);
+      this.loading = null;
+    }
+
+    setText(null);
+    if (empty || file == null)
+    {
+      this.imageView.setImage(null);
+      setGraphic(null);
+      return;
+    }
+
+    setGraphic(this.imageView);
+    PreviewImage thumbnail = this.cache.getIfPresent(file);
+    this.imageView.setImage(thumbnail);
+    if (thumbnail != null)
+      return;
+
+    CompletableFuture<PreviewImage> loading = this.cache.load(file, this.executor);
+    this.loading = loading;
+    loading.whenComplete( (image, exce) -> Platform.runLater( () -> {
+      if (this.loading != loading)
+        return;
+
+      this.loading = null;
+      if (exce == null)
+      {
+        this.imageView.setImage(image);
+      }
+      else if (!(exce instanceof CancellationException) && !(exce.getCause() instanceof CancellationException))
+      {
+        Throwable cause = (exce instanceof CompletionException) ? exce.getCause() : exce;
+        System.err.println("No thumbnail for " + file + ": " + cause);
+      }
+    }));
+  }
+}
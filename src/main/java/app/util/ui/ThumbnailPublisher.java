@@ -0,0 +1,237 @@
+package app.util.ui;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow.Publisher;
+import java.util.concurrent.Flow.Subscriber;
+import java.util.concurrent.Flow.Subscription;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Streams the thumbnails of the visible files of a folder and of the files after them.
+ *
+ * The gallery cells load the thumbnails of the visible files themselves (see ThumbnailCell);
+ * the stream prefetches the thumbnails of the visible range set with setVisibleRange() and of
+ * the next LOOK_AHEAD files, so scrolling finds them in the ThumbnailCache, and pushes them to
+ * the gallery as they are finished. Files beyond the look-ahead are not decoded until the
+ * gallery is scrolled to them; a new range restarts the prefetching at its first file.
+ *
+ * The thumbnails are published with a SubmissionPublisher (as in tool.hal.CpuInfoPublisher).
+ * Its buffer holds BATCH_SIZE thumbnails; if a subscriber does not request more, the loading
+ * waits, so it never runs far ahead of the display. The loading runs on its own daemon thread,
+ * so a waiting loading never occupies a thread of the executor that delivers the thumbnails.
+ * close() stops the loading, e.g. when another folder is opened.
+ *
+ * Publisher and Subscriber are reactive streams compatible (http://www.reactive-streams.org/).
+ */
+public final class ThumbnailPublisher implements Publisher<PreviewImage>
+{
+  public static final int BATCH_SIZE = 16;
+  public static final int LOOK_AHEAD = BATCH_SIZE;
+
+  // the loading checks for close() in this period while it waits for the subscribers
+  private static final long OFFER_TIMEOUT_MS = 100;
+
+  private final List<File> files;
+  private final ThumbnailCache cache;
+  private final SubmissionPublisher<PreviewImage> publisher;
+  private volatile boolean closed = false;
+
+  // visible range of the gallery, guarded by rangeLock; version counts the changes
+  private final Object rangeLock = new Object();
+  private int firstVisible = 0;
+  private int lastVisible = 0;
+  private int rangeVersion = 0;
+
+  public ThumbnailPublisher(List<File> files, ThumbnailCache cache, Executor executor)
+  {
+    this.files = new ArrayList<>(files);
+    this.cache = cache;
+    this.publisher = new SubmissionPublisher<>(executor, BATCH_SIZE);
+  }
+
+  // Starts the loading, subscribers that subscribe later miss thumbnails
+  public void start()
+  {
+    Thread thread = new Thread(this::publish, "thumbnail-publisher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  // Sets the indices of the first and last visible file, the prefetching continues there
+  public void setVisibleRange(int first, int last)
+  {
+    synchronized (this.rangeLock)
+    {
+      if (first == this.firstVisible && last == this.lastVisible)
+        return;
+
+      this.firstVisible = first;
+      this.lastVisible = last;
+      this.rangeVersion++;
+      this.rangeLock.notifyAll();
+    }
+  }
+
+  // Stops the loading, no further batches are delivered (see subscribe(Consumer, Executor))
+  public void close()
+  {
+    this.closed = true;
+    synchronized (this.rangeLock)
+    {
+      this.rangeLock.notifyAll();
+    }
+  }
+
+  public boolean isClosed()
+  {
+    return this.closed;
+  }
+
+  private void publish()
+  {
+    try
+    {
+      while (!this.closed)
+      {
+        int first;
+        int last;
+        int version;
+        synchronized (this.rangeLock)
+        {
+          first = Math.max(0, this.firstVisible);
+          last = Math.min(this.files.size() - 1, this.lastVisible + LOOK_AHEAD);
+          version = this.rangeVersion;
+        }
+
+        for (int i = first; i <= last && !this.closed && version == getRangeVersion(); i++)
+        {
+          // a thumbnail in memory is already shown by the cell
+          File file = this.files.get(i);
+          if (this.cache.getIfPresent(file) != null)
+            continue;
+
+          PreviewImage thumbnail;
+          try
+          {
+            thumbnail = this.cache.get(file);
+          }
+          catch (IOException | UncheckedIOException exce)
+          {
+            System.err.println("No thumbnail for " + file + ": " + exce);
+            continue;
+          }
+
+          // waits while the buffer of a subscriber is full
+          while (!this.closed && this.publisher.offer(thumbnail, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS, null) < 0)
+          {
+            // dropped after the timeout, offered again
+          }
+        }
+
+        // waits until the gallery is scrolled
+        synchronized (this.rangeLock)
+        {
+          while (!this.closed && version == this.rangeVersion)
+          {
+            this.rangeLock.wait();
+          }
+        }
+      }
+      this.publisher.close();
+    }
+    catch (InterruptedException exce)
+    {
+      this.publisher.close();
+    }
+    catch (RuntimeException exce)
+    {
+      this.publisher.closeExceptionally(exce);
+    }
+  }
+
+  private int getRangeVersion()
+  {
+    synchronized (this.rangeLock)
+    {
+      return this.rangeVersion;
+    }
+  }
+
+  @Override
+  public void subscribe(Subscriber<? super PreviewImage> subscriber)
+  {
+    this.publisher.subscribe(subscriber);
+  }
+
+  // Convenience Method used by the application: the thumbnails are passed in batches of at most
+  // BATCH_SIZE to the consumer, which runs in the consumer executor (e.g. Platform::runLater). A
+  // batch holds the thumbnails that arrived until the consumer runs, the next thumbnails are
+  // requested after the consumer has run.
+  public void subscribe(Consumer<List<PreviewImage>> batchConsumer, Executor consumerExecutor)
+  {
+    this.publisher.subscribe(new Subscriber<PreviewImage>()
+    {
+      private Subscription subscription;
+
+      // thumbnails not yet passed to the consumer, guarded by itself
+      private final List<PreviewImage> pending = new ArrayList<>(BATCH_SIZE);
+
+      @Override
+      public void onSubscribe(Subscription subscription)
+      {
+        this.subscription = subscription;
+        this.subscription.request(BATCH_SIZE);
+      }
+
+      @Override
+      public void onNext(PreviewImage item)
+      {
+        boolean first;
+        synchronized (this.pending)
+        {
+          first = this.pending.isEmpty();
+          this.pending.add(item);
+        }
+        if (first)
+          consumerExecutor.execute(this::flush);
+      }
+
+      @Override
+      public void onError(Throwable throwable)
+      {
+        System.err.println("Thumbnail stream failed: " + throwable);
+      }
+
+      @Override
+      public void onComplete()
+      {
+        // the pending thumbnails are passed by the scheduled flush
+      }
+
+      private void flush()
+      {
+        List<PreviewImage> thumbnails;
+        synchronized (this.pending)
+        {
+          thumbnails = new ArrayList<>(this.pending);
+          this.pending.clear();
+        }
+
+        if (closed)
+        {
+          this.subscription.cancel();
+          return;
+        }
+        batchConsumer.accept(thumbnails);
+        this.subscription.request(thumbnails.size());
+      }
+    });
+  }
+}
@@ -12,4 +12,5 @@ module FFTImageCompression
   requires javafx.fxml;
   requires javafx.swing;
   requires oshi.core;
+  requires jdk.management;
 }
\ No newline at end of file
@@ -0,0 +1,173 @@
+package app.util.codec;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import app.util.fft.ComplexMatrix;
+import app.util.fft.FFT;
+import app.util.fft.RealMatrix;
+
+/**
+ * Round trip of SpectrumWriter and SpectrumReader and the rejection of corrupt chunks.
+ */
+class SpectrumCodecTest
+{
+  private static final int ROWS = 40;
+  private static final int COLS = 37;
+  private static final int CHUNK_ROWS = 16;
+  private static final double STEP = 0.5;
+
+  // offset of the first chunk header (firstRow, rowCount, count, payloadLength, compressedLength)
+  private static final int COUNT_OFFSET = SpectrumHeader.SIZE + 2*4;
+  private static final int PAYLOAD_LENGTH_OFFSET = SpectrumHeader.SIZE + 3*4;
+  private static final int COMPRESSED_LENGTH_OFFSET = SpectrumHeader.SIZE + 4*4;
+
+  private Path path;
+  private RealMatrix image;
+  private ComplexMatrix halfSpectrum;
+
+  @BeforeEach
+  void writeSpectrum() throws IOException
+  {
+    Random random = new Random(7);
+    this.image = new RealMatrix(ROWS, COLS);
+    for (int i = 0; i < ROWS; i++)
+    {
+      for (int j = 0; j < COLS; j++)
+      {
+        this.image.set(i, j, random.nextInt(256));
+      }
+    }
+
+    // like a compressed image: the small coefficients are dropped
+    this.halfSpectrum = FFT.rfft2(this.image);
+    for (int i = 0; i < ROWS; i++)
+    {
+      for (int j = 0; j < this.halfSpectrum.getCols(); j++)
+      {
+        if (this.halfSpectrum.abs(i, j) < 300.0)
+        {
+          this.halfSpectrum.set(i, j, 0.0, 0.0);
+        }
+      }
+    }
+
+    this.path = Files.createTempFile("spectrum", ".bin");
+    SpectrumWriter.write(this.path, new SpectrumHeader(ROWS, COLS, ROWS, COLS, CHUNK_ROWS, STEP), this.halfSpectrum);
+  }
+
+  @AfterEach
+  void deleteSpectrum() throws IOException
+  {
+    Files.deleteIfExists(this.path);
+  }
+
+  @Test
+  void readerReturnsQuantizedSpectrum() throws IOException
+  {
+    try (SpectrumReader reader = SpectrumReader.open(this.path))
+    {
+      SpectrumHeader header = reader.getHeader();
+      assertEquals(ROWS, header.getRows());
+      assertEquals(COLS, header.getCols());
+      assertEquals(STEP, header.getQuantizationStep());
+
+      ComplexMatrix spectrum = reader.readSpectrum();
+      for (int i = 0; i < ROWS; i++)
+      {
+        for (int j = 0; j < spectrum.getCols(); j++)
+        {
+          assertEquals(this.halfSpectrum.getRe(i, j), spectrum.getRe(i, j), STEP/2, "at " + i + ", " + j);
+          assertEquals(this.halfSpectrum.getIm(i, j), spectrum.getIm(i, j), STEP/2, "at " + i + ", " + j);
+        }
+      }
+    }
+  }
+
+  @Test
+  void readerReturnsImageWithinOneGrayLevel() throws IOException
+  {
+    RealMatrix expected = FFT.irfft2(this.halfSpectrum, COLS);
+    RealMatrix actual = SpectrumReader.readImageMatrix(this.path);
+
+    assertEquals(ROWS, actual.getRows());
+    assertEquals(COLS, actual.getCols());
+    for (int i = 0; i < ROWS; i++)
+    {
+      for (int j = 0; j < COLS; j++)
+      {
+        assertEquals(expected.get(i, j), actual.get(i, j), 1.0, "at " + i + ", " + j);
+      }
+    }
+  }
+
+  @Test
+  void readerRejectsTooManyCoefficients() throws IOException
+  {
+    overwriteInt(COUNT_OFFSET, CHUNK_ROWS*FFT.getHalfSpectrumLength(COLS) + 1);
+    assertReadFails();
+  }
+
+  @Test
+  void readerRejectsHugePayloadLength() throws IOException
+  {
+    overwriteInt(PAYLOAD_LENGTH_OFFSET, 0x7ff00000);
+    assertReadFails();
+  }
+
+  @Test
+  void readerRejectsHugeCompressedLength() throws IOException
+  {
+    overwriteInt(COMPRESSED_LENGTH_OFFSET, 0x7ff00000);
+    assertReadFails();
+  }
+
+  @Test
+  void readerRejectsCorruptPayload() throws IOException
+  {
+    overwriteInt(COMPRESSED_LENGTH_OFFSET + 4, 0x12345678);
+    assertReadFails();
+  }
+
+  @Test
+  void readerRejectsTruncatedFile() throws IOException
+  {
+    try (FileChannel channel = FileChannel.open(this.path, StandardOpenOption.WRITE))
+    {
+      channel.truncate(channel.size() - 1);
+    }
+    assertReadFails();
+  }
+
+  private void overwriteInt(long offset, int value) throws IOException
+  {
+    try (FileChannel channel = FileChannel.open(this.path, StandardOpenOption.WRITE))
+    {
+      ByteBuffer buffer = ByteBuffer.allocate(4).putInt(value);
+      buffer.flip();
+      channel.write(buffer, offset);
+    }
+  }
+
+  private void assertReadFails()
+  {
+    assertThrows(IOException.class, () -> {
+      try (SpectrumReader reader = SpectrumReader.open(this.path))
+      {
+        reader.readSpectrum();
+      }
+    });
+  }
+}
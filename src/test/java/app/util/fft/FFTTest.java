@@ -0,0 +1,115 @@
+package app.util.fft;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compares the complex FFT with the naive DFT.
+ */
+class FFTTest
+{
+  private static final double TOLERANCE = 1e-9;
+
+  @Test
+  void fftOfPowersOfTwoMatchesNaiveDft()
+  {
+    for (int n : new int[] { 1, 2, 4, 8, 16, 64, 1024 })
+    {
+      assertFftMatchesNaiveDft(n);
+    }
+  }
+
+  @Test
+  void ifftOfPowersOfTwoInvertsFft()
+  {
+    for (int n : new int[] { 1, 2, 4, 8, 16, 64, 1024, 4096 })
+    {
+      assertIfftInvertsFft(n);
+    }
+  }
+
+  @Test
+  void fftOfSmoothLengthsMatchesNaiveDft()
+  {
+    // mixed-radix kernel
+    for (int n : new int[] { 3, 5, 6, 7, 9, 12, 15, 49, 360, 1000 })
+    {
+      assertFftMatchesNaiveDft(n);
+      assertIfftInvertsFft(n);
+    }
+  }
+
+  @Test
+  void fftOfPrimeLengthsMatchesNaiveDft()
+  {
+    // Bluestein kernel
+    for (int n : new int[] { 11, 13, 17, 97, 194, 1009 })
+    {
+      assertFftMatchesNaiveDft(n);
+      assertIfftInvertsFft(n);
+    }
+  }
+
+  static void assertFftMatchesNaiveDft(int n)
+  {
+    double[] data = randomComplex(n, n);
+    double[] expected = naiveDft(data, n);
+
+    FFT.fft(data, 0, n);
+    assertArrayClose(expected, data, n, "fft of length " + n);
+  }
+
+  static void assertIfftInvertsFft(int n)
+  {
+    double[] data = randomComplex(n, 31*n);
+    double[] transformed = FFT.fft(data);
+    assertArrayClose(data, FFT.ifft(transformed), n, "ifft of length " + n);
+  }
+
+  // n complex values (interleaved re/im) in [-1, 1)
+  static double[] randomComplex(int n, long seed)
+  {
+    Random random = new Random(seed);
+    double[] data = new double[2*n];
+    for (int i = 0; i < data.length; i++)
+    {
+      data[i] = 2.0*random.nextDouble() - 1.0;
+    }
+    return data;
+  }
+
+  // X[k] = sum x[j]*exp(-2*pi*i*j*k/n), the twiddles are reduced modulo n for accuracy
+  static double[] naiveDft(double[] x, int n)
+  {
+    double[] result = new double[2*n];
+    for (int k = 0; k < n; k++)
+    {
+      double re = 0.0;
+      double im = 0.0;
+      for (int j = 0; j < n; j++)
+      {
+        double angle = -2.0*Math.PI*(((long) j*k) % n)/n;
+        double cos = Math.cos(angle);
+        double sin = Math.sin(angle);
+        re += x[2*j]*cos - x[2*j + 1]*sin;
+        im += x[2*j]*sin + x[2*j + 1]*cos;
+      }
+      result[2*k] = re;
+      result[2*k + 1] = im;
+    }
+    return result;
+  }
+
+  // the tolerance grows with the magnitude of the coefficients (about sqrt(n) for random values)
+  static void assertArrayClose(double[] expected, double[] actual, int n, String message)
+  {
+    double tolerance = TOLERANCE*Math.max(1.0, Math.sqrt(n));
+    for (int i = 0; i < 2*n; i++)
+    {
+      assertEquals(expected[i], actual[i], tolerance, message + ", element " + i);
+    }
+  }
+}
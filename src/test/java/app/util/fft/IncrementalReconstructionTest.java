@@ -0,0 +1,74 @@
+package app.util.fft;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compares the incremental updates with a full reconstruction at the same compression rate.
+ */
+class IncrementalReconstructionTest
+{
+  private static final double TOLERANCE = 1e-8;
+
+  @Test
+  void incrementalUpdatesMatchFullReconstructionOfEvenLength()
+  {
+    assertUpdatesMatchFullReconstruction(64, 64);
+  }
+
+  @Test
+  void incrementalUpdatesMatchFullReconstructionOfOddLength()
+  {
+    assertUpdatesMatchFullReconstruction(48, 45);
+  }
+
+  private static void assertUpdatesMatchFullReconstruction(int rows, int cols)
+  {
+    ComplexMatrix halfSpectrum = FFT.rfft2(RealFFTTest.randomMatrix(rows, cols));
+    CoefficientOrder order = new CoefficientOrder(halfSpectrum);
+    IncrementalReconstruction incremental = new IncrementalReconstruction(halfSpectrum, cols, order);
+
+    // single coefficients (direct synthesis), a few columns (FFT synthesis), back and a large step
+    double unit = 1.0 / order.size();
+    double[] rates = { 0.9, 0.9 + unit, 0.9 + 3*unit, 0.905, 0.9, 0.91, 0.5, 0.5 - unit, 0.0, 0.99 };
+
+    int incrementalUpdates = 0;
+    for (double rate : rates)
+    {
+      if (incremental.update(rate))
+        incrementalUpdates++;
+
+      IncrementalReconstruction full = new IncrementalReconstruction(halfSpectrum, cols, order);
+      full.update(rate);
+
+      assertSpectrumEquals(full.getTruncatedSpectrum(), incremental.getTruncatedSpectrum(), rate);
+      assertMatrixEquals(FFT.irfft2(full.getTruncatedSpectrum(), cols), incremental.getReconstruction(), rate);
+    }
+    assertTrue(incrementalUpdates >= 4, "only " + incrementalUpdates + " incremental updates");
+  }
+
+  private static void assertSpectrumEquals(ComplexMatrix expected, ComplexMatrix actual, double rate)
+  {
+    for (int i = 0; i < expected.getRows(); i++)
+    {
+      for (int j = 0; j < expected.getCols(); j++)
+      {
+        assertEquals(expected.getRe(i, j), actual.getRe(i, j), "rate " + rate + " at " + i + ", " + j);
+        assertEquals(expected.getIm(i, j), actual.getIm(i, j), "rate " + rate + " at " + i + ", " + j);
+      }
+    }
+  }
+
+  private static void assertMatrixEquals(RealMatrix expected, RealMatrix actual, double rate)
+  {
+    for (int i = 0; i < expected.getRows(); i++)
+    {
+      for (int j = 0; j < expected.getCols(); j++)
+      {
+        assertEquals(expected.get(i, j), actual.get(i, j), TOLERANCE, "rate " + rate + " at " + i + ", " + j);
+      }
+    }
+  }
+}
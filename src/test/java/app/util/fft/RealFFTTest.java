@@ -0,0 +1,121 @@
+package app.util.fft;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compares the real FFT with the naive DFT and checks the 2D round trips.
+ */
+class RealFFTTest
+{
+  private static final double TOLERANCE = 1e-9;
+
+  @Test
+  void rfftMatchesNaiveDft()
+  {
+    for (int n : new int[] { 1, 2, 3, 4, 5, 7, 8, 12, 97, 128, 1000 })
+    {
+      double[] values = new Random(n).doubles(n, -1.0, 1.0).toArray();
+      double[] complex = new double[2*n];
+      for (int j = 0; j < n; j++)
+      {
+        complex[2*j] = values[j];
+      }
+      double[] expected = FFTTest.naiveDft(complex, n);
+
+      int halfCols = FFT.getHalfSpectrumLength(n);
+      double[] data = new double[2*halfCols];
+      System.arraycopy(values, 0, data, 0, n);
+      FFT.rfft(data, n);
+      FFTTest.assertArrayClose(expected, data, halfCols, "rfft of length " + n);
+
+      FFT.irfft(data, n);
+      for (int j = 0; j < n; j++)
+      {
+        assertEquals(values[j], data[j], TOLERANCE, "irfft of length " + n + ", element " + j);
+      }
+    }
+  }
+
+  @Test
+  void rfft2MatchesFft2()
+  {
+    RealMatrix matrix = randomMatrix(6, 9);
+    ComplexMatrix halfSpectrum = FFT.rfft2(matrix);
+
+    ComplexMatrix full = new ComplexMatrix(6, 9);
+    for (int i = 0; i < 6; i++)
+    {
+      for (int j = 0; j < 9; j++)
+      {
+        full.set(i, j, matrix.get(i, j), 0.0);
+      }
+    }
+    FFT.fft2InPlace(full);
+
+    assertEquals(FFT.getHalfSpectrumLength(9), halfSpectrum.getCols());
+    for (int i = 0; i < 6; i++)
+    {
+      for (int j = 0; j < halfSpectrum.getCols(); j++)
+      {
+        assertEquals(full.getRe(i, j), halfSpectrum.getRe(i, j), TOLERANCE);
+        assertEquals(full.getIm(i, j), halfSpectrum.getIm(i, j), TOLERANCE);
+      }
+    }
+  }
+
+  @Test
+  void irfft2InvertsRfft2()
+  {
+    int[][] sizes = { { 1, 1 }, { 1, 16 }, { 1, 15 }, { 16, 1 }, { 15, 1 }, { 8, 8 }, { 37, 64 }, { 64, 37 }, { 13, 97 } };
+    for (int[] size : sizes)
+    {
+      RealMatrix matrix = randomMatrix(size[0], size[1]);
+      RealMatrix result = FFT.irfft2(FFT.rfft2(matrix), size[1]);
+
+      assertEquals(size[0], result.getRows());
+      assertEquals(size[1], result.getCols());
+      for (int i = 0; i < size[0]; i++)
+      {
+        for (int j = 0; j < size[1]; j++)
+        {
+          assertEquals(matrix.get(i, j), result.get(i, j), TOLERANCE, size[0] + " x " + size[1] + " at " + i + ", " + j);
+        }
+      }
+    }
+  }
+
+  @Test
+  void irfft2OfArraysInvertsRfft2()
+  {
+    int[][] sizes = { { 1, 16 }, { 1, 15 }, { 16, 1 }, { 15, 1 }, { 37, 64 } };
+    for (int[] size : sizes)
+    {
+      double[][] matrix = randomMatrix(size[0], size[1]).toArray();
+      double[][] result = FFT.irfft2(FFT.rfft2(matrix), size[1]);
+
+      for (int i = 0; i < size[0]; i++)
+      {
+        assertArrayEquals(matrix[i], result[i], TOLERANCE, size[0] + " x " + size[1] + ", row " + i);
+      }
+    }
+  }
+
+  static RealMatrix randomMatrix(int rows, int cols)
+  {
+    Random random = new Random(31L*rows + cols);
+    RealMatrix matrix = new RealMatrix(rows, cols);
+    for (int i = 0; i < rows; i++)
+    {
+      for (int j = 0; j < cols; j++)
+      {
+        matrix.set(i, j, 255.0*random.nextDouble());
+      }
+    }
+    return matrix;
+  }
+}